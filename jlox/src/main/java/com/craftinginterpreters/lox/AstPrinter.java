@@ -173,7 +173,7 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     return indent + "[if "
             + parenthesize(anIf.condition().accept(this))
             + anIf.whenTrue().accept(new AstPrinter(indent()))
-            + anIf.whenFalse().accept(new AstPrinter(indent())) + "]";
+            + (anIf.whenFalse() == null ? "" : anIf.whenFalse().accept(new AstPrinter(indent()))) + "]";
   }
 
   @Override
@@ -0,0 +1,415 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.ClosureCompiler.Code;
+
+/**
+ * An arithmetic or comparison operator which specializes itself on the types of its operands.
+ * Every node starts out {@link Uninitialized} and rewrites itself on first evaluation into one which only handles
+ * numbers (with one class per operator) or, for {@code +}, only concatenation, becoming {@link Generic} if its guard
+ * ever fails. Generic nodes handle anything, so they never need to be rewritten again.
+ * Each specialization evaluates its operands itself, so that its call to {@link #apply} is to a single known method.
+ * Those for numbers take their operands as unboxed doubles ({@link #evaluateDouble}), and the arithmetic ones produce one,
+ * so that a nest of arithmetic only boxes the number it finally evaluates to.
+ * {@link #apply} still takes boxed operands, for the evaluation which specializes a node.
+ */
+abstract class BinaryNode extends Node {
+  Node left;
+  Node right;
+  final Token operator;
+
+  private BinaryNode(Token operator, Code left, Code right) {
+    this.operator = operator;
+    this.left = adopt(Node.of(left));
+    this.right = adopt(Node.of(right));
+  }
+
+  /** Take over the operands of the node being replaced */
+  private BinaryNode(BinaryNode previous) {
+    this(previous.operator, previous.left, previous.right);
+  }
+
+  static BinaryNode create(Token operator, Code left, Code right) {
+    return new Uninitialized(operator, left, right);
+  }
+
+  static boolean isSpecializable(TokenType operator) {
+    return switch (operator) {
+      case PLUS, MINUS, STAR, SLASH, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> true;
+      default -> false;
+    };
+  }
+
+  /** Apply the operator to operands which have already been evaluated */
+  abstract Object apply(Object left, Object right);
+
+  @Override
+  void replaceChild(Node child, Node replacement) {
+    if (left == child) {
+      left = replacement;
+    } else if (right == child) {
+      right = replacement;
+    }
+  }
+
+  /** Give up on the specialization, for the operands which just failed its guard */
+  final Object generalize(Object left, Object right) {
+    return replace(new Generic(this)).apply(left, right);
+  }
+
+  static final class Uninitialized extends BinaryNode {
+    private Uninitialized(Token operator, Code left, Code right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      return apply(left.evaluate(environment), right.evaluate(environment));
+    }
+
+    @Override
+    Object apply(Object left, Object right) {
+      BinaryNode specialized;
+      if (left instanceof Double && right instanceof Double) {
+        specialized = switch (operator.type()) {
+          case PLUS -> new AddDoubles(this);
+          case MINUS -> new SubtractDoubles(this);
+          case STAR -> new MultiplyDoubles(this);
+          case SLASH -> new DivideDoubles(this);
+          case GREATER -> new GreaterDoubles(this);
+          case GREATER_EQUAL -> new GreaterEqualDoubles(this);
+          case LESS -> new LessDoubles(this);
+          case LESS_EQUAL -> new LessEqualDoubles(this);
+          default -> new Generic(this);
+        };
+      } else if (operator.type() == TokenType.PLUS && (left instanceof String || right instanceof String)) {
+        specialized = new Concatenate(this);
+      } else {
+        specialized = new Generic(this);
+      }
+      return replace(specialized).apply(left, right);
+    }
+  }
+
+  static final class AddDoubles extends BinaryNode {
+    private AddDoubles(BinaryNode previous) {
+      super(previous);
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      try {
+        return evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return e.value;
+      }
+    }
+
+    @Override
+    double evaluateDouble(EnvironmentOptimized environment) throws UnexpectedResult {
+      double l;
+      try {
+        l = left.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return expectDouble(generalize(e.value, right.evaluate(environment)));
+      }
+      double r;
+      try {
+        r = right.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return expectDouble(generalize(l, e.value));
+      }
+      return l + r;
+    }
+
+    @Override
+    Object apply(Object left, Object right) {
+      return left instanceof Double l && right instanceof Double r ? (Object) (l + r) : generalize(left, right);
+    }
+  }
+
+  static final class SubtractDoubles extends BinaryNode {
+    private SubtractDoubles(BinaryNode previous) {
+      super(previous);
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      try {
+        return evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return e.value;
+      }
+    }
+
+    @Override
+    double evaluateDouble(EnvironmentOptimized environment) throws UnexpectedResult {
+      double l;
+      try {
+        l = left.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return expectDouble(generalize(e.value, right.evaluate(environment)));
+      }
+      double r;
+      try {
+        r = right.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return expectDouble(generalize(l, e.value));
+      }
+      return l - r;
+    }
+
+    @Override
+    Object apply(Object left, Object right) {
+      return left instanceof Double l && right instanceof Double r ? (Object) (l - r) : generalize(left, right);
+    }
+  }
+
+  static final class MultiplyDoubles extends BinaryNode {
+    private MultiplyDoubles(BinaryNode previous) {
+      super(previous);
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      try {
+        return evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return e.value;
+      }
+    }
+
+    @Override
+    double evaluateDouble(EnvironmentOptimized environment) throws UnexpectedResult {
+      double l;
+      try {
+        l = left.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return expectDouble(generalize(e.value, right.evaluate(environment)));
+      }
+      double r;
+      try {
+        r = right.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return expectDouble(generalize(l, e.value));
+      }
+      return l * r;
+    }
+
+    @Override
+    Object apply(Object left, Object right) {
+      return left instanceof Double l && right instanceof Double r ? (Object) (l * r) : generalize(left, right);
+    }
+  }
+
+  static final class DivideDoubles extends BinaryNode {
+    private DivideDoubles(BinaryNode previous) {
+      super(previous);
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      try {
+        return evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return e.value;
+      }
+    }
+
+    @Override
+    double evaluateDouble(EnvironmentOptimized environment) throws UnexpectedResult {
+      double l;
+      try {
+        l = left.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return expectDouble(generalize(e.value, right.evaluate(environment)));
+      }
+      double r;
+      try {
+        r = right.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return expectDouble(generalize(l, e.value));
+      }
+      if (r == 0) {
+        throw new EvaluationError(operator, "Division by zero");
+      }
+      return l / r;
+    }
+
+    @Override
+    Object apply(Object left, Object right) {
+      if (left instanceof Double l && right instanceof Double r) {
+        if (r == 0) {
+          throw new EvaluationError(operator, "Division by zero");
+        }
+        return l / r;
+      }
+      return generalize(left, right);
+    }
+  }
+
+  static final class GreaterDoubles extends BinaryNode {
+    private GreaterDoubles(BinaryNode previous) {
+      super(previous);
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      double l;
+      try {
+        l = left.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return generalize(e.value, right.evaluate(environment));
+      }
+      double r;
+      try {
+        r = right.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return generalize(l, e.value);
+      }
+      return l > r;
+    }
+
+    @Override
+    Object apply(Object left, Object right) {
+      return left instanceof Double l && right instanceof Double r ? (Object) (l > r) : generalize(left, right);
+    }
+  }
+
+  static final class GreaterEqualDoubles extends BinaryNode {
+    private GreaterEqualDoubles(BinaryNode previous) {
+      super(previous);
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      double l;
+      try {
+        l = left.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return generalize(e.value, right.evaluate(environment));
+      }
+      double r;
+      try {
+        r = right.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return generalize(l, e.value);
+      }
+      return l >= r;
+    }
+
+    @Override
+    Object apply(Object left, Object right) {
+      return left instanceof Double l && right instanceof Double r ? (Object) (l >= r) : generalize(left, right);
+    }
+  }
+
+  static final class LessDoubles extends BinaryNode {
+    private LessDoubles(BinaryNode previous) {
+      super(previous);
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      double l;
+      try {
+        l = left.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return generalize(e.value, right.evaluate(environment));
+      }
+      double r;
+      try {
+        r = right.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return generalize(l, e.value);
+      }
+      return l < r;
+    }
+
+    @Override
+    Object apply(Object left, Object right) {
+      return left instanceof Double l && right instanceof Double r ? (Object) (l < r) : generalize(left, right);
+    }
+  }
+
+  static final class LessEqualDoubles extends BinaryNode {
+    private LessEqualDoubles(BinaryNode previous) {
+      super(previous);
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      double l;
+      try {
+        l = left.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return generalize(e.value, right.evaluate(environment));
+      }
+      double r;
+      try {
+        r = right.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return generalize(l, e.value);
+      }
+      return l <= r;
+    }
+
+    @Override
+    Object apply(Object left, Object right) {
+      return left instanceof Double l && right instanceof Double r ? (Object) (l <= r) : generalize(left, right);
+    }
+  }
+
+  /** Only {@code +} has a string specialization, which covers concatenating strings with anything else */
+  static final class Concatenate extends BinaryNode {
+    private Concatenate(BinaryNode previous) {
+      super(previous);
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      return apply(left.evaluate(environment), right.evaluate(environment));
+    }
+
+    @Override
+    Object apply(Object left, Object right) {
+      if (left instanceof String || right instanceof String) {
+        return Interpreter.stringify(left) + Interpreter.stringify(right);
+      }
+      return generalize(left, right);
+    }
+  }
+
+  static final class Generic extends BinaryNode {
+    private Generic(BinaryNode previous) {
+      super(previous);
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      return apply(left.evaluate(environment), right.evaluate(environment));
+    }
+
+    @Override
+    Object apply(Object left, Object right) {
+      if (left instanceof Double l && right instanceof Double r) {
+        return switch (operator.type()) {
+          case PLUS -> l + r;
+          case MINUS -> l - r;
+          case STAR -> l * r;
+          case SLASH -> {
+            if (r == 0) {
+              throw new EvaluationError(operator, "Division by zero");
+            }
+            yield l / r;
+          }
+          case GREATER -> l > r;
+          case GREATER_EQUAL -> l >= r;
+          case LESS -> l < r;
+          case LESS_EQUAL -> l <= r;
+          default -> throw new EvaluationError(operator, "Do not know how to apply " + operator.type() + " to numbers");
+        };
+      }
+      return Interpreter.applyToNonNumbers(left, right, operator);
+    }
+  }
+}
@@ -0,0 +1,605 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.craftinginterpreters.lox.VirtualMachine.Prototype;
+
+/**
+ * Compiles a resolved program to bytecode for the {@link VirtualMachine}.
+ * Top-level variables go to the slots the resolver assigned them; everything else lives on the stack,
+ * in the order it was declared, with variables captured by closures being moved off it as their scope ends.
+ */
+final class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private static final int MAX_LOCALS = 256;
+  private static final int MAX_JUMP = 0xffff;
+
+  private static final class Local {
+    final String name;
+    int depth;
+    boolean isCaptured;
+
+    Local(String name, int depth) {
+      this.name = name;
+      this.depth = depth;
+    }
+  }
+
+  private record UpvalueReference(int index, boolean isLocal) {}
+
+  private static final class Loop {
+    final Loop enclosing;
+    final int start;
+    final int scopeDepth;
+    final List<Integer> breaks = new ArrayList<>();
+
+    Loop(Loop enclosing, int start, int scopeDepth) {
+      this.enclosing = enclosing;
+      this.start = start;
+      this.scopeDepth = scopeDepth;
+    }
+  }
+
+  /** Everything about the function currently being compiled */
+  private static final class FunctionState {
+    final FunctionState enclosing;
+    final Prototype prototype;
+    final List<Local> locals = new ArrayList<>();
+    final List<UpvalueReference> upvalues = new ArrayList<>();
+    int scopeDepth = 0;
+    Loop loop;
+
+    FunctionState(FunctionState enclosing, Prototype prototype, String slotZero) {
+      this.enclosing = enclosing;
+      this.prototype = prototype;
+      // The callee (or receiver, for methods) always occupies the first slot of a frame
+      locals.add(new Local(slotZero, 0));
+    }
+  }
+
+  private final Resolver.ResolutionReport report;
+  private FunctionState current;
+
+  private BytecodeCompiler(Resolver.ResolutionReport report) {
+    this.report = report;
+  }
+
+  /** Compile a program which has been fully resolved (function bodies included) into a script */
+  static Prototype compile(List<Stmt> program, Resolver.ResolutionReport report) {
+    var compiler = new BytecodeCompiler(report);
+    var script = new Prototype("script", 0, Prototype.Kind.SCRIPT);
+    compiler.current = new FunctionState(null, script, "");
+    for (var statement : program) {
+      statement.accept(compiler);
+    }
+    compiler.emitReturn(Token.artificial(TokenType.EOF));
+    return script;
+  }
+
+  // Statements
+
+  @Override
+  public Void visit(Stmt.Expression expression) {
+    compile(expression.expression());
+    emit(OpCode.POP, null);
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.Print print) {
+    compile(print.expression());
+    emit(OpCode.PRINT, null);
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.Var declaration) {
+    declareVariable(declaration.name());
+    if (declaration.initializer() != null) {
+      compile(declaration.initializer());
+    } else {
+      emit(OpCode.NIL, declaration.name());
+    }
+    defineVariable(declaration.name());
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.Block block) {
+    beginScope();
+    for (var statement : block.statements()) {
+      statement.accept(this);
+    }
+    endScope(null);
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.If anIf) {
+    compile(anIf.condition());
+    var elseJump = emitJump(OpCode.JUMP_IF_FALSE, null);
+    emit(OpCode.POP, null);
+    anIf.whenTrue().accept(this);
+    var endJump = emitJump(OpCode.JUMP, null);
+    patchJump(elseJump);
+    emit(OpCode.POP, null);
+    if (anIf.whenFalse() != null) {
+      anIf.whenFalse().accept(this);
+    }
+    patchJump(endJump);
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.While aWhile) {
+    var loop = current.loop = new Loop(current.loop, chunk().count(), current.scopeDepth);
+    compile(aWhile.condition());
+    var exitJump = emitJump(OpCode.JUMP_IF_FALSE, null);
+    emit(OpCode.POP, null);
+    aWhile.body().accept(this);
+    emitLoop(loop.start, null);
+    patchJump(exitJump);
+    emit(OpCode.POP, null);
+    // Breaking out happens with the condition already popped
+    loop.breaks.forEach(this::patchJump);
+    current.loop = loop.enclosing;
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.LoopControl loopControl) {
+    var loop = current.loop;
+    discardLocals(loop.scopeDepth, loopControl.token());
+    switch (loopControl.type()) {
+      case BREAK -> loop.breaks.add(emitJump(OpCode.JUMP, loopControl.token()));
+      case CONTINUE -> emitLoop(loop.start, loopControl.token());
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.Function function) {
+    declareVariable(function.name());
+    // A local function can refer to itself
+    markInitialized();
+    compileFunction(function.name(), function.params(), function.body(), Prototype.Kind.FUNCTION, "");
+    defineVariable(function.name());
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.Return returnStmt) {
+    if (returnStmt.value() == null) {
+      emitReturn(returnStmt.keyword());
+    } else if (report.isTailCall(returnStmt) && returnStmt.value() instanceof Expr.Call call) {
+      compileCall(call, OpCode.TAIL_CALL);
+    } else {
+      compile(returnStmt.value());
+      emit(OpCode.RETURN, returnStmt.keyword());
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.ClassDeclaration classDeclaration) {
+    var name = classDeclaration.name();
+    declareVariable(name);
+    var superclass = classDeclaration.superclass();
+    if (superclass != null) {
+      compile(superclass);
+    } else {
+      emit(OpCode.NIL, name);
+    }
+    // Failing to extend the superclass is reported where it is named
+    emitWithShort(OpCode.CLASS, constant(name.lexeme(), name), superclass != null ? superclass.name() : name);
+    defineVariable(name);
+
+    if (superclass != null) {
+      // Methods capture their superclass from a scope of its own, as the resolver has it
+      beginScope();
+      addLocal("super", superclass.name());
+      markInitialized();
+      compile(superclass);
+    }
+
+    loadVariable(name);
+    for (var method : classDeclaration.methods()) {
+      compileMethod(method, OpCode.METHOD);
+    }
+    for (var method : classDeclaration.classMethods()) {
+      compileMethod(method, OpCode.CLASS_METHOD);
+    }
+    emit(OpCode.INIT_CLASS, name);
+    emit(OpCode.POP, name);
+    emit(OpCode.POP, name);
+
+    if (superclass != null) {
+      endScope(name);
+    }
+    return null;
+  }
+
+  private void compileMethod(Stmt.Function method, byte opCode) {
+    var kind = switch (method.type()) {
+      case GETTER -> Prototype.Kind.GETTER;
+      case INITIALIZER -> Prototype.Kind.INITIALIZER;
+      default -> LoxClass.INIT.equals(method.name().lexeme()) ? Prototype.Kind.INITIALIZER : Prototype.Kind.METHOD;
+    };
+    compileFunction(method.name(), method.params(), method.body(), kind, "this");
+    emit(opCode, method.name());
+    chunk().writeShort(constant(method.name().lexeme(), method.name()), method.name());
+  }
+
+  // Expressions
+
+  @Override
+  public Void visit(Expr.Trinary trinary) {
+    compile(trinary.head());
+    var elseJump = emitJump(OpCode.JUMP_IF_FALSE, trinary.firstOp());
+    emit(OpCode.POP, trinary.firstOp());
+    compile(trinary.left());
+    var endJump = emitJump(OpCode.JUMP, trinary.secondOp());
+    patchJump(elseJump);
+    emit(OpCode.POP, trinary.secondOp());
+    compile(trinary.right());
+    patchJump(endJump);
+    return null;
+  }
+
+  @Override
+  public Void visit(Expr.Binary binary) {
+    var operator = binary.operator();
+    if (operator.type() == TokenType.ELVIS) {
+      compileOr(binary.left(), operator, binary.right());
+      return null;
+    }
+    compile(binary.left());
+    compile(binary.right());
+    emit(switch (operator.type()) {
+      case EQUAL_EQUAL -> OpCode.EQUAL;
+      case BANG_EQUAL -> OpCode.NOT_EQUAL;
+      case GREATER -> OpCode.GREATER;
+      case GREATER_EQUAL -> OpCode.GREATER_EQUAL;
+      case LESS -> OpCode.LESS;
+      case LESS_EQUAL -> OpCode.LESS_EQUAL;
+      case PLUS -> OpCode.ADD;
+      case MINUS -> OpCode.SUBTRACT;
+      case STAR -> OpCode.MULTIPLY;
+      case SLASH -> OpCode.DIVIDE;
+      default -> OpCode.UNSUPPORTED_BINARY;
+    }, operator);
+    return null;
+  }
+
+  @Override
+  public Void visit(Expr.Logical logical) {
+    if (logical.operator().type() == TokenType.OR) {
+      compileOr(logical.left(), logical.operator(), logical.right());
+      return null;
+    }
+    compile(logical.left());
+    var endJump = emitJump(OpCode.JUMP_IF_FALSE, logical.operator());
+    emit(OpCode.POP, logical.operator());
+    compile(logical.right());
+    patchJump(endJump);
+    return null;
+  }
+
+  private void compileOr(Expr left, Token operator, Expr right) {
+    compile(left);
+    var elseJump = emitJump(OpCode.JUMP_IF_FALSE, operator);
+    var endJump = emitJump(OpCode.JUMP, operator);
+    patchJump(elseJump);
+    emit(OpCode.POP, operator);
+    compile(right);
+    patchJump(endJump);
+  }
+
+  @Override
+  public Void visit(Expr.Unary unary) {
+    compile(unary.right());
+    emit(unary.operator().type() == TokenType.MINUS ? OpCode.NEGATE : OpCode.NOT, unary.operator());
+    return null;
+  }
+
+  @Override
+  public Void visit(Expr.Grouping grouping) {
+    compile(grouping.expression());
+    return null;
+  }
+
+  @Override
+  public Void visit(Expr.Literal literal) {
+    var value = literal.value();
+    if (value == null) {
+      emit(OpCode.NIL, null);
+    } else if (value instanceof Boolean bool) {
+      emit(bool ? OpCode.TRUE : OpCode.FALSE, null);
+    } else {
+      emit(OpCode.CONSTANT, null);
+      chunk().writeShort(constant(value, null), null);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(Expr.Variable variable) {
+    loadVariable(variable.name());
+    return null;
+  }
+
+  @Override
+  public Void visit(Expr.Assignment assignment) {
+    compile(assignment.value());
+    var name = assignment.name();
+    var coordinates = report.locals().get(name);
+    if (coordinates != null && coordinates.isGlobal()) {
+      emitWithShort(OpCode.SET_GLOBAL, coordinates.id(), name);
+    } else {
+      accessLocal(name, OpCode.SET_LOCAL, OpCode.SET_UPVALUE, OpCode.SET_GLOBAL);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visit(Expr.Call call) {
+    compileCall(call, OpCode.CALL);
+    return null;
+  }
+
+  private void compileCall(Expr.Call call, byte opCode) {
+    compile(call.callee());
+    for (var argument : call.arguments()) {
+      compile(argument);
+    }
+    if (call.arguments().size() > 255) {
+      throw new EvaluationError(call.paren(), "Can't have more than 255 arguments.");
+    }
+    emit(opCode, call.paren());
+    chunk().write(call.arguments().size(), call.paren());
+  }
+
+  @Override
+  public Void visit(Expr.Function function) {
+    var name = function.isAnonymous() ? function.keyword() : function.name();
+    // A named function expression refers to itself by its name, which is the callee in its first slot
+    var slotZero = function.isAnonymous() ? "" : function.name().lexeme();
+    compileFunction(name, function.arguments(), function.body(), Prototype.Kind.FUNCTION, slotZero);
+    return null;
+  }
+
+  @Override
+  public Void visit(Expr.Select select) {
+    compile(select.target());
+    emitWithShort(OpCode.GET_PROPERTY, constant(select.field().lexeme(), select.field()), select.field());
+    return null;
+  }
+
+  @Override
+  public Void visit(Expr.Update update) {
+    compile(update.target());
+    compile(update.value());
+    emitWithShort(OpCode.SET_PROPERTY, constant(update.field().lexeme(), update.field()), update.field());
+    return null;
+  }
+
+  @Override
+  public Void visit(Expr.This the) {
+    loadVariable(the.keyword());
+    return null;
+  }
+
+  @Override
+  public Void visit(Expr.Super superCall) {
+    var keyword = superCall.keyword();
+    accessLocal(new Token(TokenType.THIS, "this", null, keyword.line(), keyword.column()), OpCode.GET_LOCAL, OpCode.GET_UPVALUE, OpCode.GET_GLOBAL);
+    loadVariable(keyword);
+    emitWithShort(OpCode.GET_SUPER, constant(superCall.method().lexeme(), superCall.method()), superCall.method());
+    return null;
+  }
+
+  // Functions
+
+  private void compileFunction(Token name, List<Token> params, List<Stmt> body, Prototype.Kind kind, String slotZero) {
+    var prototype = new Prototype(name.lexeme(), params.size(), kind);
+    var function = new FunctionState(current, prototype, slotZero);
+    current = function;
+    beginScope();
+    for (var param : params) {
+      addLocal(param.lexeme(), param);
+      markInitialized();
+    }
+    for (var statement : body) {
+      statement.accept(this);
+    }
+    emitReturn(name);
+    current = function.enclosing;
+
+    prototype.upvalueCount = function.upvalues.size();
+    emitWithShort(OpCode.CLOSURE, constant(prototype, name), name);
+    for (var upvalue : function.upvalues) {
+      chunk().write(upvalue.isLocal() ? 1 : 0, name);
+      chunk().write(upvalue.index(), name);
+    }
+  }
+
+  private void emitReturn(Token token) {
+    if (current.prototype.kind == Prototype.Kind.INITIALIZER) {
+      emit(OpCode.GET_LOCAL, token);
+      chunk().write(0, token);
+    } else {
+      emit(OpCode.NIL, token);
+    }
+    emit(OpCode.RETURN, token);
+  }
+
+  // Variables
+
+  private void declareVariable(Token name) {
+    if (current.scopeDepth > 0) {
+      addLocal(name.lexeme(), name);
+    }
+  }
+
+  private void defineVariable(Token name) {
+    if (current.scopeDepth > 0) {
+      markInitialized();
+      return;
+    }
+    emitWithShort(OpCode.DEFINE_GLOBAL, globalSlot(name), name);
+  }
+
+  private void addLocal(String name, Token token) {
+    if (current.locals.size() == MAX_LOCALS) {
+      throw new EvaluationError(token, "Too many local variables in function.");
+    }
+    // Locals only become visible once initialized, see markInitialized
+    current.locals.add(new Local(name, -1));
+  }
+
+  private void markInitialized() {
+    if (current.scopeDepth == 0) {
+      return;
+    }
+    current.locals.getLast().depth = current.scopeDepth;
+  }
+
+  private void loadVariable(Token name) {
+    var coordinates = report.locals().get(name);
+    if (coordinates != null && coordinates.isGlobal()) {
+      emitWithShort(OpCode.GET_GLOBAL, coordinates.id(), name);
+    } else {
+      accessLocal(name, OpCode.GET_LOCAL, OpCode.GET_UPVALUE, OpCode.GET_GLOBAL);
+    }
+  }
+
+  /** Emit an access to a variable the resolver found in an enclosing scope */
+  private void accessLocal(Token name, byte local, byte upvalue, byte global) {
+    var slot = resolveLocal(current, name.lexeme());
+    if (slot != -1) {
+      emit(local, name);
+      chunk().write(slot, name);
+      return;
+    }
+    var index = resolveUpvalue(current, name.lexeme());
+    if (index != -1) {
+      emit(upvalue, name);
+      chunk().write(index, name);
+      return;
+    }
+    emitWithShort(global, globalSlot(name), name);
+  }
+
+  private int globalSlot(Token name) {
+    var coordinates = report.locals().get(name);
+    return coordinates != null && coordinates.isGlobal() ? coordinates.id() : report.globals().slotFor(name.lexeme());
+  }
+
+  private static int resolveLocal(FunctionState function, String name) {
+    for (int i = function.locals.size() - 1; i >= 0; i--) {
+      var local = function.locals.get(i);
+      if (local.depth != -1 && local.name.equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int resolveUpvalue(FunctionState function, String name) {
+    if (function.enclosing == null) {
+      return -1;
+    }
+    var local = resolveLocal(function.enclosing, name);
+    if (local != -1) {
+      function.enclosing.locals.get(local).isCaptured = true;
+      return addUpvalue(function, local, true);
+    }
+    var upvalue = resolveUpvalue(function.enclosing, name);
+    if (upvalue != -1) {
+      return addUpvalue(function, upvalue, false);
+    }
+    return -1;
+  }
+
+  private static int addUpvalue(FunctionState function, int index, boolean isLocal) {
+    var reference = new UpvalueReference(index, isLocal);
+    var existing = function.upvalues.indexOf(reference);
+    if (existing != -1) {
+      return existing;
+    }
+    function.upvalues.add(reference);
+    return function.upvalues.size() - 1;
+  }
+
+  private void beginScope() {
+    current.scopeDepth++;
+  }
+
+  private void endScope(Token token) {
+    current.scopeDepth--;
+    discardLocals(current.scopeDepth, token);
+    var locals = current.locals;
+    while (!locals.isEmpty() && locals.getLast().depth > current.scopeDepth) {
+      locals.removeLast();
+    }
+  }
+
+  /** Pop (or close over) every local deeper than the given depth, without forgetting about them */
+  private void discardLocals(int depth, Token token) {
+    var locals = current.locals;
+    for (int i = locals.size() - 1; i >= 0 && locals.get(i).depth > depth; i--) {
+      emit(locals.get(i).isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP, token);
+    }
+  }
+
+  // Emitting code
+
+  private void compile(Expr expression) {
+    expression.accept(this);
+  }
+
+  private Chunk chunk() {
+    return current.prototype.chunk;
+  }
+
+  private void emit(byte opCode, Token token) {
+    chunk().write(opCode, token);
+  }
+
+  private void emitWithShort(byte opCode, int operand, Token token) {
+    emit(opCode, token);
+    chunk().writeShort(operand, token);
+  }
+
+  private int constant(Object value, Token token) {
+    var index = chunk().addConstant(value);
+    if (index > 0xffff) {
+      throw new EvaluationError(token, "Too many constants in one chunk.");
+    }
+    return index;
+  }
+
+  /** Emit a jump with a placeholder offset, returning where that offset is to be patched */
+  private int emitJump(byte opCode, Token token) {
+    emit(opCode, token);
+    chunk().writeShort(0xffff, token);
+    return chunk().count() - 2;
+  }
+
+  private void patchJump(int offset) {
+    var jump = chunk().count() - offset - 2;
+    if (jump > MAX_JUMP) {
+      throw new EvaluationError(chunk().tokenAt(offset), "Too much code to jump over.");
+    }
+    chunk().patchShort(offset, jump);
+  }
+
+  private void emitLoop(int loopStart, Token token) {
+    emit(OpCode.LOOP, token);
+    var offset = chunk().count() - loopStart + 2;
+    if (offset > MAX_JUMP) {
+      throw new EvaluationError(token, "Loop body too large.");
+    }
+    chunk().writeShort(offset, token);
+  }
+}
@@ -0,0 +1,72 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A function's worth of bytecode, the constants it refers to and the tokens it was compiled from */
+final class Chunk {
+  private byte[] code = new byte[64];
+  /** The token each byte of code was compiled from, for reporting errors */
+  private Token[] tokens = new Token[64];
+  private int count = 0;
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndexes = new HashMap<>();
+  private Object[] constantPool;
+
+  void write(int value, Token token) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      tokens = Arrays.copyOf(tokens, count * 2);
+    }
+    code[count] = (byte) value;
+    tokens[count] = token;
+    count++;
+  }
+
+  void writeShort(int value, Token token) {
+    write((value >> 8) & 0xff, token);
+    write(value & 0xff, token);
+  }
+
+  /** Overwrite a previously written <code>u16</code> operand (e.g. to patch a jump) */
+  void patchShort(int offset, int value) {
+    code[offset] = (byte) ((value >> 8) & 0xff);
+    code[offset + 1] = (byte) (value & 0xff);
+  }
+
+  /** The index of the value in the constant pool, reusing it if an equal value is already there */
+  int addConstant(Object value) {
+    // Prototypes are only ever equal to themselves, but strings and numbers are worth sharing
+    var index = constantIndexes.get(value);
+    if (index != null) {
+      return index;
+    }
+    constants.add(value);
+    constantIndexes.put(value, constants.size() - 1);
+    constantPool = null;
+    return constants.size() - 1;
+  }
+
+  int count() {
+    return count;
+  }
+
+  byte[] code() {
+    return code;
+  }
+
+  Object[] constants() {
+    if (constantPool == null) {
+      constantPool = constants.toArray();
+    }
+    return constantPool;
+  }
+
+  Token tokenAt(int offset) {
+    var token = offset >= 0 && offset < count ? tokens[offset] : null;
+    return token != null ? token : Token.artificial("<Unknown source location>");
+  }
+}
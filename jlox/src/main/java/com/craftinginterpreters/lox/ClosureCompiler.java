@@ -0,0 +1,725 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compiles a resolved program, once, into a tree of Java closures.
+ * Each closure is specialized on what the tree-walking {@link Interpreter} decides over and over again:
+ * the operator of an expression, the number of arguments of a call and the coordinates of a variable.
+ * Running the program is then a matter of direct calls, without any visitor double dispatch.
+ * The closures share the runtime of the {@link Interpreter}: its environments, functions, classes and instances.
+ * Operators and property reads which {@link TypeInference} found the types of are compiled without checking them.
+ */
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Code>, Stmt.Visitor<ClosureCompiler.Action> {
+  /** A compiled expression */
+  @FunctionalInterface
+  interface Code {
+    Object evaluate(EnvironmentOptimized environment);
+  }
+
+  /**
+   * A compiled statement, returning how it completed: {@link #NORMAL}, {@link #BREAK}, {@link #CONTINUE},
+   * or else by returning a value (with {@link #NIL} standing in for returning nil, and a {@link TailCall} for
+   * returning what a call returns).
+   */
+  @FunctionalInterface
+  interface Action {
+    Object execute(EnvironmentOptimized environment);
+  }
+
+  /** A compiled function body, along with the slots its parameters are defined in on every call */
+  record Body(int[] parameterSlots, Action action) {}
+
+  static final Object NORMAL = new Completion("normal");
+  static final Object BREAK = new Completion("break");
+  static final Object CONTINUE = new Completion("continue");
+  static final Object NIL = new Completion("return nil");
+
+  private record Completion(String name) {}
+
+  /** A call returned in tail position, for the function's caller to make in place of the function's frame */
+  record TailCall(LoxCallable callee, Object[] arguments) {}
+
+  /**
+   * Thrown on purpose for code which cannot be compiled (yet), so that what was going to run it interprets it instead.
+   * Anything else thrown while compiling is a bug
+   */
+  static final class CannotCompile extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    CannotCompile(String message) {
+      super(message);
+    }
+  }
+
+  private final Resolver.ResolutionReport report;
+  private final GlobalSlots slots;
+  private final PrintStream printTarget;
+  /** Handed to the functions compiled code calls, for those still being interpreted (if any) */
+  private final Interpreter runtime;
+  private final TypeInference.Types types;
+  /** Remembers what calls to pure functions returned, if asked to */
+  private final Memoizer memoizer;
+
+  ClosureCompiler(Resolver.ResolutionReport report, PrintStream printTarget) {
+    this(report, printTarget, null);
+  }
+
+  ClosureCompiler(Resolver.ResolutionReport report, PrintStream printTarget, Interpreter runtime) {
+    this(report, printTarget, runtime, TypeInference.Types.NONE);
+  }
+
+  ClosureCompiler(Resolver.ResolutionReport report, PrintStream printTarget, Interpreter runtime, TypeInference.Types types) {
+    this(report, printTarget, runtime, types, runtime == null ? null : runtime.memoizer());
+  }
+
+  ClosureCompiler(Resolver.ResolutionReport report, PrintStream printTarget, Interpreter runtime, TypeInference.Types types,
+                  Memoizer memoizer) {
+    this.report = report;
+    this.slots = report.globals();
+    this.printTarget = printTarget;
+    this.runtime = runtime;
+    this.types = types;
+    this.memoizer = memoizer;
+  }
+
+  /** Compile a program which has been fully resolved (function bodies included) */
+  static Action compile(List<Stmt> program, Resolver.ResolutionReport report, PrintStream printTarget) {
+    return compile(program, report, TypeInference.Types.NONE, printTarget);
+  }
+
+  /** Compile a fully resolved program, relying on the types inferred for it */
+  static Action compile(List<Stmt> program, Resolver.ResolutionReport report, TypeInference.Types types, PrintStream printTarget) {
+    return compile(program, report, types, null, printTarget);
+  }
+
+  /** Compile a fully resolved program, relying on its inferred types and memoizing its pure functions (if asked to) */
+  static Action compile(List<Stmt> program, Resolver.ResolutionReport report, TypeInference.Types types, Memoizer memoizer,
+                        PrintStream printTarget) {
+    return new ClosureCompiler(report, printTarget, null, types, memoizer).sequence(program);
+  }
+
+  /** The value a function returns, given how its body completed (other than by a {@link TailCall}) */
+  static Object returnedValue(Object completion) {
+    return completion instanceof Completion ? null : completion;
+  }
+
+  /** The value a function returns, making the call its body returned in tail position (if it did) here and now */
+  Object calledValue(Object completion) {
+    if (completion instanceof TailCall tailCall) {
+      return tailCall.callee().call(runtime, tailCall.arguments());
+    }
+    return returnedValue(completion);
+  }
+
+  // Statements
+
+  @Override
+  public Action visit(Stmt.Expression expression) {
+    var code = compile(expression.expression());
+    return environment -> {
+      code.evaluate(environment);
+      return NORMAL;
+    };
+  }
+
+  @Override
+  public Action visit(Stmt.Print print) {
+    var code = compile(print.expression());
+    return environment -> {
+      printTarget.println(Interpreter.stringify(code.evaluate(environment)));
+      return NORMAL;
+    };
+  }
+
+  @Override
+  public Action visit(Stmt.Var declaration) {
+    var initializer = declaration.initializer() == null ? null : compile(declaration.initializer());
+    return define(declaration.name(), initializer == null ? environment -> null : initializer);
+  }
+
+  @Override
+  public Action visit(Stmt.Block block) {
+    var statements = sequence(block.statements());
+    return environment -> statements.execute(new EnvironmentOptimized(environment, block));
+  }
+
+  @Override
+  public Action visit(Stmt.If anIf) {
+    var condition = compile(anIf.condition());
+    var whenTrue = anIf.whenTrue().accept(this);
+    if (anIf.whenFalse() == null) {
+      return environment -> Interpreter.isTruthy(condition.evaluate(environment)) ? whenTrue.execute(environment) : NORMAL;
+    }
+    var whenFalse = anIf.whenFalse().accept(this);
+    return environment -> Interpreter.isTruthy(condition.evaluate(environment))
+            ? whenTrue.execute(environment)
+            : whenFalse.execute(environment);
+  }
+
+  @Override
+  public Action visit(Stmt.While aWhile) {
+    var condition = compile(aWhile.condition());
+    var body = aWhile.body().accept(this);
+    return environment -> {
+      while (Interpreter.isTruthy(condition.evaluate(environment))) {
+        var completion = body.execute(environment);
+        if (completion == BREAK) {
+          break;
+        }
+        if (completion != NORMAL && completion != CONTINUE) {
+          return completion;
+        }
+      }
+      return NORMAL;
+    };
+  }
+
+  @Override
+  public Action visit(Stmt.LoopControl loopControl) {
+    var completion = switch (loopControl.type()) {
+      case BREAK -> BREAK;
+      case CONTINUE -> CONTINUE;
+    };
+    return environment -> completion;
+  }
+
+  @Override
+  public Action visit(Stmt.Function function) {
+    var body = body(function.params(), function.body());
+    return define(function.name(), environment -> new LoxFunction(function, environment, LoxFunction.Type.FUNCTION, body));
+  }
+
+  @Override
+  public Action visit(Stmt.Return returnStmt) {
+    if (returnStmt.value() == null) {
+      return environment -> NIL;
+    }
+    if (report.isTailCall(returnStmt) && returnStmt.value() instanceof Expr.Call call) {
+      var callee = compile(call.callee());
+      var paren = call.paren();
+      var arguments = call.arguments().stream().map(this::compile).toArray(Code[]::new);
+      return environment -> {
+        var function = callee.evaluate(environment);
+        var values = new Object[arguments.length];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = arguments[i].evaluate(environment);
+        }
+        return new TailCall(callable(function, paren, values.length), values);
+      };
+    }
+    var value = compile(returnStmt.value());
+    return environment -> {
+      var result = value.evaluate(environment);
+      return result == null ? NIL : result;
+    };
+  }
+
+  @Override
+  public Action visit(Stmt.ClassDeclaration classDeclaration) {
+    var name = classDeclaration.name();
+    var superclassName = classDeclaration.superclass();
+    var superclassCode = superclassName == null ? null : compile(superclassName);
+    var methods = methods(classDeclaration.methods());
+    var classMethods = methods(classDeclaration.classMethods());
+    var store = declaration(name);
+
+    return environment -> {
+      LoxClass superclass = null;
+      if (superclassCode != null) {
+        if (!(superclassCode.evaluate(environment) instanceof LoxClass loxClass)) {
+          throw new EvaluationError(superclassName.name(), "Superclass must be a class");
+        }
+        superclass = loxClass;
+      }
+
+      store.store(environment, null);
+      var methodScope = environment;
+      if (superclass != null) {
+        methodScope = new EnvironmentOptimized(environment, classDeclaration);
+        methodScope.defineAt(0, superclass);
+      }
+      var klass = new LoxClass(name.lexeme(), superclass, bind(methods, methodScope), bind(classMethods, methodScope));
+      klass.initialize(runtime);
+      store.store(environment, klass);
+      return NORMAL;
+    };
+  }
+
+  private record Method(Stmt.Function declaration, LoxFunction.Type type, Body body) {}
+
+  private List<Method> methods(List<Stmt.Function> declarations) {
+    return declarations.stream().map(declaration -> new Method(
+            declaration,
+            declaration.name().lexeme().equals(LoxClass.INIT) ? LoxFunction.Type.INITIALIZER : LoxFunction.Type.FUNCTION,
+            body(declaration.params(), declaration.body())
+    )).toList();
+  }
+
+  private static HashMap<String, LoxFunction> bind(List<Method> methods, Environment scope) {
+    var functions = new HashMap<String, LoxFunction>(methods.size());
+    for (var method : methods) {
+      functions.put(method.declaration.name().lexeme(), new LoxFunction(method.declaration, scope, method.type, method.body));
+    }
+    return functions;
+  }
+
+  // Expressions
+
+  @Override
+  public Code visit(Expr.Trinary trinary) {
+    var head = compile(trinary.head());
+    var left = compile(trinary.left());
+    var right = compile(trinary.right());
+    return environment -> Interpreter.isTruthy(head.evaluate(environment)) ? left.evaluate(environment) : right.evaluate(environment);
+  }
+
+  @Override
+  public Code visit(Expr.Binary binary) {
+    var left = compile(binary.left());
+    var right = compile(binary.right());
+    var operator = binary.operator();
+    if (types.isNumeric(binary)) {
+      var numeric = numeric(operator, left, right);
+      if (numeric != null) {
+        return numeric;
+      }
+    }
+    if (types.isConcatenation(binary)) {
+      return environment -> {
+        var l = left.evaluate(environment);
+        return Interpreter.stringify(l) + Interpreter.stringify(right.evaluate(environment));
+      };
+    }
+    return switch (operator.type()) {
+      case ELVIS -> environment -> {
+        var value = left.evaluate(environment);
+        return Interpreter.isTruthy(value) ? value : right.evaluate(environment);
+      };
+      case EQUAL_EQUAL -> environment -> Interpreter.isEquals(left.evaluate(environment), right.evaluate(environment));
+      case BANG_EQUAL -> environment -> !Interpreter.isEquals(left.evaluate(environment), right.evaluate(environment));
+      case PLUS -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a + b) : Interpreter.applyToNonNumbers(l, r, operator);
+      };
+      case MINUS -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a - b) : Interpreter.applyToNonNumbers(l, r, operator);
+      };
+      case STAR -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a * b) : Interpreter.applyToNonNumbers(l, r, operator);
+      };
+      case SLASH -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        if (l instanceof Double a && r instanceof Double b) {
+          if (b == 0) {
+            throw new EvaluationError(operator, "Division by zero");
+          }
+          return a / b;
+        }
+        return Interpreter.applyToNonNumbers(l, r, operator);
+      };
+      case GREATER -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a > b) : Interpreter.applyToNonNumbers(l, r, operator);
+      };
+      case GREATER_EQUAL -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a >= b) : Interpreter.applyToNonNumbers(l, r, operator);
+      };
+      case LESS -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a < b) : Interpreter.applyToNonNumbers(l, r, operator);
+      };
+      case LESS_EQUAL -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a <= b) : Interpreter.applyToNonNumbers(l, r, operator);
+      };
+      default -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        if (l instanceof Double && r instanceof Double) {
+          throw new EvaluationError(operator, "Do not know how to apply " + operator.type() + " to numbers");
+        }
+        return Interpreter.applyToNonNumbers(l, r, operator);
+      };
+    };
+  }
+
+  /** An operator applied to what are always numbers, as found by {@link TypeInference}, or null for the others */
+  private static Code numeric(Token operator, Code left, Code right) {
+    return switch (operator.type()) {
+      case PLUS -> environment -> (Double) left.evaluate(environment) + (Double) right.evaluate(environment);
+      case MINUS -> environment -> (Double) left.evaluate(environment) - (Double) right.evaluate(environment);
+      case STAR -> environment -> (Double) left.evaluate(environment) * (Double) right.evaluate(environment);
+      case SLASH -> environment -> {
+        var l = (Double) left.evaluate(environment);
+        var r = (Double) right.evaluate(environment);
+        if (r == 0) {
+          throw new EvaluationError(operator, "Division by zero");
+        }
+        return l / r;
+      };
+      case GREATER -> environment -> (Double) left.evaluate(environment) > (Double) right.evaluate(environment);
+      case GREATER_EQUAL -> environment -> (Double) left.evaluate(environment) >= (Double) right.evaluate(environment);
+      case LESS -> environment -> (Double) left.evaluate(environment) < (Double) right.evaluate(environment);
+      case LESS_EQUAL -> environment -> (Double) left.evaluate(environment) <= (Double) right.evaluate(environment);
+      default -> null;
+    };
+  }
+
+  @Override
+  public Code visit(Expr.Logical logical) {
+    var left = compile(logical.left());
+    var right = compile(logical.right());
+    if (logical.operator().type() == TokenType.OR) {
+      return environment -> {
+        var value = left.evaluate(environment);
+        return Interpreter.isTruthy(value) ? value : right.evaluate(environment);
+      };
+    }
+    return environment -> {
+      var value = left.evaluate(environment);
+      return !Interpreter.isTruthy(value) ? value : right.evaluate(environment);
+    };
+  }
+
+  @Override
+  public Code visit(Expr.Unary unary) {
+    var right = compile(unary.right());
+    var operator = unary.operator();
+    if (operator.type() == TokenType.MINUS && types.of(unary.right()).equals(TypeInference.Type.NUMBER)) {
+      return environment -> -(Double) right.evaluate(environment);
+    }
+    return switch (operator.type()) {
+      case MINUS -> environment -> {
+        if (right.evaluate(environment) instanceof Double value) {
+          return -value;
+        }
+        throw new EvaluationError(operator, "Operand must be a number");
+      };
+      case BANG -> environment -> !Interpreter.isTruthy(right.evaluate(environment));
+      default -> throw new EvaluationError(operator, "Do not know how to handle unary operator of type " + operator.type());
+    };
+  }
+
+  @Override
+  public Code visit(Expr.Grouping grouping) {
+    return compile(grouping.expression());
+  }
+
+  @Override
+  public Code visit(Expr.Literal literal) {
+    var value = literal.value();
+    return environment -> value;
+  }
+
+  @Override
+  public Code visit(Expr.Variable variable) {
+    return read(variable.name());
+  }
+
+  @Override
+  public Code visit(Expr.Assignment assignment) {
+    var value = compile(assignment.value());
+    return assign(assignment.name(), value);
+  }
+
+  @Override
+  public Code visit(Expr.Call call) {
+    var callee = compile(call.callee());
+    var paren = call.paren();
+    var arguments = call.arguments().stream().map(this::compile).toArray(Code[]::new);
+    if (memoizer != null) {
+      return environment -> {
+        var function = callee.evaluate(environment);
+        var values = new Object[arguments.length];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = arguments[i].evaluate(environment);
+        }
+        return memoizer.isPure(function)
+                ? memoizer.call(function, values, () -> invoke(function, paren, values))
+                : invoke(function, paren, values);
+      };
+    }
+    return switch (arguments.length) {
+      case 0 -> environment -> callable(callee.evaluate(environment), paren, 0).call0(runtime);
+      case 1 -> {
+        var first = arguments[0];
+        yield environment -> {
+          var function = callee.evaluate(environment);
+          var a = first.evaluate(environment);
+          return callable(function, paren, 1).call1(runtime, a);
+        };
+      }
+      case 2 -> {
+        var first = arguments[0];
+        var second = arguments[1];
+        yield environment -> {
+          var function = callee.evaluate(environment);
+          var a = first.evaluate(environment);
+          var b = second.evaluate(environment);
+          return callable(function, paren, 2).call2(runtime, a, b);
+        };
+      }
+      case 3 -> {
+        var first = arguments[0];
+        var second = arguments[1];
+        var third = arguments[2];
+        yield environment -> {
+          var function = callee.evaluate(environment);
+          var a = first.evaluate(environment);
+          var b = second.evaluate(environment);
+          var c = third.evaluate(environment);
+          return callable(function, paren, 3).call3(runtime, a, b, c);
+        };
+      }
+      case 4 -> {
+        var first = arguments[0];
+        var second = arguments[1];
+        var third = arguments[2];
+        var fourth = arguments[3];
+        yield environment -> {
+          var function = callee.evaluate(environment);
+          var a = first.evaluate(environment);
+          var b = second.evaluate(environment);
+          var c = third.evaluate(environment);
+          var d = fourth.evaluate(environment);
+          return callable(function, paren, 4).call4(runtime, a, b, c, d);
+        };
+      }
+      default -> environment -> {
+        var function = callee.evaluate(environment);
+        var values = new Object[arguments.length];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = arguments[i].evaluate(environment);
+        }
+        return invoke(function, paren, values);
+      };
+    };
+  }
+
+  Object invoke(Object callee, Token paren, Object[] arguments) {
+    return callable(callee, paren, arguments.length).call(runtime, arguments);
+  }
+
+  private static LoxCallable callable(Object callee, Token paren, int argumentCount) {
+    if (!(callee instanceof LoxCallable function)) {
+      throw new EvaluationError(paren, "Can only call functions and classes");
+    }
+    if (function.arity() != argumentCount) {
+      throw new EvaluationError(paren, "Expected " + function.arity() + " arguments but got " + argumentCount + ".");
+    }
+    return function;
+  }
+
+  @Override
+  public Code visit(Expr.Function function) {
+    var name = function.isAnonymous() ? function.keyword() : function.name();
+    var declaration = new Stmt.Function(name, function.arguments(), function.body());
+    var body = body(function.arguments(), function.body());
+    var isAnonymous = function.isAnonymous();
+    return environment -> {
+      // The name of the function is only visible to itself, from a scope of its own
+      var scope = new EnvironmentOptimized(environment, function);
+      var result = new LoxFunction(declaration, scope, LoxFunction.Type.FUNCTION, body);
+      if (!isAnonymous) {
+        scope.defineAt(0, result);
+      }
+      return result;
+    };
+  }
+
+  @Override
+  public Code visit(Expr.Select select) {
+    var target = compile(select.target());
+    var field = select.field();
+    if (types.isFieldRead(select)) {
+      return environment -> ((LoxInstance) target.evaluate(environment)).get(field);
+    }
+    return environment -> {
+      if (target.evaluate(environment) instanceof LoxInstance instance) {
+        var value = instance.get(field);
+        if (value instanceof LoxFunction function && function.isGetter()) {
+          return function.call0(runtime);
+        }
+        return value;
+      }
+      throw new EvaluationError(field, "Only instances have properties");
+    };
+  }
+
+  @Override
+  public Code visit(Expr.Update update) {
+    var target = compile(update.target());
+    var value = compile(update.value());
+    var field = update.field();
+    return environment -> {
+      var object = target.evaluate(environment);
+      if (object instanceof LoxInstance instance) {
+        var result = value.evaluate(environment);
+        instance.set(field, result);
+        return result;
+      }
+      throw new EvaluationError(field, "Only instances have fields. Attempting to set " + field + " on " + object);
+    };
+  }
+
+  @Override
+  public Code visit(Expr.This the) {
+    return read(the.keyword());
+  }
+
+  @Override
+  public Code visit(Expr.Super superCall) {
+    var coordinates = report.locals().get(superCall.keyword());
+    var distance = coordinates.scope();
+    var method = superCall.method();
+    var cache = new LoxClass.SuperMethodCache();
+    return environment -> {
+      var scope = environment.ancestor(distance - 1);
+      var superclass = (LoxClass) scope.enclosing().getAt(0);
+      // The scope binding `this` sits directly inside the one holding `super`
+      return cache.find(superclass, method).bind((LoxInstance) scope.receiver());
+    };
+  }
+
+  // Variables, specialized on where the resolver found them
+
+  /** Where the resolver found a local variable, or null if the name refers to a global one */
+  Resolver.Coordinates local(Token name) {
+    var coordinates = report.locals().get(name);
+    return coordinates == null || coordinates.isGlobal() ? null : coordinates;
+  }
+
+  private Code read(Token name) {
+    var coordinates = report.locals().get(name);
+    if (coordinates == null || coordinates.isGlobal()) {
+      var slot = coordinates == null ? slots.slotFor(name.lexeme()) : coordinates.id();
+      return environment -> {
+        var globals = environment.globals();
+        var value = globals.valueAt(slot);
+        return value != GlobalValues.UNDEFINED ? value : globals.get(slot, name);
+      };
+    }
+    var id = coordinates.id();
+    return switch (coordinates.scope()) {
+      case 0 -> environment -> environment.getAt(id);
+      case 1 -> environment -> environment.enclosing().getAt(id);
+      case 2 -> environment -> environment.enclosing().enclosing().getAt(id);
+      default -> {
+        var distance = coordinates.scope();
+        yield environment -> environment.ancestor(distance).getAt(id);
+      }
+    };
+  }
+
+  private Code assign(Token name, Code value) {
+    var coordinates = report.locals().get(name);
+    if (coordinates == null || coordinates.isGlobal()) {
+      var slot = coordinates == null ? slots.slotFor(name.lexeme()) : coordinates.id();
+      return environment -> {
+        var result = value.evaluate(environment);
+        environment.globals().assign(slot, name, result);
+        return result;
+      };
+    }
+    var id = coordinates.id();
+    var distance = coordinates.scope();
+    if (distance == 0) {
+      return environment -> {
+        var result = value.evaluate(environment);
+        environment.defineAt(id, result);
+        return result;
+      };
+    }
+    return environment -> {
+      var result = value.evaluate(environment);
+      environment.ancestor(distance).defineAt(id, result);
+      return result;
+    };
+  }
+
+  @FunctionalInterface
+  private interface Store {
+    void store(EnvironmentOptimized environment, Object value);
+  }
+
+  /** Declarations always define a slot of the current scope (or a global one, at the top level) */
+  private Store declaration(Token name) {
+    var coordinates = report.locals().get(name);
+    if (coordinates == null || coordinates.isGlobal()) {
+      var slot = coordinates == null ? slots.slotFor(name.lexeme()) : coordinates.id();
+      return (environment, value) -> environment.globals().define(slot, value);
+    }
+    var id = coordinates.id();
+    return (environment, value) -> environment.defineAt(id, value);
+  }
+
+  private Action define(Token name, Code value) {
+    var store = declaration(name);
+    return environment -> {
+      store.store(environment, value.evaluate(environment));
+      return NORMAL;
+    };
+  }
+
+  // Compilation helpers
+
+  Code compile(Expr expression) {
+    return expression.accept(this);
+  }
+
+  /** Compile the body of a function, which has been fully resolved (nested functions included) */
+  Body compile(Stmt.Function declaration) {
+    return body(declaration.params(), declaration.body());
+  }
+
+  private Body body(List<Token> params, List<Stmt> statements) {
+    var parameterSlots = new int[params.size()];
+    for (int i = 0; i < parameterSlots.length; i++) {
+      var coordinates = report.locals().get(params.get(i));
+      if (coordinates == null) {
+        throw new CannotCompile("Parameter '" + params.get(i).lexeme() + "' has not been resolved.");
+      }
+      parameterSlots[i] = coordinates.id();
+    }
+    return new Body(parameterSlots, sequence(statements));
+  }
+
+  Action sequence(List<Stmt> statements) {
+    var actions = statements.stream().map(statement -> statement.accept(this)).toArray(Action[]::new);
+    return switch (actions.length) {
+      case 0 -> environment -> NORMAL;
+      case 1 -> actions[0];
+      case 2 -> {
+        var first = actions[0];
+        var second = actions[1];
+        yield environment -> {
+          var completion = first.execute(environment);
+          return completion != NORMAL ? completion : second.execute(environment);
+        };
+      }
+      default -> environment -> {
+        for (var action : actions) {
+          var completion = action.execute(environment);
+          if (completion != NORMAL) {
+            return completion;
+          }
+        }
+        return NORMAL;
+      };
+    };
+  }
+}
@@ -0,0 +1,627 @@
+package com.craftinginterpreters.lox;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * A script compiled ahead of time: its program as resolved, the names of its global slots (in slot order)
+ * and the options to run it with. {@link #write} packs it into a runnable jar along with the classes of the
+ * interpreter, whose {@link #main} then runs it without lexing, parsing or resolving anything.
+ * <p>
+ * The script is kept in a compact binary form of its own, which reads back far faster than Java serialization
+ * would: every node is a tag followed by its fields, and every token is written out once, then referred to by index.
+ */
+record CompiledScript(Program program, StatsCountingLocals locals, List<String> globals, Set<Stmt.Return> tailCalls,
+                      Lox.Options options) {
+  /** Where the script is kept in the jar */
+  static final String ENTRY = "com/craftinginterpreters/lox/script.bin";
+  private static final String PACKAGE = "com/craftinginterpreters/lox/";
+  private static final int MAGIC = 0x4C4F5833;
+
+  /** A program which has been resolved strictly, so that none of its function bodies are left to resolve */
+  static CompiledScript of(Program program, Resolver.ResolutionReport report, Lox.Options options) {
+    return new CompiledScript(program, report.locals(), report.globals().names(), report.tailCalls(), options);
+  }
+
+  public static void main(String[] args) throws IOException {
+    try (var input = CompiledScript.class.getClassLoader().getResourceAsStream(ENTRY)) {
+      if (input == null) {
+        System.err.println("No script was compiled into this jar");
+        System.exit(66);
+      }
+      Lox.runCompiled(read(input));
+    }
+  }
+
+  /** Run the script, with the global slots it was resolved against */
+  void run(PrintStream printTarget) {
+    var slots = new GlobalSlots();
+    for (int slot = 0; slot < globals.size(); slot++) {
+      if (slots.slotFor(globals.get(slot)) != slot) {
+        throw new IllegalStateException("Global '" + globals.get(slot) + "' no longer has slot " + slot);
+      }
+    }
+    var report = new Resolver.ResolutionReport(List.of(), locals, slots, tailCalls);
+    options.engine().run(program, report, null, printTarget, options);
+  }
+
+  /** Write a runnable jar holding the script and every class of the interpreter */
+  void write(Path jar) throws IOException {
+    var manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, CompiledScript.class.getName());
+    try (var output = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(jar)), manifest)) {
+      copyRuntime(output);
+      output.putNextEntry(new JarEntry(ENTRY));
+      writeTo(output);
+      output.closeEntry();
+    }
+  }
+
+  private static String profile(String written) {
+    return written.isEmpty() ? null : written;
+  }
+
+  /** Some statements in the form they are compiled to, which is the same for the same statements */
+  static byte[] bytes(List<? extends Stmt> statements) {
+    var output = new ByteArrayOutputStream();
+    try {
+      var data = new DataOutputStream(output);
+      new Writer(data, Set.of()).statements(statements);
+      data.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return output.toByteArray();
+  }
+
+  void writeTo(OutputStream output) throws IOException {
+    var data = new DataOutputStream(new BufferedOutputStream(output));
+    var writer = new Writer(data, tailCalls);
+    data.writeInt(MAGIC);
+    data.writeUTF(options.engine().name());
+    data.writeBoolean(options.jit());
+    data.writeBoolean(options.stats());
+    data.writeInt(options.maxDepth());
+    data.writeInt(options.memoize());
+    data.writeUTF(options.profile() == null ? "" : options.profile());
+    data.writeInt(globals.size());
+    for (var name : globals) {
+      writer.string(name);
+    }
+    writer.statements(program);
+    data.writeInt(locals.size());
+    for (var local : locals.entrySet()) {
+      writer.token(local.getKey());
+      data.writeInt(local.getValue().scope());
+      data.writeInt(local.getValue().id());
+    }
+    data.flush();
+  }
+
+  static CompiledScript read(InputStream input) throws IOException {
+    var data = new DataInputStream(new BufferedInputStream(input));
+    var reader = new Reader(data);
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a compiled Lox script");
+    }
+    var engine = Engine.parse(data.readUTF()).orElseThrow(() -> new IOException("Unknown engine"));
+    var jit = data.readBoolean();
+    var stats = data.readBoolean();
+    var maxDepth = data.readInt();
+    var options = new Lox.Options("eval", Lox.Options.Resolution.STRICT, engine, jit, stats, maxDepth,
+            Lox.Options.DEFAULT.optimization(), Lox.Options.DEFAULT.inlineBudget(), data.readInt(), profile(data.readUTF()));
+    var globals = new ArrayList<String>();
+    for (int i = data.readInt(); i > 0; i--) {
+      globals.add(reader.string());
+    }
+    var program = new Program();
+    program.addAll(reader.statements());
+    var locals = new StatsCountingLocals();
+    for (int i = data.readInt(); i > 0; i--) {
+      locals.put(reader.token(), new Resolver.Coordinates(data.readInt(), data.readInt()));
+    }
+    return new CompiledScript(program, locals, List.copyOf(globals), reader.tailCalls, options);
+  }
+
+  // Tags, one per kind of node, with 0 for a missing (optional) node
+
+  private static final byte NONE = 0;
+  private static final byte TRINARY = 1, BINARY = 2, LOGICAL = 3, UNARY = 4, GROUPING = 5, LITERAL = 6, VARIABLE = 7,
+          ASSIGNMENT = 8, CALL = 9, FUNCTION_EXPRESSION = 10, SELECT = 11, UPDATE = 12, THIS = 13, SUPER = 14;
+  private static final byte EXPRESSION = 1, PRINT = 2, VAR = 3, BLOCK = 4, IF = 5, WHILE = 6, LOOP_CONTROL = 7,
+          FUNCTION = 8, RETURN = 9, CLASS = 10;
+  private static final byte NIL = 0, TRUE = 1, FALSE = 2, NUMBER = 3, STRING = 4;
+
+  private static final class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final DataOutputStream data;
+    private final Map<Token, Integer> tokens = new IdentityHashMap<>();
+    private final Set<Stmt.Return> tailCalls;
+
+    private Writer(DataOutputStream data, Set<Stmt.Return> tailCalls) {
+      this.data = data;
+      this.tailCalls = tailCalls;
+    }
+
+    /** A token is written out in full the first time, and by index from then on (or as -1 if missing) */
+    void token(Token token) throws IOException {
+      if (token == null) {
+        data.writeInt(-1);
+        return;
+      }
+      var index = tokens.get(token);
+      if (index != null) {
+        data.writeInt(index);
+        return;
+      }
+      data.writeInt(tokens.size());
+      tokens.put(token, tokens.size());
+      data.writeByte(token.type().ordinal());
+      string(token.lexeme());
+      value(token.literal());
+      data.writeInt(token.line());
+      data.writeInt(token.column());
+    }
+
+    private void tokens(List<Token> tokens) throws IOException {
+      data.writeInt(tokens.size());
+      for (var token : tokens) {
+        token(token);
+      }
+    }
+
+    void string(String string) throws IOException {
+      var bytes = string.getBytes(StandardCharsets.UTF_8);
+      data.writeInt(bytes.length);
+      data.write(bytes);
+    }
+
+    private void value(Object value) throws IOException {
+      switch (value) {
+        case null -> data.writeByte(NIL);
+        case Boolean b -> data.writeByte(b ? TRUE : FALSE);
+        case Double d -> {
+          data.writeByte(NUMBER);
+          data.writeDouble(d);
+        }
+        case String s -> {
+          data.writeByte(STRING);
+          string(s);
+        }
+        default -> throw new IllegalArgumentException("Cannot compile the literal " + value);
+      }
+    }
+
+    private void expression(Expr expression) {
+      if (expression == null) {
+        tag(NONE);
+      } else {
+        expression.accept(this);
+      }
+    }
+
+    private void expressions(List<Expr> expressions) throws IOException {
+      data.writeInt(expressions.size());
+      expressions.forEach(this::expression);
+    }
+
+    private void statement(Stmt statement) {
+      if (statement == null) {
+        tag(NONE);
+      } else {
+        statement.accept(this);
+      }
+    }
+
+    void statements(List<? extends Stmt> statements) throws IOException {
+      data.writeInt(statements.size());
+      statements.forEach(this::statement);
+    }
+
+    private void tag(byte tag) {
+      try {
+        data.writeByte(tag);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /** Write the fields of a node, which the visitors cannot throw the checked exceptions of */
+    private Void fields(Fields fields) {
+      try {
+        fields.write();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return null;
+    }
+
+    @FunctionalInterface
+    private interface Fields {
+      void write() throws IOException;
+    }
+
+    @Override
+    public Void visit(Expr.Trinary trinary) {
+      tag(TRINARY);
+      return fields(() -> {
+        expression(trinary.head());
+        token(trinary.firstOp());
+        expression(trinary.left());
+        token(trinary.secondOp());
+        expression(trinary.right());
+      });
+    }
+
+    @Override
+    public Void visit(Expr.Binary binary) {
+      tag(BINARY);
+      return fields(() -> {
+        expression(binary.left());
+        token(binary.operator());
+        expression(binary.right());
+      });
+    }
+
+    @Override
+    public Void visit(Expr.Logical logical) {
+      tag(LOGICAL);
+      return fields(() -> {
+        expression(logical.left());
+        token(logical.operator());
+        expression(logical.right());
+      });
+    }
+
+    @Override
+    public Void visit(Expr.Unary unary) {
+      tag(UNARY);
+      return fields(() -> {
+        token(unary.operator());
+        expression(unary.right());
+      });
+    }
+
+    @Override
+    public Void visit(Expr.Grouping grouping) {
+      tag(GROUPING);
+      expression(grouping.expression());
+      return null;
+    }
+
+    @Override
+    public Void visit(Expr.Literal literal) {
+      tag(LITERAL);
+      return fields(() -> value(literal.value()));
+    }
+
+    @Override
+    public Void visit(Expr.Variable variable) {
+      tag(VARIABLE);
+      return fields(() -> token(variable.name()));
+    }
+
+    @Override
+    public Void visit(Expr.Assignment assignment) {
+      tag(ASSIGNMENT);
+      return fields(() -> {
+        token(assignment.name());
+        expression(assignment.value());
+      });
+    }
+
+    @Override
+    public Void visit(Expr.Call call) {
+      tag(CALL);
+      return fields(() -> {
+        expression(call.callee());
+        token(call.paren());
+        expressions(call.arguments());
+      });
+    }
+
+    @Override
+    public Void visit(Expr.Function function) {
+      tag(FUNCTION_EXPRESSION);
+      return fields(() -> {
+        token(function.keyword());
+        token(function.name());
+        tokens(function.arguments());
+        statements(function.body());
+        data.writeBoolean(function.isAnonymous());
+      });
+    }
+
+    @Override
+    public Void visit(Expr.Select select) {
+      tag(SELECT);
+      return fields(() -> {
+        expression(select.target());
+        token(select.field());
+      });
+    }
+
+    @Override
+    public Void visit(Expr.Update update) {
+      tag(UPDATE);
+      return fields(() -> {
+        expression(update.target());
+        token(update.field());
+        expression(update.value());
+      });
+    }
+
+    @Override
+    public Void visit(Expr.This the) {
+      tag(THIS);
+      return fields(() -> token(the.keyword()));
+    }
+
+    @Override
+    public Void visit(Expr.Super superCall) {
+      tag(SUPER);
+      return fields(() -> {
+        token(superCall.keyword());
+        token(superCall.method());
+      });
+    }
+
+    @Override
+    public Void visit(Stmt.Expression expression) {
+      tag(EXPRESSION);
+      expression(expression.expression());
+      return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Print print) {
+      tag(PRINT);
+      expression(print.expression());
+      return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Var declaration) {
+      tag(VAR);
+      return fields(() -> {
+        token(declaration.name());
+        expression(declaration.initializer());
+      });
+    }
+
+    @Override
+    public Void visit(Stmt.Block block) {
+      tag(BLOCK);
+      return fields(() -> statements(block.statements()));
+    }
+
+    @Override
+    public Void visit(Stmt.If anIf) {
+      tag(IF);
+      expression(anIf.condition());
+      statement(anIf.whenTrue());
+      statement(anIf.whenFalse());
+      return null;
+    }
+
+    @Override
+    public Void visit(Stmt.While aWhile) {
+      tag(WHILE);
+      expression(aWhile.condition());
+      statement(aWhile.body());
+      return null;
+    }
+
+    @Override
+    public Void visit(Stmt.LoopControl loopControl) {
+      tag(LOOP_CONTROL);
+      return fields(() -> {
+        token(loopControl.token());
+        data.writeByte(loopControl.type().ordinal());
+      });
+    }
+
+    @Override
+    public Void visit(Stmt.Function function) {
+      tag(FUNCTION);
+      return fields(() -> function(function));
+    }
+
+    private void function(Stmt.Function function) throws IOException {
+      token(function.name());
+      tokens(function.params());
+      statements(function.body());
+      data.writeByte(function.type().ordinal());
+    }
+
+    @Override
+    public Void visit(Stmt.Return returnStmt) {
+      tag(RETURN);
+      return fields(() -> {
+        token(returnStmt.keyword());
+        expression(returnStmt.value());
+        data.writeBoolean(tailCalls.contains(returnStmt));
+      });
+    }
+
+    @Override
+    public Void visit(Stmt.ClassDeclaration classDeclaration) {
+      tag(CLASS);
+      return fields(() -> {
+        token(classDeclaration.name());
+        expression(classDeclaration.superclass());
+        data.writeInt(classDeclaration.methods().size());
+        for (var method : classDeclaration.methods()) {
+          function(method);
+        }
+        data.writeInt(classDeclaration.classMethods().size());
+        for (var method : classDeclaration.classMethods()) {
+          function(method);
+        }
+      });
+    }
+  }
+
+  private static final class Reader {
+    private final DataInputStream data;
+    private final List<Token> tokens = new ArrayList<>();
+    private final Set<Stmt.Return> tailCalls = Resolver.ResolutionReport.tailCallSet();
+
+    private Reader(DataInputStream data) {
+      this.data = data;
+    }
+
+    Token token() throws IOException {
+      var index = data.readInt();
+      if (index < 0) {
+        return null;
+      }
+      if (index < tokens.size()) {
+        return tokens.get(index);
+      }
+      var type = TokenType.values()[data.readByte()];
+      var token = new Token(type, string(), value(), data.readInt(), data.readInt());
+      tokens.add(token);
+      return token;
+    }
+
+    private List<Token> tokens() throws IOException {
+      var tokens = new ArrayList<Token>();
+      for (int i = data.readInt(); i > 0; i--) {
+        tokens.add(token());
+      }
+      return tokens;
+    }
+
+    String string() throws IOException {
+      return new String(data.readNBytes(data.readInt()), StandardCharsets.UTF_8);
+    }
+
+    private Object value() throws IOException {
+      return switch (data.readByte()) {
+        case NIL -> null;
+        case TRUE -> true;
+        case FALSE -> false;
+        case NUMBER -> data.readDouble();
+        case STRING -> string();
+        default -> throw new IOException("Unknown kind of literal");
+      };
+    }
+
+    private Expr expression() throws IOException {
+      return switch (data.readByte()) {
+        case NONE -> null;
+        case TRINARY -> new Expr.Trinary(expression(), token(), expression(), token(), expression());
+        case BINARY -> new Expr.Binary(expression(), token(), expression());
+        case LOGICAL -> new Expr.Logical(expression(), token(), expression());
+        case UNARY -> new Expr.Unary(token(), expression());
+        case GROUPING -> new Expr.Grouping(expression());
+        case LITERAL -> new Expr.Literal(value());
+        case VARIABLE -> new Expr.Variable(token());
+        case ASSIGNMENT -> new Expr.Assignment(token(), expression());
+        case CALL -> new Expr.Call(expression(), token(), expressions());
+        case FUNCTION_EXPRESSION -> new Expr.Function(token(), token(), tokens(), statements(), data.readBoolean());
+        case SELECT -> new Expr.Select(expression(), token());
+        case UPDATE -> new Expr.Update(expression(), token(), expression());
+        case THIS -> new Expr.This(token());
+        case SUPER -> new Expr.Super(token(), token());
+        default -> throw new IOException("Unknown kind of expression");
+      };
+    }
+
+    private List<Expr> expressions() throws IOException {
+      var expressions = new ArrayList<Expr>();
+      for (int i = data.readInt(); i > 0; i--) {
+        expressions.add(expression());
+      }
+      return expressions;
+    }
+
+    private Stmt statement() throws IOException {
+      return switch (data.readByte()) {
+        case NONE -> null;
+        case EXPRESSION -> new Stmt.Expression(expression());
+        case PRINT -> new Stmt.Print(expression());
+        case VAR -> new Stmt.Var(token(), expression());
+        case BLOCK -> new Stmt.Block(statements());
+        case IF -> new Stmt.If(expression(), statement(), statement());
+        case WHILE -> new Stmt.While(expression(), statement());
+        case LOOP_CONTROL -> new Stmt.LoopControl(token(), Stmt.LoopControl.Type.values()[data.readByte()]);
+        case FUNCTION -> function();
+        case RETURN -> returnStatement(token(), expression(), data.readBoolean());
+        case CLASS -> new Stmt.ClassDeclaration(token(), (Expr.Variable) expression(), functions(), functions());
+        default -> throw new IOException("Unknown kind of statement");
+      };
+    }
+
+    List<Stmt> statements() throws IOException {
+      var statements = new ArrayList<Stmt>();
+      for (int i = data.readInt(); i > 0; i--) {
+        statements.add(statement());
+      }
+      return statements;
+    }
+
+    private Stmt.Function function() throws IOException {
+      return new Stmt.Function(token(), tokens(), statements(), Stmt.Function.Type.values()[data.readByte()]);
+    }
+
+    private Stmt.Return returnStatement(Token keyword, Expr value, boolean tailCall) {
+      var returnStmt = new Stmt.Return(keyword, value);
+      if (tailCall) {
+        tailCalls.add(returnStmt);
+      }
+      return returnStmt;
+    }
+
+    private List<Stmt.Function> functions() throws IOException {
+      var functions = new ArrayList<Stmt.Function>();
+      for (int i = data.readInt(); i > 0; i--) {
+        functions.add(function());
+      }
+      return functions;
+    }
+  }
+
+  /** Copy the interpreter's classes from wherever they were loaded, be that a directory or a jar */
+  private static void copyRuntime(JarOutputStream output) throws IOException {
+    Path location;
+    try {
+      location = Path.of(CompiledScript.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    } catch (URISyntaxException e) {
+      throw new IOException("Cannot locate the interpreter's classes", e);
+    }
+    if (Files.isDirectory(location)) {
+      try (var classes = Files.list(location.resolve(PACKAGE))) {
+        for (var file : classes.filter(path -> path.toString().endsWith(".class")).sorted().toList()) {
+          output.putNextEntry(new JarEntry(PACKAGE + file.getFileName()));
+          Files.copy(file, output);
+          output.closeEntry();
+        }
+      }
+      return;
+    }
+    try (var jar = new JarInputStream(new BufferedInputStream(Files.newInputStream(location)))) {
+      for (var entry = jar.getNextJarEntry(); entry != null; entry = jar.getNextJarEntry()) {
+        if (entry.getName().startsWith(PACKAGE) && entry.getName().endsWith(".class")) {
+          output.putNextEntry(new JarEntry(entry.getName()));
+          jar.transferTo(output);
+          output.closeEntry();
+        }
+      }
+    }
+  }
+}
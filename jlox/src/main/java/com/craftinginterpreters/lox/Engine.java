@@ -0,0 +1,100 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/** The ways a program can be executed, once it has been parsed and resolved */
+enum Engine {
+  /** Walk the tree, looking every variable up by name */
+  SIMPLE,
+  /**
+   * Walk the tree, looking variables up by the coordinates the resolver found for them,
+   * and (unless turned off) compiling the functions it runs most as {@link #NODES} would
+   */
+  TREE,
+  /** Compile the tree, once, into Java closures specialized on each node and the types inferred for it, and run those */
+  CLOSURE,
+  /** Compile like {@link #CLOSURE}, but with operators as nodes which specialize themselves on the types they see */
+  NODES,
+  /**
+   * Compile the tree to bytecode and run that on a stack-based virtual machine,
+   * whose calls are as deep as {@link Lox.Options#maxDepth} allows rather than the Java stack
+   */
+  BYTECODE;
+
+  static final Engine DEFAULT = TREE;
+
+  /** Whether function bodies can be left to be resolved on their first call */
+  boolean resolvesLazily() {
+    return this == SIMPLE || this == TREE;
+  }
+
+  /**
+   * Run a program which has been resolved into the given report.
+   * The lazy resolver, if any, resolves the function bodies the report is still missing.
+   */
+  void run(Program program, Resolver.ResolutionReport report, Resolver lazyResolver, PrintStream printTarget) {
+    run(program, report, lazyResolver, printTarget, Lox.Options.DEFAULT);
+  }
+
+  /**
+   * Run a program, tiering up hot functions (when walking the tree), memoizing pure ones and printing stats as the
+   * options ask. The bytecode engine does not memoize: its calls do not go through {@link LoxFunction}s.
+   * Tiering starts from the profile the options name, if it is of this program, and leaves its own there once the
+   * program has run. That needs the program to be resolved up front, which compiling a function before it has been
+   * called relies on.
+   */
+  void run(Program program, Resolver.ResolutionReport report, Resolver lazyResolver, PrintStream printTarget, Lox.Options options) {
+    var memoizer = options.memoize() > 0 && this != BYTECODE ? Memoizer.of(program, report, options.memoize()) : null;
+    switch (this) {
+      case SIMPLE -> {
+        var interpreter = new Interpreter(new EnvironmentSimple(new EnvironmentGlobal()), printTarget, null, null, memoizer,
+                report.tailCalls());
+        interpreter.interpret(program);
+        if (options.stats()) {
+          interpreter.printStats();
+        }
+      }
+      case TREE -> {
+        var tiering = options.jit() ? new Tiering(report, printTarget) : null;
+        var profile = tiering != null && lazyResolver == null && options.profile() != null
+                ? PersistedProfile.of(Path.of(options.profile()), program)
+                : null;
+        if (profile != null) {
+          profile.load(tiering);
+        }
+        var interpreter = new Interpreter(new EnvironmentOptimized(report.locals(), report.globals()), printTarget, lazyResolver, tiering, memoizer,
+                report.tailCalls());
+        try {
+          interpreter.interpret(program);
+        } finally {
+          if (profile != null) {
+            profile.save(tiering);
+          }
+        }
+        if (options.stats()) {
+          interpreter.printStats();
+        }
+      }
+      case CLOSURE -> ClosureCompiler.compile(program, report, TypeInference.infer(program, report), memoizer, printTarget)
+              .execute(new EnvironmentOptimized(report.locals(), report.globals()));
+      case NODES -> SpecializingCompiler.compile(program, report, memoizer, printTarget)
+              .execute(new EnvironmentOptimized(report.locals(), report.globals()));
+      case BYTECODE -> new VirtualMachine(report.globals(), printTarget, options.maxDepth())
+              .interpret(BytecodeCompiler.compile(program, report));
+    }
+    if (options.stats() && memoizer != null) {
+      memoizer.printStats(printTarget);
+    }
+  }
+
+  static Optional<Engine> parse(String name) {
+    for (var engine : values()) {
+      if (engine.name().equalsIgnoreCase(name)) {
+        return Optional.of(engine);
+      }
+    }
+    return Optional.empty();
+  }
+}
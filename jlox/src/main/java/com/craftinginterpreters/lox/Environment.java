@@ -13,14 +13,23 @@ abstract class Environment {
   /** Attempt to assign a value to a previously declared variable slot in an optimizable way */
   abstract void assign(Token name, Object value);
 
+  /** Define the parameter at an index of the function whose call this scope was pushed for */
+  abstract void defineParameter(int index, Token name, Object value);
+
   /** Globally define a name in a way that we're not going to optimize yet */
   abstract void define(String name, Object value);
 
-  /** Exists only for a hack to get the superclass */
-  abstract Environment getEnvironmentOf(Token name);
+  /** Bind {@code this} in a scope created for the purpose by {@link LoxFunction#bind} */
+  abstract void defineReceiver(Object receiver);
+
+  /** The object {@link LoxFunction#bind} bound to {@code this} in this scope */
+  abstract Object receiver();
 
-  /** Exists only for a hack to get the superclass */
-  abstract Environment parent();
+  /**
+   * The object bound to {@code this} for the method enclosing a {@code super} expression.
+   * The binding scope always sits directly inside the scope holding the superclass.
+   */
+  abstract Object receiverOf(Token superKeyword);
 
   /** Implementations should track some stats */
   abstract void printStats();
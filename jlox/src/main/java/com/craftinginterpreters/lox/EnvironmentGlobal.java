@@ -1,10 +1,12 @@
 package com.craftinginterpreters.lox;
 
 import java.util.List;
+import java.util.Map;
 
 public class EnvironmentGlobal extends EnvironmentSimple {
-  public EnvironmentGlobal() {
-    define("clock", new LoxCallable() {
+  /** The functions every Lox program starts out with, by name */
+  static final Map<String, LoxCallable> NATIVES = Map.of(
+    "clock", new LoxCallable() {
       @Override
       public Object call(Interpreter interpreter, List<Object> arguments) {
         return System.currentTimeMillis() / 1_000d;
@@ -19,6 +21,10 @@ public class EnvironmentGlobal extends EnvironmentSimple {
       public String toString() {
         return "<native fn>";
       }
-    });
+    }
+  );
+
+  public EnvironmentGlobal() {
+    NATIVES.forEach(this::define);
   }
 }
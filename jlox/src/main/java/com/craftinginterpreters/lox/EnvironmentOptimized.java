@@ -1,21 +1,36 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.stream.IntStream;
 
 final class EnvironmentOptimized extends Environment {
+  /** Stands in {@link #values} for a slot whose value is an unboxed number, held in {@link #doubles} instead */
+  private static final Object UNBOXED = new Object();
+
   private final Map<Token, Resolver.Coordinates> locals;
-  private final List<Object> values = new ArrayList<>();
+  private static final Object[] NO_VALUES = new Object[0];
+
+  /** The slots defined so far, the first {@link #size} of them */
+  private Object[] values = NO_VALUES;
+  private int size;
+  /**
+   * Allocated by the first slot to be defined {@link #defineDoubleAt unboxed}, as long as {@link #values} and only
+   * grown along with it, so that a slot going back and forth between boxed and unboxed never allocates
+   */
+  private double[] doubles;
   private final EnvironmentOptimized enclosing;
   private final EnvironmentOptimized top;
-  private final Environment global;
+  private final GlobalSlots slots;
+  /** The values of the globals, which belong to the run (and so are only held by the top-level scope) */
+  private final GlobalValues globals;
   private final Stats stats;
   private final Object identifier;
 
-  EnvironmentOptimized(Map<Token, Resolver.Coordinates> locals) {
+  EnvironmentOptimized(Map<Token, Resolver.Coordinates> locals, GlobalSlots slots) {
     enclosing = null;
-    global = new EnvironmentGlobal();
+    this.slots = slots;
+    this.globals = new GlobalValues(slots);
     top = this;
     stats = new Stats();
     this.locals = locals;
@@ -27,7 +42,8 @@ final class EnvironmentOptimized extends Environment {
     this.top = enclosing.top;
     this.stats = enclosing.top.stats;
     this.locals = null;
-    global = null;
+    slots = null;
+    globals = null;
     this.identifier = identifier;
   }
 
@@ -39,26 +55,40 @@ final class EnvironmentOptimized extends Environment {
   public Object get(Token name) {
     var distance = top.locals.get(name);
     if (distance == null) {
-      return top.global.get(name);
+      return top.globals.get(top.slots.slotFor(name.lexeme()), name);
+    }
+    if (distance.isGlobal()) {
+      stats.bySlotLookups++;
+      return top.globals.get(distance.id(), name);
     }
     var scope = ancestor(distance.scope());
     stats.byCoordinateLookups++;
-    if (scope == null || scope.values.size() <= distance.id()) {
+    if (scope == null || scope.size <= distance.id()) {
       throw new EvaluationError(name, "Unable to lookup variable:\n\t'" + name + "'\nin scope:\n'" + this + "'" + "\n\tat distance " + distance);
     }
-    return scope.values.get(distance.id());
+    return scope.getAt(distance.id());
   }
 
-  public Environment getEnvironmentOf(Token name) {
-    var distance = top.locals.get(name);
+  @Override
+  void defineReceiver(Object receiver) {
+    // `this` is always the only slot in the scope that binds it
+    stats.byCoordinateAssignments++;
+    store(0, receiver);
+  }
+
+  @Override
+  Object receiver() {
+    stats.byCoordinateLookups++;
+    return values[0];
+  }
+
+  @Override
+  Object receiverOf(Token superKeyword) {
+    var distance = top.locals.get(superKeyword);
     if (distance == null) {
-      throw new EvaluationError(name, "Unable to resolve for lookup of environment for '" + name + "' due to earlier miss");
+      throw new EvaluationError(superKeyword, "Unable to resolve 'super' due to earlier miss");
     }
-    var env = ancestor(distance.scope());
-    if (env != null) return env;
-
-    throw new EvaluationError(name,
-            "Undefined variable '" + name.lexeme() + "'.");
+    return ancestor(distance.scope() - 1).receiver();
   }
 
   void define(Token name, Object value) {
@@ -66,11 +96,72 @@ final class EnvironmentOptimized extends Environment {
     if (distance == null) {
       //values.add(value);
       throw new EvaluationError("Unable to find scope for '" + name + "'.");
+    } else if (distance.isGlobal()) {
+      stats.bySlotAssignments++;
+      top.globals.define(distance.id(), value);
     } else {
       var scope = ancestor(distance.scope());
       stats.byCoordinateLookups++;
-      scope.values.add(distance.id(), value);
+      scope.store(distance.id(), value);
+    }
+  }
+
+  /** A function's parameters take the first slots of the scope of its call, in order (see {@link Resolver}) */
+  @Override
+  void defineParameter(int index, Token name, Object value) {
+    stats.byCoordinateAssignments++;
+    store(index, value);
+  }
+
+  /**
+   * The value in one of this scope's slots, for code which has already looked its coordinates up.
+   * Such accesses bypass the stats, which count the lookups made by name.
+   */
+  Object getAt(int id) {
+    var value = values[id];
+    return value == UNBOXED ? (Object) doubles[id] : value;
+  }
+
+  /** The number in one of this scope's slots, without boxing it if it is held unboxed */
+  double getDoubleAt(int id) throws Node.UnexpectedResult {
+    var value = values[id];
+    return value == UNBOXED ? doubles[id] : Node.expectDouble(value);
+  }
+
+  /** Define (or assign) one of this scope's slots to a number, without boxing it */
+  void defineDoubleAt(int id, double value) {
+    store(id, UNBOXED);
+    if (doubles == null) {
+      doubles = new double[values.length];
+    }
+    doubles[id] = value;
+  }
+
+  /** Define (or assign) one of this scope's slots, for code which has already looked its coordinates up */
+  void defineAt(int id, Object value) {
+    store(id, value);
+  }
+
+  EnvironmentOptimized enclosing() {
+    return enclosing;
+  }
+
+  GlobalValues globals() {
+    return top.globals;
+  }
+
+  /** Slots may be defined out of order (or again) when the resolver hands out ids ahead of execution */
+  private void store(int id, Object value) {
+    if (id >= values.length) {
+      values = Arrays.copyOf(values, Math.max(id + 1, values.length * 2));
+      if (doubles != null) {
+        doubles = Arrays.copyOf(doubles, values.length);
+      }
     }
+    if (id >= size) {
+      size = id + 1;
+    }
+    values[id] = value;
   }
 
   void define(String name, Object value) {
@@ -82,18 +173,18 @@ final class EnvironmentOptimized extends Environment {
     if (distance == null) {
       throw new EvaluationError(name, "Unable to resolve '" + name + "' for assignment due to earlier miss");
     }
+    if (distance.isGlobal()) {
+      stats.bySlotAssignments++;
+      top.globals.assign(distance.id(), name, value);
+      return;
+    }
     var ancestor = ancestor(distance.scope());
     if (ancestor == null) {
       throw new EvaluationError(name,
               "Cannot assign to undefined variable '" + name.lexeme() + "'");
     }
     stats.byCoordinateAssignments++;
-    ancestor.values.set(distance.id(), value);
-  }
-
-  @Override
-  Environment parent() {
-    return ancestor(1);
+    ancestor.store(distance.id(), value);
   }
 
   EnvironmentOptimized ancestor(int distance) {
@@ -115,7 +206,7 @@ final class EnvironmentOptimized extends Environment {
   }
 
   private String toSelfString() {
-    return hashCode() + ":" + identifier + "@" + values;
+    return hashCode() + ":" + identifier + "@" + IntStream.range(0, size).mapToObj(this::getAt).toList();
   }
 
   private String toString(int depth) {
@@ -125,13 +216,18 @@ final class EnvironmentOptimized extends Environment {
   private final static class Stats {
     private int byCoordinateAssignments = 0;
     private int byCoordinateLookups = 0;
+    private int bySlotAssignments = 0;
+    private int bySlotLookups = 0;
 
     private String asString() {
       return String.format("""
       By coordinates:
         Assignments: %d
         Lookups: %d
-      """, byCoordinateAssignments, byCoordinateLookups);
+      By global slot:
+        Assignments: %d
+        Lookups: %d
+      """, byCoordinateAssignments, byCoordinateLookups, bySlotAssignments, bySlotLookups);
     }
   }
 }
\ No newline at end of file
@@ -3,6 +3,8 @@ package com.craftinginterpreters.lox;
 import java.util.HashMap;
 import java.util.Map;
 
+import static com.craftinginterpreters.lox.TokenType.THIS;
+
 class EnvironmentSimple extends Environment {
   private final Map<String, Object> values = new HashMap<>();
   private final EnvironmentSimple enclosing;
@@ -46,19 +48,18 @@ class EnvironmentSimple extends Environment {
   }
 
   @Override
-  public Environment getEnvironmentOf(Token name) {
-    if (values.containsKey(name.lexeme())) {
-      stats.byNameLookups++;
-      return this;
-    }
+  void defineReceiver(Object receiver) {
+    define(Token.artificial(THIS), receiver);
+  }
 
-    if (enclosing != null) {
-      stats.byNameMisses++;
-      return enclosing.getEnvironmentOf(name);
-    }
+  @Override
+  Object receiver() {
+    return get(Token.artificial(THIS));
+  }
 
-    throw new EvaluationError(name,
-            "Undefined variable '" + name.lexeme() + "'.");
+  @Override
+  Object receiverOf(Token superKeyword) {
+    return receiver();
   }
 
   @Override
@@ -67,6 +68,11 @@ class EnvironmentSimple extends Environment {
     values.put(name.lexeme(), value);
   }
 
+  @Override
+  void defineParameter(int index, Token name, Object value) {
+    define(name, value);
+  }
+
   @Override
   public void define(String name, Object value) {
     stats.byNameAssignments++;
@@ -91,11 +97,6 @@ class EnvironmentSimple extends Environment {
             "Cannot assign to undefined variable '" + name.lexeme() + "'");
   }
 
-  @Override
-  Environment parent() {
-    return enclosing;
-  }
-
   @Override
   public void printStats() {
     System.out.println(stats.asString());
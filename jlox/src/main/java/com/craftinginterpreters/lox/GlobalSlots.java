@@ -0,0 +1,43 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The slots top-level variables (and natives) are addressed by, as the resolver assigned them.
+ * Slots are handed out by name during resolution, including to names whose definition comes later
+ * (or never comes). The values in them belong to a run, and are held by its {@link GlobalValues}.
+ */
+final class GlobalSlots {
+  private final Map<String, Integer> slots = new HashMap<>();
+
+  GlobalSlots() {
+    EnvironmentGlobal.NATIVES.keySet().forEach(this::slotFor);
+  }
+
+  /**
+   * The slot for a global name, late-binding a new (undefined) one the first time the name is seen.
+   * Function bodies may be resolved concurrently, so slots are handed out one at a time.
+   */
+  synchronized int slotFor(String name) {
+    var slot = slots.get(name);
+    if (slot != null) {
+      return slot;
+    }
+    slot = slots.size();
+    slots.put(name, slot);
+    return slot;
+  }
+
+  synchronized int size() {
+    return slots.size();
+  }
+
+  /** Every name given a slot, in slot order */
+  synchronized List<String> names() {
+    var names = new String[slots.size()];
+    slots.forEach((name, slot) -> names[slot] = name);
+    return List.of(names);
+  }
+}
@@ -0,0 +1,53 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+/**
+ * The values of the top-level variables (and natives) of one run, by their {@link GlobalSlots slot}.
+ * Every slot holds {@link #UNDEFINED} until its definition has run, including slots handed out after the run began.
+ */
+final class GlobalValues {
+  static final Object UNDEFINED = new Object() {
+    @Override
+    public String toString() {
+      return "<undefined>";
+    }
+  };
+
+  private Object[] values;
+
+  GlobalValues(GlobalSlots slots) {
+    values = new Object[Math.max(8, slots.size())];
+    Arrays.fill(values, UNDEFINED);
+    EnvironmentGlobal.NATIVES.forEach((name, function) -> define(slots.slotFor(name), function));
+  }
+
+  Object get(int slot, Token name) {
+    var value = valueAt(slot);
+    if (value == UNDEFINED) {
+      throw new EvaluationError(name, "Undefined variable '" + name.lexeme() + "'.");
+    }
+    return value;
+  }
+
+  /** The raw contents of a slot, which is {@link #UNDEFINED} if its definition has not run yet */
+  Object valueAt(int slot) {
+    return slot < values.length ? values[slot] : UNDEFINED;
+  }
+
+  void define(int slot, Object value) {
+    if (slot >= values.length) {
+      var grown = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+      Arrays.fill(grown, values.length, grown.length, UNDEFINED);
+      values = grown;
+    }
+    values[slot] = value;
+  }
+
+  void assign(int slot, Token name, Object value) {
+    if (valueAt(slot) == UNDEFINED) {
+      throw new EvaluationError(name, "Cannot assign to undefined variable '" + name.lexeme() + "'");
+    }
+    values[slot] = value;
+  }
+}
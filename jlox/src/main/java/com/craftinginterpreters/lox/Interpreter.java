@@ -5,11 +5,34 @@ import java.util.*;
 import java.util.function.Consumer;
 
 import static com.craftinginterpreters.lox.TokenType.SUPER;
-import static com.craftinginterpreters.lox.TokenType.THIS;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-  private final Environment environment;
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Interpreter.Completion> {
+  /**
+   * How a statement completed: control flow is returned, not thrown, so only errors unwind the Java stack.
+   * A {@link #TAIL_CALL} returns a call for the caller of the function returning it to make, in its place.
+   */
+  enum Completion {
+    NORMAL, RETURN, TAIL_CALL, BREAK, CONTINUE
+  }
+
+  /** The scope being executed in, which entering a block or a call swaps for the duration */
+  private Environment environment;
   private final PrintStream printTarget;
+  /** Resolves function bodies on their first call, if the program was only resolved lazily */
+  private final Resolver lazyResolver;
+  /** Compiles the functions this interpreter runs most, if it is to */
+  private final Tiering tiering;
+  /** Remembers what calls to pure functions returned, if asked to */
+  private final Memoizer memoizer;
+  /** The returns the resolver found to be tail calls, which are made in place of the returning function's frame */
+  private final Set<Stmt.Return> tailCalls;
+  /** The method each {@code super} call site last dispatched to */
+  private final Map<Expr.Super, LoxClass.SuperMethodCache> superMethods = new IdentityHashMap<>();
+  /**
+   * The value of the last {@link Completion#RETURN} (or the {@link ClosureCompiler.TailCall} of the last
+   * {@link Completion#TAIL_CALL}), until the function returning it takes it
+   */
+  private Object returnValue;
 
   public Interpreter() {
     this(new EnvironmentSimple(new EnvironmentGlobal()), System.out);
@@ -20,8 +43,29 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   Interpreter(Environment environment, PrintStream printTarget) {
+    this(environment, printTarget, null);
+  }
+
+  Interpreter(Environment environment, PrintStream printTarget, Resolver lazyResolver) {
+    this(environment, printTarget, lazyResolver, null);
+  }
+
+  Interpreter(Environment environment, PrintStream printTarget, Resolver lazyResolver, Tiering tiering) {
+    this(environment, printTarget, lazyResolver, tiering, null);
+  }
+
+  Interpreter(Environment environment, PrintStream printTarget, Resolver lazyResolver, Tiering tiering, Memoizer memoizer) {
+    this(environment, printTarget, lazyResolver, tiering, memoizer, Set.of());
+  }
+
+  Interpreter(Environment environment, PrintStream printTarget, Resolver lazyResolver, Tiering tiering, Memoizer memoizer,
+              Set<Stmt.Return> tailCalls) {
     this.environment = environment;
+    this.tailCalls = tailCalls;
     this.printTarget = printTarget;
+    this.lazyResolver = lazyResolver;
+    this.tiering = tiering;
+    this.memoizer = memoizer;
   }
 
   void interpret(Program program) {
@@ -41,18 +85,18 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   @Override
-  public Void visit(Stmt.Var stmt) {
+  public Completion visit(Stmt.Var stmt) {
     Object value = null;
     if (stmt.initializer() != null) {
       value = evaluate(stmt.initializer());
     }
 
     environment.define(stmt.name(), value);
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visit(Stmt.ClassDeclaration classDeclaration) {
+  public Completion visit(Stmt.ClassDeclaration classDeclaration) {
     LoxClass superclass = null;
     if (classDeclaration.superclass() != null) {
       var maybeSuperclass = evaluate(classDeclaration.superclass());
@@ -80,76 +124,120 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     var klass = new LoxClass(classDeclaration.name().lexeme(), superclass, methods, classMethods);
     klass.initialize(this);
     environment.assign(classDeclaration.name(), klass);
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visit(Stmt.If stmt) {
-    if (isTruthy(evaluate(stmt.condition()))) {
-      execute(stmt.whenTrue());
+  public Completion visit(Stmt.If stmt) {
+    var taken = isTruthy(evaluate(stmt.condition()));
+    var recording = recording();
+    if (recording != null) {
+      recording.branch(stmt, taken);
+    }
+    if (taken) {
+      return execute(stmt.whenTrue());
     } else if (stmt.whenFalse() != null) {
-      execute(stmt.whenFalse());
+      return execute(stmt.whenFalse());
     }
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visit(Stmt.While stmt) {
-    while (isTruthy(evaluate(stmt.condition()))) {
+  public Completion visit(Stmt.While stmt) {
+    var loop = tiering == null ? null : tiering.loop(stmt);
+    while (true) {
+      if (loop != null) {
+        var replacement = tiering.replacement(loop, stmt, this);
+        if (replacement != null) {
+          // The rest of the loop runs compiled, in the scopes it has been running in, from the start of this iteration
+          var completion = replacement.execute((EnvironmentOptimized) environment);
+          if (completion != ClosureCompiler.NORMAL) {
+            return returned(completion);
+          }
+          return Completion.NORMAL;
+        }
+      }
+      if (!isTruthy(evaluate(stmt.condition()))) {
+        break;
+      }
+      var recording = false;
+      if (loop != null) {
+        tiering.backEdge(loop);
+        var trace = tiering.trace(loop, stmt, this);
+        if (trace != null) {
+          var completion = trace.execute((EnvironmentOptimized) environment);
+          if (completion == ClosureCompiler.BREAK) {
+            break;
+          }
+          if (completion == ClosureCompiler.NORMAL || completion == ClosureCompiler.CONTINUE) {
+            continue;
+          }
+          return returned(completion);
+        }
+        recording = tiering.startRecording(loop);
+      }
+      Completion completion;
       try {
-        execute(stmt.body());
-      } catch (LoopControlSignal signal) {
-        if (signal.control.type() == Stmt.LoopControl.Type.BREAK) {
-          break;
-        } else if (signal.control.type() == Stmt.LoopControl.Type.CONTINUE) {
-          continue;
-        } else {
-          throw new EvaluationError(signal.control.token(), "Do not know how to handle signal of type " + signal.control.type());
+        completion = execute(stmt.body());
+      } finally {
+        if (recording) {
+          tiering.stopRecording(loop, stmt, this);
         }
       }
+      if (completion == Completion.BREAK) {
+        break;
+      }
+      if (completion != Completion.NORMAL && completion != Completion.CONTINUE) {
+        return completion;
+      }
     }
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visit(Stmt.LoopControl loopControl) {
-    throw new LoopControlSignal(loopControl);
+  public Completion visit(Stmt.LoopControl loopControl) {
+    return switch (loopControl.type()) {
+      case BREAK -> Completion.BREAK;
+      case CONTINUE -> Completion.CONTINUE;
+    };
   }
 
   @Override
-  public Void visit(Stmt.Function function) {
+  public Completion visit(Stmt.Function function) {
     var f = new LoxFunction(function, environment);
     environment.define(function.name(), f);
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visit(Stmt.Return returnStmt) {
+  public Completion visit(Stmt.Return returnStmt) {
     var expr = returnStmt.value();
+    if (expr instanceof Expr.Call call && tailCalls.contains(returnStmt)) {
+      return tailCall(call);
+    }
     Object value = null;
     if (expr != null) {
       value = evaluate(expr);
     }
-    throw new ReturnSignal(value);
+    return returning(value);
   }
 
   @Override
-  public Void visit(Stmt.Print stmt) {
+  public Completion visit(Stmt.Print stmt) {
     Object value = evaluate(stmt.expression());
     printTarget.println(stringify(value));
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visit(Stmt.Block block) {
-    executeBlock(block.statements(), environment.pushScope(block));
-    return null;
+  public Completion visit(Stmt.Block block) {
+    return executeBlock(block.statements(), environment.pushScope(block));
   }
 
   @Override
-  public Void visit(Stmt.Expression stmt) {
+  public Completion visit(Stmt.Expression stmt) {
     evaluate(stmt.expression());
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
@@ -185,6 +273,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     Object right = evaluate(binary.right());
+    var recording = recording();
+    if (recording != null) {
+      recording.operands(binary, left, right);
+    }
 
     if (opType == TokenType.EQUAL_EQUAL) {
       return isEquals(left, right);
@@ -211,16 +303,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 "Do not know how to apply " + opType + " to numbers"
         );
       };
-    } else if (left instanceof String || right instanceof String) {
-      require(
-        opType == TokenType.PLUS,
-        binary.operator(),
-        "Do not know how to apply " + opType + " to strings"
-      );
-      return stringify(left) + stringify(right);
     }
+    return applyToNonNumbers(left, right, binary.operator());
+  }
 
-    return fail(binary.operator(), "Operands for " + opType + " must be numbers or strings");
+  /** Apply a binary operator to operands which are not both numbers, which only works for concatenation */
+  static Object applyToNonNumbers(Object left, Object right, Token operator) {
+    var opType = operator.type();
+    if (left instanceof String || right instanceof String) {
+      if (opType != TokenType.PLUS) {
+        throw fail(operator, "Do not know how to apply " + opType + " to strings");
+      }
+      return stringify(left) + stringify(right);
+    }
+    throw fail(operator, "Operands for " + opType + " must be numbers or strings");
   }
 
   @Override
@@ -229,7 +325,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     var isMinus = opType == TokenType.MINUS;
     var isNegation = opType == TokenType.BANG;
     require(
-      !(isMinus || isNegation),
+      isMinus || isNegation,
       unary.operator(),
       "Do not know how to handle unary operator of type " + opType
     );
@@ -245,20 +341,73 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   @Override
   public Object visit(Expr.Call call) {
     Object callee = evaluate(call.callee());
+    if (memoizer != null && memoizer.isPure(callee)) {
+      return memoized(call, callee);
+    }
 
-    List<Object> arguments = new ArrayList<>();
-    for (Expr argument : call.arguments()) {
-      arguments.add(evaluate(argument));
+    // Calls with few arguments pass them straight on, without collecting them first
+    var arguments = call.arguments();
+    switch (arguments.size()) {
+      case 0 -> {
+        return callable(call, callee, 0).call0(this);
+      }
+      case 1 -> {
+        var a = evaluate(arguments.get(0));
+        return callable(call, callee, 1).call1(this, a);
+      }
+      case 2 -> {
+        var a = evaluate(arguments.get(0));
+        var b = evaluate(arguments.get(1));
+        return callable(call, callee, 2).call2(this, a, b);
+      }
+      case 3 -> {
+        var a = evaluate(arguments.get(0));
+        var b = evaluate(arguments.get(1));
+        var c = evaluate(arguments.get(2));
+        return callable(call, callee, 3).call3(this, a, b, c);
+      }
+      case 4 -> {
+        var a = evaluate(arguments.get(0));
+        var b = evaluate(arguments.get(1));
+        var c = evaluate(arguments.get(2));
+        var d = evaluate(arguments.get(3));
+        return callable(call, callee, 4).call4(this, a, b, c, d);
+      }
+      default -> {
+        var values = new Object[arguments.size()];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = evaluate(arguments.get(i));
+        }
+        return callable(call, callee, values.length).call(this, values);
+      }
+    }
+  }
+
+  /** Call a pure function, through the table of what it has returned */
+  private Object memoized(Expr.Call call, Object callee) {
+    var arguments = call.arguments();
+    var values = new Object[arguments.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = evaluate(arguments.get(i));
+    }
+    return memoizer.call(callee, values, () -> callable(call, callee, values.length).call(this, values));
+  }
+
+  /** Check that the callee of a call, its arguments evaluated, can be called with as many as it has */
+  private LoxCallable callable(Expr.Call call, Object callee, int argumentCount) {
+    var recording = recording();
+    if (recording != null) {
+      recording.call(call, callee);
     }
 
     if (callee instanceof LoxCallable function) {
-      if (function.arity() != arguments.size()) {
+      if (function.arity() != argumentCount) {
         throw new EvaluationError(
                 call.paren(),
-                "Expected " + function.arity() + " arguments but got " + arguments.size() + "."
+                "Expected " + function.arity() + " arguments but got " + argumentCount + "."
         );
       }
-      return function.call(this, arguments);
+      return function;
     } else {
       throw new EvaluationError(call.paren(), "Can only call functions and classes");
     }
@@ -271,7 +420,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       Object value = instance.get(select.field());
       if (value instanceof LoxFunction function) {
         if (function.isGetter()) {
-          return function.call(this, List.of());
+          return function.call0(this);
         }
       }
       return value;
@@ -323,15 +472,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visit(Expr.Super superCall) {
-    var instanceEnv = environment.getEnvironmentOf(Token.artificial(THIS));
-    // HACK: This relies on the environment layout we build in LoxFunction#bind and Interpreter#visit(Stmt.ClassDeclaration)
-    LoxClass superClass = (LoxClass)instanceEnv.parent().get(superCall.keyword());
-    LoxInstance loxObject = (LoxInstance) instanceEnv.get(Token.artificial(THIS));
-    LoxFunction method = superClass.findMethod(superCall.method().lexeme());
-    if (method == null) {
-      throw new EvaluationError(superCall.method(), "Undefined method " + superCall.method().lexeme());
-    }
-    return method.bind(loxObject);
+    var superClass = (LoxClass) environment.get(superCall.keyword());
+    var loxObject = (LoxInstance) environment.receiverOf(superCall.keyword());
+    var cache = superMethods.computeIfAbsent(superCall, call -> new LoxClass.SuperMethodCache());
+    return cache.find(superClass, superCall.method()).bind(loxObject);
   }
 
   // Language semantics and operations!
@@ -341,32 +485,127 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   void printStats() {
     environment.printStats();
+    if (tiering != null) {
+      tiering.printStats();
+    }
+  }
+
+  Tiering tiering() {
+    return tiering;
+  }
+
+  Memoizer memoizer() {
+    return memoizer;
+  }
+
+  /** The recording being made of a hot loop's iteration, if any */
+  private TraceCompiler.Recording recording() {
+    return tiering == null ? null : tiering.recording();
+  }
+
+  /**
+   * Execute a statement on behalf of compiled code which has left its trace,
+   * returning how it completed as a compiled statement would (see {@link ClosureCompiler.Action}).
+   */
+  Object complete(Stmt statement, Environment environment) {
+    var enclosing = this.environment;
+    Completion completion;
+    try {
+      this.environment = environment;
+      completion = execute(statement);
+    } finally {
+      this.environment = enclosing;
+    }
+    return switch (completion) {
+      case NORMAL -> ClosureCompiler.NORMAL;
+      case BREAK -> ClosureCompiler.BREAK;
+      case CONTINUE -> ClosureCompiler.CONTINUE;
+      case RETURN -> {
+        var value = takeReturnValue();
+        yield value == null ? ClosureCompiler.NIL : value;
+      }
+      case TAIL_CALL -> takeReturnValue();
+    };
+  }
+
+  private Completion returning(Object value) {
+    returnValue = value;
+    return Completion.RETURN;
+  }
+
+  /** Return as compiled code which has returned did */
+  private Completion returned(Object completion) {
+    if (completion instanceof ClosureCompiler.TailCall) {
+      returnValue = completion;
+      return Completion.TAIL_CALL;
+    }
+    return returning(ClosureCompiler.returnedValue(completion));
+  }
+
+  /** Return a call, to be made by the caller of the function returning it (see {@link LoxFunction}) */
+  private Completion tailCall(Expr.Call call) {
+    var callee = evaluate(call.callee());
+    var arguments = call.arguments();
+    var values = new Object[arguments.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = evaluate(arguments.get(i));
+    }
+    returnValue = new ClosureCompiler.TailCall(callable(call, callee, values.length), values);
+    return Completion.TAIL_CALL;
+  }
+
+  /** The value returned by the statements just executed, which completed with {@link Completion#RETURN} */
+  Object takeReturnValue() {
+    var value = returnValue;
+    returnValue = null;
+    return value;
+  }
+
+  /** Make sure the body of a function has been resolved before it is first executed */
+  void resolveBody(Stmt.Function declaration) {
+    if (lazyResolver == null) {
+      return;
+    }
+    var errors = lazyResolver.resolveDeferred(declaration);
+    if (!errors.isEmpty()) {
+      var first = errors.getFirst();
+      throw new EvaluationError(first.token(), first.message());
+    }
   }
 
   private Object evaluate(Expr expression) {
     return expression.accept(this);
   }
 
-  private void execute(Stmt stmt) {
-    stmt.accept(this);
+  private Completion execute(Stmt stmt) {
+    return stmt.accept(this);
   }
 
-  void executeBlock(List<Stmt> statements, Environment environment) {
-    // Look ma, no mutation!
-    // Yes child, but that's a lot of allocation!
-    var blockFrame = new Interpreter(environment, printTarget);
-    for (Stmt statement : statements) {
-      statement.accept(blockFrame);
+  /** Execute statements in a scope, stopping at the first that does not complete normally */
+  Completion executeBlock(List<Stmt> statements, Environment environment) {
+    var enclosing = this.environment;
+    try {
+      this.environment = environment;
+      for (Stmt statement : statements) {
+        var completion = execute(statement);
+        if (completion != Completion.NORMAL) {
+          return completion;
+        }
+      }
+      return Completion.NORMAL;
+    } finally {
+      // Restored on errors too, so that a REPL session carries on in the scope it was in
+      this.environment = enclosing;
     }
   }
 
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null) return false;
     if (object instanceof Boolean) return (boolean)object;
     return true;
   }
 
-  private static boolean isEquals(Object left, Object right) {
+  static boolean isEquals(Object left, Object right) {
     return Objects.equals(left, right);
   }
 
@@ -399,19 +638,4 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   private static EvaluationError fail(Token location, String failureMessage) {
     throw new EvaluationError(location, failureMessage);
   }
-
-  private static final class LoopControlSignal extends RuntimeException {
-    final Stmt.LoopControl control;
-
-    public LoopControlSignal(Stmt.LoopControl control) {
-      this.control = control;
-    }
-
-    @Override
-    public synchronized Throwable fillInStackTrace() {
-      // As a signal, we never need to know where we are coming from
-      // and filling in the stack trace is expensive.
-      return this;
-    }
-  }
-}
\ No newline at end of file
+}
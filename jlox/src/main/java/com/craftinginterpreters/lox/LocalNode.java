@@ -0,0 +1,31 @@
+package com.craftinginterpreters.lox;
+
+/** A read of a local variable, handing a parent which expects a number the one in its slot without boxing it */
+final class LocalNode extends Node {
+  private final int distance;
+  private final int id;
+
+  LocalNode(Resolver.Coordinates coordinates) {
+    this.distance = coordinates.scope();
+    this.id = coordinates.id();
+  }
+
+  @Override
+  public Object evaluate(EnvironmentOptimized environment) {
+    return scope(environment).getAt(id);
+  }
+
+  @Override
+  double evaluateDouble(EnvironmentOptimized environment) throws UnexpectedResult {
+    return scope(environment).getDoubleAt(id);
+  }
+
+  /** Most locals are in the innermost scope or the one around it, such as the body of a loop */
+  private EnvironmentOptimized scope(EnvironmentOptimized environment) {
+    return switch (distance) {
+      case 0 -> environment;
+      case 1 -> environment.enclosing();
+      default -> environment.ancestor(distance);
+    };
+  }
+}
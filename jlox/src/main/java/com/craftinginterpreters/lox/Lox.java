@@ -3,10 +3,13 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 import com.craftinginterpreters.lox.Lox.RunResults.*;
 
@@ -15,22 +18,151 @@ public class Lox {
   private static final Pattern DIRECTIVE = Pattern.compile("^(?<directive>(?::\\w+)+)");
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 3) {
-      System.out.println("Usage: jlox [script [--mode lex | ast | eval]]");
-      System.exit(64);
-    } else if (args.length > 0) {
-      System.out.println("Running file " + args[0]);
-      runFile(args[0], args.length == 3 ? args[2] : "eval");
-    } else {
+    if (args.length == 0) {
       runPrompt();
+      return;
+    }
+    if (args[0].equals("compile")) {
+      compile(args);
+      return;
+    }
+    var options = Options.parse(args);
+    if (options.isEmpty()) {
+      System.out.println("Usage: jlox [script [--mode lex | ast | types | eval] [--strict | --lazy | --parallel] [--engine simple | tree | closure | nodes | bytecode] [--jit=on | --jit=off] [--max-depth=frames] [-O[level]] [--inline-budget=nodes] [--memoize[=entries]] [--profile=file] [--stats]]");
+      System.out.println("       jlox compile script -o jar [--engine simple | tree | closure | nodes | bytecode] [--jit=on | --jit=off] [--max-depth=frames] [-O[level]] [--inline-budget=nodes] [--memoize[=entries]] [--profile=file] [--stats]");
+      System.exit(64);
+    }
+    System.out.println("Running file " + args[0]);
+    runFile(args[0], options.get());
+  }
+
+  /**
+   * The command line flags following the script:
+   * <ul>
+   *   <li>{@code --mode} what to do with the script (see {@link Mode})</li>
+   *   <li>{@code --strict} resolve every function body up front (the default)</li>
+   *   <li>{@code --lazy} resolve each function body on its first call, so errors in functions never called are not reported</li>
+   *   <li>{@code --parallel} resolve every function body up front, several at a time</li>
+   *   <li>{@code --engine} what to execute the program with (see {@link Engine})</li>
+   *   <li>{@code --jit=on|off} whether walking the tree compiles the functions it runs most (see {@link Tiering})</li>
+   *   <li>{@code --max-depth=frames} how deep calls may go on the bytecode engine, whose frames are on the heap</li>
+   *   <li>{@code -O[level]} how far to {@link Optimizer optimize} the program first, fully if no level is given</li>
+   *   <li>{@code --inline-budget=nodes} how large the functions the optimizer inlines may be</li>
+   *   <li>{@code --memoize[=entries]} remember what calls to pure functions returned (see {@link Memoizer}), this many at most</li>
+   *   <li>{@code --profile=file} start tiering from what it learnt on previous runs, and keep what it learns on this one
+   *   (see {@link PersistedProfile})</li>
+   *   <li>{@code --stats} print what the engine counted, once the program has run</li>
+   * </ul>
+   */
+  record Options(String mode, Resolution resolution, Engine engine, boolean jit, boolean stats, int maxDepth,
+                 int optimization, int inlineBudget, int memoize, String profile) {
+    static final Options DEFAULT = new Options("eval", Resolution.STRICT, Engine.DEFAULT, true, false, VirtualMachine.MAX_FRAMES,
+            0, Optimizer.INLINE_BUDGET, 0, null);
+
+    Options(String mode, Resolution resolution, Engine engine) {
+      this(mode, resolution, engine, DEFAULT.jit, DEFAULT.stats);
+    }
+
+    Options(String mode, Resolution resolution, Engine engine, boolean jit, boolean stats) {
+      this(mode, resolution, engine, jit, stats, DEFAULT.maxDepth);
+    }
+
+    Options(String mode, Resolution resolution, Engine engine, boolean jit, boolean stats, int maxDepth) {
+      this(mode, resolution, engine, jit, stats, maxDepth, DEFAULT.optimization, DEFAULT.inlineBudget, DEFAULT.memoize,
+              DEFAULT.profile);
+    }
+
+    enum Resolution { LAZY, STRICT, PARALLEL }
+
+    static Optional<Options> parse(String[] args) {
+      return parse(args, 1);
+    }
+
+    /** Parse the flags from the given index on */
+    static Optional<Options> parse(String[] args, int from) {
+      var mode = DEFAULT.mode;
+      var resolution = DEFAULT.resolution;
+      var engine = DEFAULT.engine;
+      var jit = DEFAULT.jit;
+      var stats = DEFAULT.stats;
+      var maxDepth = DEFAULT.maxDepth;
+      var optimization = DEFAULT.optimization;
+      var inlineBudget = DEFAULT.inlineBudget;
+      var memoize = DEFAULT.memoize;
+      var profile = DEFAULT.profile;
+      for (int i = from; i < args.length; i++) {
+        switch (args[i]) {
+          case "--mode" -> {
+            if (++i == args.length) return Optional.empty();
+            mode = args[i];
+          }
+          case "--strict" -> resolution = Resolution.STRICT;
+          case "--lazy" -> resolution = Resolution.LAZY;
+          case "--parallel" -> resolution = Resolution.PARALLEL;
+          case "--engine" -> {
+            if (++i == args.length) return Optional.empty();
+            var named = Engine.parse(args[i]);
+            if (named.isEmpty()) return Optional.empty();
+            engine = named.get();
+          }
+          case "--jit=on" -> jit = true;
+          case "--jit=off" -> jit = false;
+          case "--stats" -> stats = true;
+          case "-O" -> optimization = Optimizer.MAX_LEVEL;
+          case "--memoize" -> memoize = Memoizer.CAPACITY;
+          default -> {
+            if (args[i].startsWith("-O")) {
+              try {
+                optimization = Integer.parseInt(args[i].substring("-O".length()));
+              } catch (NumberFormatException e) {
+                return Optional.empty();
+              }
+              if (optimization < 0) return Optional.empty();
+              continue;
+            }
+            if (args[i].startsWith("--inline-budget=")) {
+              try {
+                inlineBudget = Integer.parseInt(args[i].substring("--inline-budget=".length()));
+              } catch (NumberFormatException e) {
+                return Optional.empty();
+              }
+              if (inlineBudget < 0) return Optional.empty();
+              continue;
+            }
+            if (args[i].startsWith("--profile=")) {
+              profile = args[i].substring("--profile=".length());
+              if (profile.isEmpty()) return Optional.empty();
+              continue;
+            }
+            if (args[i].startsWith("--memoize=")) {
+              try {
+                memoize = Integer.parseInt(args[i].substring("--memoize=".length()));
+              } catch (NumberFormatException e) {
+                return Optional.empty();
+              }
+              if (memoize < 1) return Optional.empty();
+              continue;
+            }
+            if (!args[i].startsWith("--max-depth=")) return Optional.empty();
+            try {
+              maxDepth = Integer.parseInt(args[i].substring("--max-depth=".length()));
+            } catch (NumberFormatException e) {
+              return Optional.empty();
+            }
+            if (maxDepth < 1) return Optional.empty();
+          }
+        }
+      }
+      return Optional.of(new Options(mode, resolution, engine, jit, stats, maxDepth, optimization, inlineBudget, memoize,
+              profile));
     }
   }
 
-  private static void runFile(String path, String mode) throws IOException {
+  private static void runFile(String path, Options options) throws IOException {
     byte[] bytes = "-".equals(path.trim()) ? System.in.readAllBytes() : Files.readAllBytes(Paths.get(path));
-    var directive = mode.startsWith(":") ? mode : ":" + mode;
+    var directive = options.mode().startsWith(":") ? options.mode() : ":" + options.mode();
     var modes = Mode.parse(directive).orElse(EnumSet.of(Mode.EVALUATE));
-    switch(run(new String(bytes, Charset.defaultCharset()), modes)) {
+    switch(run(new String(bytes, Charset.defaultCharset()), modes, options)) {
       case Failure f -> {
         switch (f) {
           case LexFailure l -> {
@@ -59,10 +191,69 @@ public class Lox {
     }
   }
 
+  /**
+   * Compile a script ahead of time into a runnable jar, which runs it (with the options given here)
+   * exactly as {@link #runFile} would, minus lexing, parsing and resolving it.
+   */
+  private static void compile(String[] args) throws IOException {
+    var options = args.length >= 4 && args[2].equals("-o") ? Options.parse(args, 4) : Optional.<Options>empty();
+    if (options.isEmpty()) {
+      System.out.println("Usage: jlox compile script -o jar [--engine simple | tree | closure | nodes | bytecode] [--jit=on | --jit=off] [--max-depth=frames] [-O[level]] [--inline-budget=nodes] [--memoize[=entries]] [--profile=file] [--stats]");
+      System.exit(64);
+    }
+    var source = Files.readString(Paths.get(args[1]), Charset.defaultCharset());
+    switch (new Scanner(source).scanTokens()) {
+      case Scanner.LexError l -> {
+        error(l.getLine(), l.getColumn(), l.getMessage());
+        System.exit(65);
+      }
+      case Scanner.TokenList tokens -> {
+        switch (new Parser(tokens).parse()) {
+          case ParseError p -> {
+            error(p.token(), p.message());
+            System.exit(65);
+          }
+          case Expr expression -> {
+            System.err.println("Only programs (of statements) can be compiled");
+            System.exit(65);
+          }
+          case Program program -> {
+            // Everything is resolved now, so that nothing is left to resolve when the jar runs
+            var report = new Resolver().resolve(program);
+            if (report.hasErrors()) {
+              for (var ex : report.errors()) {
+                error(ex.token(), ex.message());
+              }
+              System.exit(65);
+            }
+            var optimized = Optimizer.optimize(program, report, options.get());
+            CompiledScript.of(optimized.program(), optimized.report(), options.get()).write(Paths.get(args[3]));
+          }
+        }
+      }
+    }
+  }
+
+  /** Run a script compiled ahead of time, reporting how it went as {@link #runFile} would */
+  static void runCompiled(CompiledScript script) {
+    try {
+      script.run(System.out);
+    } catch (EvaluationError e) {
+      runtimeError(e);
+      System.exit(70);
+    } catch (Exception e) {
+      runtimeError(new EvaluationError(e));
+      System.exit(70);
+    }
+    System.out.println();
+    System.exit(0);
+  }
+
   private static void runPrompt() throws IOException {
     InputStreamReader input = new InputStreamReader(System.in);
     BufferedReader reader = new BufferedReader(input);
 
+    var session = new Session();
     var lastScript = "";
     var isContinuationLine = false;
     Set<Mode> lastModes = EnumSet.of(Mode.EVALUATE);
@@ -92,7 +283,7 @@ public class Lox {
       lastScript = lineAndModes.script;
       lastModes = lineAndModes.modes;
 
-      switch (run(lineAndModes.script, lineAndModes.modes)) {
+      switch (run(lineAndModes.script, lineAndModes.modes, session)) {
         case Success s -> {
           lastScript = "";
           isContinuationLine = false;
@@ -138,6 +329,7 @@ public class Lox {
       modes.append(switch (mode) {
         case EVALUATE -> ":eval";
         case PARSE_TREE -> ":ast";
+        case TYPES -> ":types";
         case TOKENS -> ":lex";
       });
     }
@@ -146,19 +338,46 @@ public class Lox {
   }
 
   static RunResults run(String source, Set<Mode> modes) {
-    Scanner scanner = new Scanner(source);
+    return run(source, modes, Options.DEFAULT);
+  }
+
+  static RunResults run(String source, Set<Mode> modes, Options options) {
+    return lexAndThen(new Scanner(source), modes, tokens -> parseAndRun(tokens, modes, options));
+  }
+
+  /** Run the source as the next fragment of a session, so it can use what earlier fragments defined */
+  static RunResults run(String source, Set<Mode> modes, Session session) {
+    return lexAndThen(new Scanner(source), modes, tokens -> parseAndRunIncrementally(tokens, modes, session));
+  }
+
+  private static RunResults lexAndThen(Scanner scanner, Set<Mode> modes, Function<Scanner.TokenList, RunResults> next) {
     Scanner.ScanResults results = scanner.scanTokens();
     return switch (results) {
       case Scanner.TokenList tokens -> {
         if (modes.size() == 1 && modes.contains(Mode.TOKENS)) {
           yield new LexSuccess(tokens);
         }
-        yield parseAndRun(tokens, modes);
+        yield next.apply(tokens);
       }
       case Scanner.LexError lexError -> new LexFailure(lexError);
     };
   }
 
+  /** Everything a REPL remembers between lines: the top-level scope, its slots and their values */
+  static final class Session {
+    private final Resolver resolver = Resolver.incremental();
+    private final Interpreter interpreter;
+
+    Session() {
+      this(System.out);
+    }
+
+    Session(PrintStream printTarget) {
+      interpreter = new Interpreter(new EnvironmentOptimized(resolver.locals(), resolver.globals()), printTarget, null, null,
+              null, resolver.tailCalls());
+    }
+  }
+
   sealed interface RunResults {
     sealed interface Success extends RunResults {
       Scanner.TokenList lex();
@@ -177,7 +396,7 @@ public class Lox {
 
 
   enum Mode {
-    TOKENS, PARSE_TREE, EVALUATE;
+    TOKENS, PARSE_TREE, TYPES, EVALUATE;
     static Optional<EnumSet<Mode>> parse(String directive) {
       EnumSet<Mode> modes = EnumSet.noneOf(Mode.class);
       for (var d : directive.split(":")) {
@@ -190,6 +409,7 @@ public class Lox {
       return switch (directive) {
         case ":lex", ":tokens" -> EnumSet.of(Mode.TOKENS);
         case ":ast", ":tree", ":parse" -> EnumSet.of(Mode.PARSE_TREE);
+        case ":types" -> EnumSet.of(Mode.TYPES);
         case ":eval", ":exec" -> EnumSet.of(Mode.EVALUATE);
         case ":all" -> EnumSet.allOf(Mode.class);
         default -> EnumSet.noneOf(Mode.class);
@@ -197,7 +417,7 @@ public class Lox {
     }
   }
 
-  private static RunResults parseAndRun(Scanner.TokenList tokens, Set<Mode> modes) {
+  private static RunResults parseAndRun(Scanner.TokenList tokens, Set<Mode> modes, Options options) {
     Parser parser = new Parser(tokens);
     ParseResult parse = parser.parse();
 
@@ -214,22 +434,38 @@ public class Lox {
         }
       }
       case Program program -> {
-        var resolver = new Resolver();
-        var report = resolver.resolve(program);
+        // When asked to be lazy, function bodies are only resolved (and checked) when first called,
+        // which neither the engines compiling the whole program, the optimizer, type inference, memoization nor
+        // compiling what a profile says is hot (before it is called) can wait for
+        var resolveUpFront = !options.engine().resolvesLazily() || options.optimization() > 0 || modes.contains(Mode.TYPES)
+                || options.memoize() > 0 || options.profile() != null;
+        var resolution = options.resolution() == Options.Resolution.LAZY && resolveUpFront
+                ? Options.Resolution.STRICT
+                : options.resolution();
+        var resolver = resolution == Options.Resolution.LAZY ? Resolver.lazy() : null;
+        var report = switch (resolution) {
+          case LAZY -> resolver.resolve(program);
+          case STRICT -> new Resolver().resolve(program);
+          case PARALLEL -> Resolver.resolveInParallel(program, ForkJoinPool.commonPool());
+        };
         if (report.hasErrors()) {
           return new ResolutionFailure(report);
         }
+        var optimized = Optimizer.optimize(program, report, options);
+        if (modes.contains(Mode.TYPES)) {
+          TypeInference.infer(optimized.program(), optimized.report()).print(System.out);
+        }
 
         if (!modes.contains(Mode.EVALUATE)) {
-          return new ParseSuccess(tokens, program);
+          return new ParseSuccess(tokens, optimized.program());
         }
 
         try {
-          System.out.println("Simple");
-          new Interpreter(new EnvironmentSimple(new EnvironmentGlobal())).interpret(program);
-          System.out.println("Optimized");
-          new Interpreter(new EnvironmentOptimized(report.locals())).interpret(program);
-          return new ProgramSuccess(tokens, program);
+          options.engine().run(optimized.program(), optimized.report(), resolver, System.out, options);
+          if (options.stats() && options.optimization() > 0) {
+            optimized.printStats(System.out);
+          }
+          return new ProgramSuccess(tokens, optimized.program());
         } catch (EvaluationError e) {
           return new EvalFailure(e);
         } catch (Exception e) {
@@ -242,6 +478,40 @@ public class Lox {
     }
   }
 
+  private static RunResults parseAndRunIncrementally(Scanner.TokenList tokens, Set<Mode> modes, Session session) {
+    Parser parser = new Parser(tokens);
+    switch (parser.parse()) {
+      case ParseError e -> {
+        return new ParseFailure(e);
+      }
+      case ParseResult.Success parse -> {
+        if (!modes.contains(Mode.EVALUATE)) {
+          // Don't reserve top-level slots for code that is never going to run
+          return new ParseSuccess(tokens, parse);
+        }
+
+        var report = session.resolver.resolveIncrementally(parse);
+        if (report.hasErrors()) {
+          return new ResolutionFailure(report);
+        }
+
+        try {
+          return switch (parse) {
+            case Expr expression -> new ExpressionSuccess(tokens, expression, expression.accept(session.interpreter));
+            case Program program -> {
+              session.interpreter.interpret(program);
+              yield new ProgramSuccess(tokens, program);
+            }
+          };
+        } catch (EvaluationError e) {
+          return new EvalFailure(e);
+        } catch (Exception e) {
+          return new EvalFailure(new EvaluationError(e));
+        }
+      }
+    }
+  }
+
   private static void displaySuccess(Success success, Set<Mode> modes) {
     var multiMode = modes.size() > 1;
     if (modes.contains(Mode.TOKENS)) {
@@ -1,9 +1,38 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Something Lox can call. Callers which know how many arguments they pass use the fixed-arity entry points,
+ * which a callable may override to take its arguments without allocating a list of them.
+ */
 public interface LoxCallable {
   Object call(Interpreter interpreter, List<Object> arguments);
   /** The total number of arguments this function requires */
   int arity();
+
+  default Object call(Interpreter interpreter, Object[] arguments) {
+    return call(interpreter, Arrays.asList(arguments));
+  }
+
+  default Object call0(Interpreter interpreter) {
+    return call(interpreter, List.of());
+  }
+
+  default Object call1(Interpreter interpreter, Object a) {
+    return call(interpreter, new Object[] { a });
+  }
+
+  default Object call2(Interpreter interpreter, Object a, Object b) {
+    return call(interpreter, new Object[] { a, b });
+  }
+
+  default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    return call(interpreter, new Object[] { a, b, c });
+  }
+
+  default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+    return call(interpreter, new Object[] { a, b, c, d });
+  }
 }
@@ -29,12 +29,17 @@ public class LoxClass extends LoxInstance implements LoxCallable {
     }
     LoxFunction initializer = loxClass.findMethod(INIT);
     if (initializer != null) {
-      initializer.bind(this).call(interpreter, List.of());
+      initializer.bind(this).call0(interpreter);
     }
   }
 
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
+    return call(interpreter, arguments.toArray());
+  }
+
+  @Override
+  public Object call(Interpreter interpreter, Object[] arguments) {
     var instance = new LoxInstance(this);
     LoxFunction initializer = findMethod(INIT);
     if (initializer != null) {
@@ -43,6 +48,56 @@ public class LoxClass extends LoxInstance implements LoxCallable {
     return instance;
   }
 
+  @Override
+  public Object call0(Interpreter interpreter) {
+    var instance = new LoxInstance(this);
+    LoxFunction initializer = findMethod(INIT);
+    if (initializer != null) {
+      initializer.bind(instance).call0(interpreter);
+    }
+    return instance;
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    var instance = new LoxInstance(this);
+    LoxFunction initializer = findMethod(INIT);
+    if (initializer != null) {
+      initializer.bind(instance).call1(interpreter, a);
+    }
+    return instance;
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    var instance = new LoxInstance(this);
+    LoxFunction initializer = findMethod(INIT);
+    if (initializer != null) {
+      initializer.bind(instance).call2(interpreter, a, b);
+    }
+    return instance;
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    var instance = new LoxInstance(this);
+    LoxFunction initializer = findMethod(INIT);
+    if (initializer != null) {
+      initializer.bind(instance).call3(interpreter, a, b, c);
+    }
+    return instance;
+  }
+
+  @Override
+  public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+    var instance = new LoxInstance(this);
+    LoxFunction initializer = findMethod(INIT);
+    if (initializer != null) {
+      initializer.bind(instance).call4(interpreter, a, b, c, d);
+    }
+    return instance;
+  }
+
   @Override
   public int arity() {
     LoxFunction initializer = findMethod(INIT);
@@ -54,6 +109,27 @@ public class LoxClass extends LoxInstance implements LoxCallable {
     return name;
   }
 
+  /**
+   * The method a {@code super} call site last dispatched to, valid for as long as its superclass stays the same.
+   * Kept by whatever runs the call site, apart from the tree it was parsed into.
+   */
+  static final class SuperMethodCache {
+    private LoxClass superclass;
+    private LoxFunction method;
+
+    LoxFunction find(LoxClass superclass, Token name) {
+      if (this.superclass != superclass) {
+        var found = superclass.findMethod(name.lexeme());
+        if (found == null) {
+          throw new EvaluationError(name, "Undefined method " + name.lexeme());
+        }
+        this.superclass = superclass;
+        this.method = found;
+      }
+      return method;
+    }
+  }
+
   public LoxFunction findMethod(String methodName) {
     if (methods.containsKey(methodName)) {
       return methods.get(methodName);
@@ -3,12 +3,16 @@ package com.craftinginterpreters.lox;
 import java.util.List;
 
 import static com.craftinginterpreters.lox.LoxClass.INIT;
-import static com.craftinginterpreters.lox.TokenType.THIS;
 
 public class LoxFunction implements LoxCallable {
   private final Stmt.Function declaration;
   private final Environment scope;
   private final Type type;
+  private boolean resolved;
+  /** The body compiled by {@link ClosureCompiler}, run in place of interpreting the declaration */
+  private final ClosureCompiler.Body body;
+  /** How often the interpreter has run this function, once it has (and if it is tiering) */
+  private Tiering.Profile profile;
 
   enum Type {
     FUNCTION, INITIALIZER;
@@ -24,39 +28,165 @@ public class LoxFunction implements LoxCallable {
   }
 
   LoxFunction(Stmt.Function declaration, Environment scope, Type functionType) {
+    this(declaration, scope, functionType, false, null);
+  }
+
+  LoxFunction(Stmt.Function declaration, Environment scope, Type functionType, ClosureCompiler.Body body) {
+    this(declaration, scope, functionType, true, body);
+  }
+
+  private LoxFunction(Stmt.Function declaration, Environment scope, Type functionType, boolean resolved, ClosureCompiler.Body body) {
+    this(declaration, scope, functionType, resolved, body, null);
+  }
+
+  private LoxFunction(Stmt.Function declaration, Environment scope, Type functionType, boolean resolved, ClosureCompiler.Body body, Tiering.Profile profile) {
     this.declaration = declaration;
     this.scope = scope;
     this.type = functionType;
+    this.resolved = resolved;
+    this.body = body;
+    this.profile = profile;
   }
 
   public boolean isGetter() {
     return declaration.isGetter();
   }
 
+  Stmt.Function declaration() {
+    return declaration;
+  }
+
+  /** The scope the function closes over (and, for a bound method, the one binding {@code this}) */
+  Environment closure() {
+    return scope;
+  }
+
+  boolean isInitializer() {
+    return Type.INITIALIZER.equals(type);
+  }
+
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
-    var environment = scope.pushScope("call:" + declaration.name());
-    for (int i = 0; i < declaration.params().size(); i++) {
-      environment.define(
-              declaration.params().get(i),
-              arguments.get(i));
+    return call(interpreter, arguments.toArray());
+  }
+
+  @Override
+  public Object call(Interpreter interpreter, Object[] arguments) {
+    var compiled = prepare(interpreter);
+    return run(interpreter, compiled, frame(arguments));
+  }
+
+  @Override
+  public Object call0(Interpreter interpreter) {
+    var compiled = prepare(interpreter);
+    return run(interpreter, compiled, scope.pushScope(declaration));
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    var compiled = prepare(interpreter);
+    var environment = scope.pushScope(declaration);
+    var params = declaration.params();
+    environment.defineParameter(0, params.get(0), a);
+    return run(interpreter, compiled, environment);
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    var compiled = prepare(interpreter);
+    var environment = scope.pushScope(declaration);
+    var params = declaration.params();
+    environment.defineParameter(0, params.get(0), a);
+    environment.defineParameter(1, params.get(1), b);
+    return run(interpreter, compiled, environment);
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    var compiled = prepare(interpreter);
+    var environment = scope.pushScope(declaration);
+    var params = declaration.params();
+    environment.defineParameter(0, params.get(0), a);
+    environment.defineParameter(1, params.get(1), b);
+    environment.defineParameter(2, params.get(2), c);
+    return run(interpreter, compiled, environment);
+  }
+
+  @Override
+  public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+    var compiled = prepare(interpreter);
+    var environment = scope.pushScope(declaration);
+    var params = declaration.params();
+    environment.defineParameter(0, params.get(0), a);
+    environment.defineParameter(1, params.get(1), b);
+    environment.defineParameter(2, params.get(2), c);
+    environment.defineParameter(3, params.get(3), d);
+    return run(interpreter, compiled, environment);
+  }
+
+  /** Get the function ready to be called, returning the compiled body to run it with if it has one */
+  private ClosureCompiler.Body prepare(Interpreter interpreter) {
+    if (body != null) {
+      return body;
+    }
+    if (!resolved) {
+      interpreter.resolveBody(declaration);
+      resolved = true;
     }
+    var tiering = interpreter.tiering();
+    if (tiering == null) {
+      return null;
+    }
+    if (profile == null) {
+      profile = tiering.profile(declaration);
+    }
+    return tiering.call(profile, declaration, interpreter);
+  }
 
-    try {
-      interpreter.executeBlock(declaration.body(), environment);
-    } catch (ReturnSignal signal) {
-      if (Type.INITIALIZER.equals(type)) {
-        return environment.get(Token.artificial(THIS));
-      }
+  private Environment frame(Object[] arguments) {
+    var environment = scope.pushScope(declaration);
+    var params = declaration.params();
+    for (int i = 0; i < arguments.length; i++) {
+      environment.defineParameter(i, params.get(i), arguments[i]);
+    }
+    return environment;
+  }
 
-      return signal.value;
+  /** Run the body of the function in the scope of a call, its parameters already defined */
+  private Object run(Interpreter interpreter, ClosureCompiler.Body compiled, Environment environment) {
+    var result = execute(interpreter, compiled, environment);
+    // Calls returned in tail position are made here, each in place of the one which returned it
+    while (result instanceof ClosureCompiler.TailCall tailCall) {
+      result = tailCall.callee() instanceof LoxFunction function && !function.isInitializer()
+              ? function.execute(interpreter, function.prepare(interpreter), function.frame(tailCall.arguments()))
+              : tailCall.callee().call(interpreter, tailCall.arguments());
     }
+    return Type.INITIALIZER.equals(type) ? scope.receiver() : result;
+  }
 
-    if (Type.INITIALIZER.equals(type)) {
-      return environment.get(Token.artificial(THIS));
+  /** Execute the body once, returning the value it returned, or the {@link ClosureCompiler.TailCall} it did */
+  private Object execute(Interpreter interpreter, ClosureCompiler.Body compiled, Environment environment) {
+    if (compiled != null) {
+      var completion = compiled.action().execute((EnvironmentOptimized) environment);
+      return completion instanceof ClosureCompiler.TailCall ? completion : ClosureCompiler.returnedValue(completion);
+    }
+    var tiering = interpreter.tiering();
+    if (tiering == null) {
+      return interpret(interpreter, environment);
     }
+    var caller = tiering.enter(profile);
+    try {
+      return interpret(interpreter, environment);
+    } finally {
+      tiering.exit(caller);
+    }
+  }
 
-    return null;
+  private Object interpret(Interpreter interpreter, Environment environment) {
+    return switch (interpreter.executeBlock(declaration.body(), environment)) {
+      case RETURN, TAIL_CALL -> interpreter.takeReturnValue();
+      default -> null;
+    };
   }
 
   @Override
@@ -71,7 +201,7 @@ public class LoxFunction implements LoxCallable {
 
   public LoxFunction bind(LoxInstance loxInstance) {
     var environment = scope.pushScope("methodLookup:" + declaration.name());
-    environment.define(Token.artificial(THIS), loxInstance);
-    return new LoxFunction(declaration, environment, type);
+    environment.defineReceiver(loxInstance);
+    return new LoxFunction(declaration, environment, type, resolved, body, profile);
   }
 }
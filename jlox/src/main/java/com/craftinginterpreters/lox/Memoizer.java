@@ -0,0 +1,249 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Remembers what calls to pure functions returned, so that a call made again with the same arguments is not made at all.
+ * A function is pure when it is declared once at the top level and its body neither prints, updates fields, declares
+ * functions or classes, assigns variables which are not its own nor reads any that could change, and only calls
+ * functions which are pure themselves. Only calls whose arguments are all numbers, strings, booleans or nil are
+ * remembered, in a table which forgets the calls least recently made once it holds as many as it may.
+ */
+final class Memoizer {
+  static final int CAPACITY = 1_024;
+
+  /** A call made to the pure function numbered {@code function} */
+  private record Key(int function, List<Object> arguments) {}
+
+  /** The pure functions, numbered */
+  private final Map<Stmt.Function, Integer> functions;
+  private final LinkedHashMap<Key, Object> table;
+  private int hits;
+  private int misses;
+
+  private Memoizer(Map<Stmt.Function, Integer> functions, int capacity) {
+    this.functions = functions;
+    this.table = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /** Memoize the pure functions of a resolved program, remembering up to {@code capacity} calls */
+  static Memoizer of(List<Stmt> program, Resolver.ResolutionReport report, int capacity) {
+    var functions = new IdentityHashMap<Stmt.Function, Integer>();
+    for (var function : pureFunctions(program, report)) {
+      functions.put(function, functions.size());
+    }
+    return new Memoizer(functions, capacity);
+  }
+
+  /** Whether the callee of a call is one of the pure functions */
+  boolean isPure(Object callee) {
+    return callee instanceof LoxFunction function && functions.containsKey(function.declaration());
+  }
+
+  /** Call a pure function, unless it has been called with the same arguments lately */
+  Object call(Object callee, Object[] arguments, Supplier<Object> call) {
+    for (var argument : arguments) {
+      if (!(argument == null || argument instanceof Double || argument instanceof String || argument instanceof Boolean)) {
+        return call.get();
+      }
+    }
+    var key = new Key(functions.get(((LoxFunction) callee).declaration()), Arrays.asList(arguments));
+    var result = table.get(key);
+    if (result != null || table.containsKey(key)) {
+      hits++;
+      return result;
+    }
+    misses++;
+    result = call.get();
+    table.put(key, result);
+    return result;
+  }
+
+  void printStats(PrintStream printTarget) {
+    printTarget.printf("""
+    Memoization:
+      Pure functions: %d
+      Hits: %d
+      Misses: %d
+    """, functions.size(), hits, misses);
+  }
+
+  /** The functions of a program which are pure, assuming they all are until one of them is found not to be */
+  private static Set<Stmt.Function> pureFunctions(List<Stmt> program, Resolver.ResolutionReport report) {
+    var declarations = new HashMap<String, Integer>();
+    for (var statement : program) {
+      switch (statement) {
+        case Stmt.Function function -> declarations.merge(function.name().lexeme(), 1, Integer::sum);
+        case Stmt.Var declaration -> declarations.merge(declaration.name().lexeme(), 1, Integer::sum);
+        case Stmt.ClassDeclaration classDeclaration -> declarations.merge(classDeclaration.name().lexeme(), 1, Integer::sum);
+        default -> {}
+      }
+    }
+    var assigned = new HashSet<String>();
+    program.forEach(statement -> assignmentsInStatement(statement, report, assigned));
+    var pure = new HashMap<String, Stmt.Function>();
+    var constants = new HashSet<String>();
+    for (var statement : program) {
+      if (statement instanceof Stmt.Function function && isFixed(function.name(), declarations, assigned)) {
+        pure.put(function.name().lexeme(), function);
+      } else if (statement instanceof Stmt.Var declaration && declaration.initializer() instanceof Expr.Literal
+              && isFixed(declaration.name(), declarations, assigned)) {
+        constants.add(declaration.name().lexeme());
+      }
+    }
+    var analysis = new Analysis(report, pure.keySet(), constants);
+    boolean changed;
+    do {
+      changed = pure.values().removeIf(function -> !analysis.arePure(function.body(), 1));
+    } while (changed);
+    var functions = Memoizer.<Stmt.Function>identitySet();
+    functions.addAll(pure.values());
+    return functions;
+  }
+
+  private static boolean isFixed(Token name, Map<String, Integer> declarations, Set<String> assigned) {
+    return declarations.get(name.lexeme()) == 1 && !assigned.contains(name.lexeme());
+  }
+
+  private static <T> Set<T> identitySet() {
+    return Collections.newSetFromMap(new IdentityHashMap<>());
+  }
+
+  /** The globals a statement assigns, in functions and methods as well */
+  private static void assignmentsInStatement(Stmt statement, Resolver.ResolutionReport report, Set<String> assigned) {
+    switch (statement) {
+      case Stmt.Expression expression -> assignmentsInExpression(expression.expression(), report, assigned);
+      case Stmt.Print print -> assignmentsInExpression(print.expression(), report, assigned);
+      case Stmt.Var declaration when declaration.initializer() != null ->
+          assignmentsInExpression(declaration.initializer(), report, assigned);
+      case Stmt.Return returnStmt when returnStmt.value() != null ->
+          assignmentsInExpression(returnStmt.value(), report, assigned);
+      case Stmt.Block block -> block.statements().forEach(inner -> assignmentsInStatement(inner, report, assigned));
+      case Stmt.If anIf -> {
+        assignmentsInExpression(anIf.condition(), report, assigned);
+        assignmentsInStatement(anIf.whenTrue(), report, assigned);
+        if (anIf.whenFalse() != null) {
+          assignmentsInStatement(anIf.whenFalse(), report, assigned);
+        }
+      }
+      case Stmt.While aWhile -> {
+        assignmentsInExpression(aWhile.condition(), report, assigned);
+        assignmentsInStatement(aWhile.body(), report, assigned);
+      }
+      case Stmt.Function function -> function.body().forEach(inner -> assignmentsInStatement(inner, report, assigned));
+      case Stmt.ClassDeclaration classDeclaration -> {
+        if (classDeclaration.superclass() != null) {
+          assignmentsInExpression(classDeclaration.superclass(), report, assigned);
+        }
+        classDeclaration.methods().forEach(method -> assignmentsInStatement(method, report, assigned));
+        classDeclaration.classMethods().forEach(method -> assignmentsInStatement(method, report, assigned));
+      }
+      default -> {}
+    }
+  }
+
+  private static void assignmentsInExpression(Expr expression, Resolver.ResolutionReport report, Set<String> assigned) {
+    switch (expression) {
+      case Expr.Assignment assignment -> {
+        var coordinates = report.locals().get(assignment.name());
+        if (coordinates == null || coordinates.isGlobal()) {
+          assigned.add(assignment.name().lexeme());
+        }
+        assignmentsInExpression(assignment.value(), report, assigned);
+      }
+      case Expr.Trinary trinary -> {
+        assignmentsInExpression(trinary.head(), report, assigned);
+        assignmentsInExpression(trinary.left(), report, assigned);
+        assignmentsInExpression(trinary.right(), report, assigned);
+      }
+      case Expr.Binary binary -> {
+        assignmentsInExpression(binary.left(), report, assigned);
+        assignmentsInExpression(binary.right(), report, assigned);
+      }
+      case Expr.Logical logical -> {
+        assignmentsInExpression(logical.left(), report, assigned);
+        assignmentsInExpression(logical.right(), report, assigned);
+      }
+      case Expr.Unary unary -> assignmentsInExpression(unary.right(), report, assigned);
+      case Expr.Grouping grouping -> assignmentsInExpression(grouping.expression(), report, assigned);
+      case Expr.Call call -> {
+        assignmentsInExpression(call.callee(), report, assigned);
+        call.arguments().forEach(argument -> assignmentsInExpression(argument, report, assigned));
+      }
+      case Expr.Select select -> assignmentsInExpression(select.target(), report, assigned);
+      case Expr.Update update -> {
+        assignmentsInExpression(update.target(), report, assigned);
+        assignmentsInExpression(update.value(), report, assigned);
+      }
+      case Expr.Function function -> function.body().forEach(inner -> assignmentsInStatement(inner, report, assigned));
+      default -> {}
+    }
+  }
+
+  /** Checks function bodies for side effects, and for reads of anything which could change between calls */
+  private record Analysis(Resolver.ResolutionReport report, Set<String> pure, Set<String> constants) {
+    /** Whether statements are pure, {@code depth} scopes into the function */
+    boolean arePure(List<Stmt> statements, int depth) {
+      return statements.stream().allMatch(statement -> isPureStatement(statement, depth));
+    }
+
+    boolean isPureStatement(Stmt statement, int depth) {
+      return switch (statement) {
+        case Stmt.Expression expression -> isPureExpression(expression.expression(), depth);
+        case Stmt.Var declaration -> declaration.initializer() == null || isPureExpression(declaration.initializer(), depth);
+        case Stmt.Return returnStmt -> returnStmt.value() == null || isPureExpression(returnStmt.value(), depth);
+        case Stmt.Block block -> arePure(block.statements(), depth + 1);
+        case Stmt.If anIf -> isPureExpression(anIf.condition(), depth) && isPureStatement(anIf.whenTrue(), depth)
+                && (anIf.whenFalse() == null || isPureStatement(anIf.whenFalse(), depth));
+        case Stmt.While aWhile -> isPureExpression(aWhile.condition(), depth) && isPureStatement(aWhile.body(), depth);
+        case Stmt.LoopControl loopControl -> true;
+        default -> false;
+      };
+    }
+
+    boolean isPureExpression(Expr expression, int depth) {
+      return switch (expression) {
+        case Expr.Literal literal -> true;
+        case Expr.Variable variable -> isLocal(variable.name(), depth) || isGlobal(variable.name())
+                && (pure.contains(variable.name().lexeme()) || constants.contains(variable.name().lexeme()));
+        case Expr.Assignment assignment -> isLocal(assignment.name(), depth) && isPureExpression(assignment.value(), depth);
+        case Expr.Trinary trinary -> isPureExpression(trinary.head(), depth) && isPureExpression(trinary.left(), depth)
+                && isPureExpression(trinary.right(), depth);
+        case Expr.Binary binary -> isPureExpression(binary.left(), depth) && isPureExpression(binary.right(), depth);
+        case Expr.Logical logical -> isPureExpression(logical.left(), depth) && isPureExpression(logical.right(), depth);
+        case Expr.Unary unary -> isPureExpression(unary.right(), depth);
+        case Expr.Grouping grouping -> isPureExpression(grouping.expression(), depth);
+        case Expr.Call call -> call.callee() instanceof Expr.Variable callee && isGlobal(callee.name())
+                && pure.contains(callee.name().lexeme())
+                && call.arguments().stream().allMatch(argument -> isPureExpression(argument, depth));
+        default -> false;
+      };
+    }
+
+    /** Whether a variable is one of the function's own, declared in one of the scopes it is in */
+    private boolean isLocal(Token name, int depth) {
+      var coordinates = report.locals().get(name);
+      return coordinates != null && !coordinates.isGlobal() && coordinates.scope() < depth;
+    }
+
+    private boolean isGlobal(Token name) {
+      var coordinates = report.locals().get(name);
+      return coordinates == null || coordinates.isGlobal();
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.ClosureCompiler.Code;
+
+/** Unary minus, which specializes itself on numbers and becomes {@link Generic} (failing as it must) otherwise */
+abstract class NegateNode extends Node {
+  Node operand;
+  final Token operator;
+
+  private NegateNode(Token operator, Code operand) {
+    this.operator = operator;
+    this.operand = adopt(Node.of(operand));
+  }
+
+  static NegateNode create(Token operator, Code operand) {
+    return new Uninitialized(operator, operand);
+  }
+
+  abstract Object apply(Object value);
+
+  @Override
+  public Object evaluate(EnvironmentOptimized environment) {
+    return apply(operand.evaluate(environment));
+  }
+
+  @Override
+  void replaceChild(Node child, Node replacement) {
+    if (operand == child) {
+      operand = replacement;
+    }
+  }
+
+  static final class Uninitialized extends NegateNode {
+    private Uninitialized(Token operator, Code operand) {
+      super(operator, operand);
+    }
+
+    @Override
+    Object apply(Object value) {
+      NegateNode specialized = value instanceof Double ? new Doubles(operator, operand) : new Generic(operator, operand);
+      return replace(specialized).apply(value);
+    }
+  }
+
+  static final class Doubles extends NegateNode {
+    private Doubles(Token operator, Code operand) {
+      super(operator, operand);
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      try {
+        return evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return e.value;
+      }
+    }
+
+    @Override
+    double evaluateDouble(EnvironmentOptimized environment) throws UnexpectedResult {
+      try {
+        return -operand.evaluateDouble(environment);
+      } catch (UnexpectedResult e) {
+        return expectDouble(replace(new Generic(operator, operand)).apply(e.value));
+      }
+    }
+
+    @Override
+    Object apply(Object value) {
+      return value instanceof Double number ? (Object) (-number) : replace(new Generic(operator, operand)).apply(value);
+    }
+  }
+
+  static final class Generic extends NegateNode {
+    private Generic(Token operator, Code operand) {
+      super(operator, operand);
+    }
+
+    @Override
+    Object apply(Object value) {
+      if (value instanceof Double number) {
+        return -number;
+      }
+      throw new EvaluationError(operator, "Operand must be a number");
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * An executable node which can rewrite itself, in the style of a self-specializing AST interpreter:
+ * a node starts out uninitialized, replaces itself (in its parent) with a node specialized on the values it sees,
+ * and replaces that with a more general one should those values ever change.
+ * <p>
+ * A parent which expects a number asks its children for one with {@link #evaluateDouble}, which nodes specialized on
+ * numbers answer without boxing it. Numbers are only boxed where they escape, through {@link #evaluate}.
+ */
+abstract class Node implements ClosureCompiler.Code {
+  private Node parent;
+
+  /** What a node evaluated to instead of the number its parent expected */
+  static final class UnexpectedResult extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final transient Object value;
+
+    UnexpectedResult(Object value) {
+      super(null, null, false, false);
+      this.value = value;
+    }
+
+    /** Thrown to hand a value back rather than for anything having gone wrong, so it needs no stack trace */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  /** Evaluate to a number, throwing whatever else the node evaluates to instead */
+  double evaluateDouble(EnvironmentOptimized environment) throws UnexpectedResult {
+    return expectDouble(evaluate(environment));
+  }
+
+  static double expectDouble(Object value) throws UnexpectedResult {
+    if (value instanceof Double number) {
+      return number;
+    }
+    throw new UnexpectedResult(value);
+  }
+
+  /** Make a node the parent of a child, so that the child can replace itself */
+  final Node adopt(Node child) {
+    child.parent = this;
+    return child;
+  }
+
+  /** Replace this node with another in its parent, returning the replacement */
+  final <T extends Node> T replace(T replacement) {
+    parent.replaceChild(this, replacement);
+    ((Node) replacement).parent = parent;
+    return replacement;
+  }
+
+  /** Swap one of this node's children for its replacement */
+  void replaceChild(Node child, Node replacement) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " has no children to replace");
+  }
+
+  /** Code which is not a node, as the child of one: a leaf of the tree, which never needs to be rewritten */
+  static Node of(ClosureCompiler.Code code) {
+    return code instanceof Node node ? node : new Leaf(code);
+  }
+
+  private static final class Leaf extends Node {
+    private final ClosureCompiler.Code code;
+
+    private Leaf(ClosureCompiler.Code code) {
+      this.code = code;
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      return code.evaluate(environment);
+    }
+  }
+
+  /** Holds a tree of nodes for code that cannot itself be rewritten, such as a compiled closure */
+  static final class Root extends Node {
+    private Node child;
+
+    Root(Node child) {
+      this.child = adopt(child);
+    }
+
+    Node child() {
+      return child;
+    }
+
+    @Override
+    public Object evaluate(EnvironmentOptimized environment) {
+      return child.evaluate(environment);
+    }
+
+    @Override
+    double evaluateDouble(EnvironmentOptimized environment) throws UnexpectedResult {
+      return child.evaluateDouble(environment);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      this.child = replacement;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * <p>The instruction set of the {@link VirtualMachine}. Each instruction is a single byte, followed by its operands:</p>
+ * <ul>
+ *   <li><code>u8</code> - a single unsigned byte (local slots, upvalue indexes, argument counts)</li>
+ *   <li><code>u16</code> - two bytes, big-endian (constants, global slots, jump offsets)</li>
+ * </ul>
+ */
+final class OpCode {
+  private OpCode() {}
+
+  /** <code>u16</code> constant → push it */
+  static final byte CONSTANT = 0;
+  static final byte NIL = 1;
+  static final byte TRUE = 2;
+  static final byte FALSE = 3;
+  static final byte POP = 4;
+
+  /** <code>u8</code> slot relative to the frame */
+  static final byte GET_LOCAL = 5;
+  /** <code>u8</code> slot relative to the frame, leaving the value on the stack */
+  static final byte SET_LOCAL = 6;
+  /** <code>u16</code> {@link GlobalSlots} slot */
+  static final byte GET_GLOBAL = 7;
+  /** <code>u16</code> {@link GlobalSlots} slot, popping the value */
+  static final byte DEFINE_GLOBAL = 8;
+  /** <code>u16</code> {@link GlobalSlots} slot, leaving the value on the stack */
+  static final byte SET_GLOBAL = 9;
+  /** <code>u8</code> index into the running closure's upvalues */
+  static final byte GET_UPVALUE = 10;
+  /** <code>u8</code> index into the running closure's upvalues, leaving the value on the stack */
+  static final byte SET_UPVALUE = 11;
+
+  /** <code>u16</code> name constant; target → value (invoking it if it is a getter) */
+  static final byte GET_PROPERTY = 12;
+  /** <code>u16</code> name constant; target, value → value */
+  static final byte SET_PROPERTY = 13;
+  /** <code>u16</code> name constant; receiver, superclass → bound method */
+  static final byte GET_SUPER = 14;
+
+  static final byte EQUAL = 15;
+  static final byte NOT_EQUAL = 16;
+  static final byte GREATER = 17;
+  static final byte GREATER_EQUAL = 18;
+  static final byte LESS = 19;
+  static final byte LESS_EQUAL = 20;
+  static final byte ADD = 21;
+  static final byte SUBTRACT = 22;
+  static final byte MULTIPLY = 23;
+  static final byte DIVIDE = 24;
+  /** A binary operator the language parses but does not (yet) know how to apply, which always fails */
+  static final byte UNSUPPORTED_BINARY = 25;
+  static final byte NOT = 26;
+  static final byte NEGATE = 27;
+
+  static final byte PRINT = 28;
+  /** <code>u16</code> forward offset */
+  static final byte JUMP = 29;
+  /** <code>u16</code> forward offset, taken if the top of the stack is falsey (which is left on the stack) */
+  static final byte JUMP_IF_FALSE = 30;
+  /** <code>u16</code> backward offset */
+  static final byte LOOP = 31;
+  /** <code>u8</code> argument count; callee, arguments... → result */
+  static final byte CALL = 32;
+  /**
+   * <code>u16</code> prototype constant, followed by a pair of <code>u8</code>s for each upvalue:
+   * whether it captures a local of the enclosing frame (or else one of its upvalues) and which.
+   */
+  static final byte CLOSURE = 33;
+  static final byte CLOSE_UPVALUE = 34;
+  static final byte RETURN = 35;
+
+  /** <code>u16</code> name constant; superclass (or nil) → class */
+  static final byte CLASS = 36;
+  /** <code>u16</code> name constant; class, closure → class */
+  static final byte METHOD = 37;
+  /** <code>u16</code> name constant; class, closure → class */
+  static final byte CLASS_METHOD = 38;
+  /** class → class, result of running the metaclass initializer (or the class again, if there is none) */
+  static final byte INIT_CLASS = 39;
+  /** <code>u8</code> argument count; callee, arguments... → the callee's frame, in place of the current one */
+  static final byte TAIL_CALL = 40;
+}
@@ -0,0 +1,1182 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Rewrites a resolved program into one which does the same with fewer nodes, at an optimization level ({@code -O}):
+ * <ol>
+ *   <li>folds operators whose operands are constants, drops groupings and removes the branches of {@code if}s
+ *   (and {@code while}s) whose conditions are constants</li>
+ *   <li>also inlines calls of small functions: those declared once at the top level, never assigned, which only
+ *   return an expression (of no more nodes than the budget) not referring to themselves. The calls inlined are those
+ *   made after the declaration, with arguments which are constants or local variables, so that the parameters they
+ *   replace can be read any number of times, in any order</li>
+ *   <li>also moves what a {@code while} loop computes the same way every iteration out of it, and replaces the
+ *   multiplications of a {@code for} loop's counter by a constant with variables stepped along with it</li>
+ *   <li>also replaces the instances a function creates and only ever reads or updates the fields of with a variable
+ *   for each field, for classes declared once at the top level whose initializers only set fields to what their
+ *   parameters make (see {@link #scalars})</li>
+ * </ol>
+ * Constants are folded by evaluating them, so they mean exactly what they would have at run time. Anything which would
+ * fail, such as a division by zero, is left for the run to fail on, where it would have.
+ * <p>
+ * The rewritten program keeps the tokens of the original, so that it runs against the same resolution,
+ * which has to be strict: lazily resolved function bodies are kept track of as they were declared.
+ * The variables it introduces take the next free slots of the scopes they are introduced into, resolved as they are.
+ */
+final class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  static final int INLINING = 2;
+  static final int LOOPS = 3;
+  static final int SCALARS = 4;
+  static final int MAX_LEVEL = SCALARS;
+  static final int INLINE_BUDGET = 16;
+
+  /**
+   * The optimized program and its resolution (a copy of the original's, with the variables the optimizer introduced
+   * and the returns it rebuilt), how many fewer nodes it has than the original (peeled loops have more), how many calls
+   * were inlined into it, how many expressions were hoisted out of loops or multiplications reduced in them, and how
+   * many of the places creating instances no longer allocate one
+   */
+  record Result(Program program, Resolver.ResolutionReport report, int eliminated, int inlined, int hoisted,
+                int reduced, int scalarized) {
+    void printStats(PrintStream printTarget) {
+      printTarget.printf("""
+      Optimizer:
+        Nodes eliminated: %d
+        Call sites inlined: %d
+        Invariants hoisted: %d
+        Multiplications reduced: %d
+        Allocations replaced by locals: %d
+      """, eliminated, inlined, hoisted, reduced, scalarized);
+    }
+  }
+
+  /** What an expression in a loop is replaced with, once optimized, this many blocks deep */
+  private interface Replacement {
+    Expr replace(Expr optimized, int depth);
+  }
+
+  /** The free slots of a local scope, after those the resolver numbered */
+  private static final class Slots {
+    private int next;
+
+    Slots(int next) {
+      this.next = next;
+    }
+  }
+
+  private final Resolver.ResolutionReport report;
+  private final int level;
+  private final int inlineBudget;
+  /** Evaluates constants, which need no environment */
+  private final Interpreter folder = new Interpreter();
+  /** The functions declared so far which calls can be inlined, by name */
+  private final Map<String, Stmt.Function> inlinable = new HashMap<>();
+  /** The globals each of the inlinable functions reads, by the function's name */
+  private final Map<String, Set<String>> globalsRead = new HashMap<>();
+  /**
+   * How many of the local scopes enclosing what is being optimized declare each name. A call inlined there must not
+   * read a global of the same name: walking the tree by name would find the local instead.
+   */
+  private final Map<String, Integer> shadowed = new HashMap<>();
+  /** The initializers of the classes declared so far whose instances can be replaced by their fields, by class name */
+  private final Map<String, Stmt.Function> scalarizable = new HashMap<>();
+  /** The arguments of the call being inlined, by the name of the parameter they are bound to */
+  private Map<String, Expr> bindings;
+  /** The functions being inlined, which calls in what they return (to one declared later) can lead back to */
+  private final List<Stmt.Function> inlining = new ArrayList<>();
+  private int inlined;
+  /** What the whole program assigns, updates and declares */
+  private Census census;
+  /** The local scope being optimized, null at the top level, and how many blocks into its function it is */
+  private Slots slots;
+  private int depth;
+  /** The expressions of the loops being optimized which are replaced, and the statements followed by more */
+  private final Map<Expr, Replacement> replacements = new IdentityHashMap<>();
+  private final Map<Stmt, List<IntFunction<Stmt>>> followers = new IdentityHashMap<>();
+  private final Set<Expr> hoisted = Collections.newSetFromMap(new IdentityHashMap<>());
+  private final Set<Expr> reduced = Collections.newSetFromMap(new IdentityHashMap<>());
+  private int scalarized;
+  /** Numbers the variables introduced, which are named so that no identifier can be the same */
+  private int introductions;
+
+  private Optimizer(Resolver.ResolutionReport report, int level, int inlineBudget) {
+    this.report = report;
+    this.level = level;
+    this.inlineBudget = inlineBudget;
+  }
+
+  static Result optimize(Program program, Resolver.ResolutionReport report, Lox.Options options) {
+    return optimize(program, report, options.optimization(), options.inlineBudget());
+  }
+
+  static Result optimize(Program program, Resolver.ResolutionReport report, int level, int inlineBudget) {
+    if (level <= 0) {
+      return new Result(program, report, 0, 0, 0, 0, 0);
+    }
+    // The caller's report stays as the resolver left it, so that it can be optimized again or run as it is
+    var optimizer = new Optimizer(report.copy(), level, inlineBudget);
+    var optimized = new Program();
+    optimized.addAll(optimizer.topLevel(program));
+    return new Result(optimized, optimizer.report, size(program) - size(optimized), optimizer.inlined,
+            optimizer.hoisted.size(), optimizer.reduced.size(), optimizer.scalarized);
+  }
+
+  private List<Stmt> topLevel(List<Stmt> program) {
+    var declarations = new HashMap<String, Integer>();
+    for (var statement : program) {
+      var name = switch (statement) {
+        case Stmt.Function function -> function.name();
+        case Stmt.Var declaration -> declaration.name();
+        case Stmt.ClassDeclaration classDeclaration -> classDeclaration.name();
+        default -> null;
+      };
+      if (name != null) {
+        declarations.merge(name.lexeme(), 1, Integer::sum);
+      }
+    }
+    census = new Census();
+    program.forEach(statement -> statement.accept(census));
+
+    var optimized = new ArrayList<Stmt>(program.size());
+    for (var statement : program) {
+      var kept = statement.accept(this);
+      if (kept == null) {
+        continue;
+      }
+      optimized.add(kept);
+      // Calls from here on run once the declaration has, so they can only be to this function
+      var globals = new HashSet<String>();
+      if (level >= INLINING && kept instanceof Stmt.Function function
+              && declarations.get(function.name().lexeme()) == 1
+              && !census.assigned.containsKey(function.name().lexeme())
+              && isInlinable(function, globals)) {
+        inlinable.put(function.name().lexeme(), function);
+        globalsRead.put(function.name().lexeme(), globals);
+      }
+      // Likewise for instances created from here on
+      if (level >= SCALARS && kept instanceof Stmt.ClassDeclaration classDeclaration
+              && declarations.get(classDeclaration.name().lexeme()) == 1
+              && !census.assigned.containsKey(classDeclaration.name().lexeme())) {
+        var initializer = initializer(classDeclaration);
+        if (initializer != null) {
+          scalarizable.put(classDeclaration.name().lexeme(), initializer);
+        }
+      }
+    }
+    return optimized;
+  }
+
+  // Statements, which are null once they do nothing
+
+  @Override
+  public Stmt visit(Stmt.Expression expression) {
+    var optimized = optimize(expression.expression());
+    // A constant has no effect of its own
+    return optimized instanceof Expr.Literal ? null : new Stmt.Expression(optimized);
+  }
+
+  @Override
+  public Stmt visit(Stmt.Print print) {
+    return new Stmt.Print(optimize(print.expression()));
+  }
+
+  @Override
+  public Stmt visit(Stmt.Var declaration) {
+    var initializer = declaration.initializer() == null ? null : optimize(declaration.initializer());
+    return new Stmt.Var(declaration.name(), initializer);
+  }
+
+  @Override
+  public Stmt visit(Stmt.Block block) {
+    var outer = slots;
+    slots = new Slots(firstFreeSlot(block.statements(), 0));
+    depth++;
+    var names = declarations(block.statements());
+    shadow(names);
+    try {
+      var statements = statements(block.statements());
+      return statements.isEmpty() ? null : new Stmt.Block(statements);
+    } finally {
+      unshadow(names);
+      depth--;
+      slots = outer;
+    }
+  }
+
+  @Override
+  public Stmt visit(Stmt.If anIf) {
+    var condition = optimize(anIf.condition());
+    if (condition instanceof Expr.Literal literal) {
+      var taken = Interpreter.isTruthy(literal.value()) ? anIf.whenTrue() : anIf.whenFalse();
+      return taken == null ? null : taken.accept(this);
+    }
+    var whenFalse = anIf.whenFalse() == null ? null : anIf.whenFalse().accept(this);
+    return new Stmt.If(condition, body(anIf.whenTrue()), whenFalse);
+  }
+
+  @Override
+  public Stmt visit(Stmt.While aWhile) {
+    var condition = optimize(aWhile.condition());
+    if (condition instanceof Expr.Literal literal && !Interpreter.isTruthy(literal.value())) {
+      return null;
+    }
+    return new Stmt.While(condition, body(aWhile.body()));
+  }
+
+  @Override
+  public Stmt visit(Stmt.LoopControl loopControl) {
+    return loopControl;
+  }
+
+  @Override
+  public Stmt.Function visit(Stmt.Function function) {
+    return new Stmt.Function(function.name(), function.params(), body(function.params(), function.body()), function.type());
+  }
+
+  @Override
+  public Stmt visit(Stmt.Return returnStmt) {
+    var value = returnStmt.value() == null ? null : optimize(returnStmt.value());
+    var optimized = new Stmt.Return(returnStmt.keyword(), value);
+    // What the resolver found stays with the statement
+    if (report.isTailCall(returnStmt)) {
+      report.tailCalls().add(optimized);
+    }
+    return optimized;
+  }
+
+  @Override
+  public Stmt visit(Stmt.ClassDeclaration classDeclaration) {
+    return new Stmt.ClassDeclaration(
+            classDeclaration.name(),
+            classDeclaration.superclass(),
+            classDeclaration.methods().stream().map(this::visit).toList(),
+            classDeclaration.classMethods().stream().map(this::visit).toList());
+  }
+
+  // Expressions
+
+  @Override
+  public Expr visit(Expr.Trinary trinary) {
+    var head = optimize(trinary.head());
+    if (head instanceof Expr.Literal literal) {
+      return optimize(Interpreter.isTruthy(literal.value()) ? trinary.left() : trinary.right());
+    }
+    return new Expr.Trinary(head, trinary.firstOp(), optimize(trinary.left()), trinary.secondOp(), optimize(trinary.right()));
+  }
+
+  @Override
+  public Expr visit(Expr.Binary binary) {
+    var left = optimize(binary.left());
+    var right = optimize(binary.right());
+    if (binary.operator().type() == TokenType.ELVIS && left instanceof Expr.Literal literal) {
+      return Interpreter.isTruthy(literal.value()) ? left : right;
+    }
+    return fold(new Expr.Binary(left, binary.operator(), right), left, right);
+  }
+
+  @Override
+  public Expr visit(Expr.Logical logical) {
+    var left = optimize(logical.left());
+    if (left instanceof Expr.Literal literal) {
+      var isOr = logical.operator().type() == TokenType.OR;
+      // Whichever operand the operator evaluates to, when the left one is known
+      return Interpreter.isTruthy(literal.value()) == isOr ? left : optimize(logical.right());
+    }
+    return new Expr.Logical(left, logical.operator(), optimize(logical.right()));
+  }
+
+  @Override
+  public Expr visit(Expr.Unary unary) {
+    var operand = optimize(unary.right());
+    return fold(new Expr.Unary(unary.operator(), operand), operand);
+  }
+
+  @Override
+  public Expr visit(Expr.Grouping grouping) {
+    return optimize(grouping.expression());
+  }
+
+  @Override
+  public Expr visit(Expr.Literal literal) {
+    return literal;
+  }
+
+  @Override
+  public Expr visit(Expr.Variable variable) {
+    if (bindings != null && isLocal(variable.name()) && bindings.containsKey(variable.name().lexeme())) {
+      return bindings.get(variable.name().lexeme());
+    }
+    return variable;
+  }
+
+  @Override
+  public Expr visit(Expr.Assignment assignment) {
+    return new Expr.Assignment(assignment.name(), optimize(assignment.value()));
+  }
+
+  @Override
+  public Expr visit(Expr.Call call) {
+    var callee = optimize(call.callee());
+    var arguments = call.arguments().stream().map(this::optimize).toList();
+    var inlined = inline(callee, arguments);
+    return inlined != null ? inlined : new Expr.Call(callee, call.paren(), arguments);
+  }
+
+  @Override
+  public Expr visit(Expr.Function function) {
+    // A function expression's name is declared in a scope of its own, around its body's
+    var name = function.isAnonymous() ? List.<String>of() : List.of(function.name().lexeme());
+    shadow(name);
+    List<Stmt> body;
+    try {
+      body = body(function.arguments(), function.body());
+    } finally {
+      unshadow(name);
+    }
+    return new Expr.Function(function.keyword(), function.name(), function.arguments(), body, function.isAnonymous());
+  }
+
+  @Override
+  public Expr visit(Expr.Select select) {
+    return new Expr.Select(optimize(select.target()), select.field());
+  }
+
+  @Override
+  public Expr visit(Expr.Update update) {
+    return new Expr.Update(optimize(update.target()), update.field(), optimize(update.value()));
+  }
+
+  @Override
+  public Expr visit(Expr.This the) {
+    return the;
+  }
+
+  @Override
+  public Expr visit(Expr.Super superCall) {
+    return superCall;
+  }
+
+  // Helpers
+
+  private Expr optimize(Expr expression) {
+    var optimized = expression.accept(this);
+    var replacement = replacements.get(expression);
+    return replacement == null ? optimized : replacement.replace(optimized, depth);
+  }
+
+  private List<Stmt> statements(List<Stmt> statements) {
+    var optimized = new ArrayList<Stmt>(statements.size());
+    var replaced = new ArrayList<Expr>();
+    try {
+      for (int i = 0; i < statements.size(); i++) {
+        var statement = statements.get(i);
+        if (level >= LOOPS && slots != null && statement instanceof Stmt.While aWhile) {
+          optimized.addAll(loop(aWhile, statements));
+          continue;
+        }
+        if (level >= SCALARS && slots != null && statement instanceof Stmt.Var declaration) {
+          var fields = scalars(declaration, statements.subList(i + 1, statements.size()), replaced);
+          if (fields != null) {
+            optimized.addAll(fields);
+            continue;
+          }
+        }
+        var kept = statement.accept(this);
+        if (kept != null) {
+          optimized.add(kept);
+        }
+        for (var follower : followers.getOrDefault(statement, List.of())) {
+          optimized.add(follower.apply(depth));
+        }
+      }
+      return optimized;
+    } finally {
+      replaced.forEach(replacements::remove);
+    }
+  }
+
+  /** The body of a function, which numbers its slots from its parameters' */
+  private List<Stmt> body(List<Token> params, List<Stmt> body) {
+    var outerSlots = slots;
+    var outerDepth = depth;
+    slots = new Slots(firstFreeSlot(body, params.size()));
+    depth = 0;
+    var names = new ArrayList<String>();
+    params.forEach(param -> names.add(param.lexeme()));
+    names.addAll(declarations(body));
+    shadow(names);
+    try {
+      return statements(body);
+    } finally {
+      unshadow(names);
+      slots = outerSlots;
+      depth = outerDepth;
+    }
+  }
+
+  /** The names declared directly in some statements, in the scope they are in */
+  private static List<String> declarations(List<Stmt> statements) {
+    var names = new ArrayList<String>();
+    for (var statement : statements) {
+      switch (statement) {
+        case Stmt.Function function -> names.add(function.name().lexeme());
+        case Stmt.Var declaration -> names.add(declaration.name().lexeme());
+        case Stmt.ClassDeclaration classDeclaration -> names.add(classDeclaration.name().lexeme());
+        default -> { }
+      }
+    }
+    return names;
+  }
+
+  private void shadow(List<String> names) {
+    names.forEach(name -> shadowed.merge(name, 1, Integer::sum));
+  }
+
+  private void unshadow(List<String> names) {
+    names.forEach(name -> shadowed.computeIfPresent(name, (unused, count) -> count == 1 ? null : count - 1));
+  }
+
+  /** The slot after those of the declarations made directly in some statements, and of the parameters before them */
+  private int firstFreeSlot(List<Stmt> statements, int params) {
+    var free = params;
+    for (var statement : statements) {
+      var name = switch (statement) {
+        case Stmt.Function function -> function.name();
+        case Stmt.Var declaration -> declaration.name();
+        case Stmt.ClassDeclaration classDeclaration -> classDeclaration.name();
+        default -> null;
+      };
+      var coordinates = name == null ? null : report.locals().get(name);
+      if (coordinates != null && !coordinates.isGlobal()) {
+        free = Math.max(free, coordinates.id() + 1);
+      }
+    }
+    return free;
+  }
+
+  /** A statement which has to be there, even when it does nothing */
+  private Stmt body(Stmt statement) {
+    return Objects.requireNonNullElseGet(statement.accept(this), Stmt.Block::new);
+  }
+
+  /** The value of an operator applied to constants, unless applying it fails (which is left to the run) */
+  private Expr fold(Expr operator, Expr... operands) {
+    for (var operand : operands) {
+      if (!(operand instanceof Expr.Literal)) {
+        return operator;
+      }
+    }
+    try {
+      return new Expr.Literal(operator.accept(folder));
+    } catch (EvaluationError e) {
+      return operator;
+    }
+  }
+
+  // Inlining
+
+  /** The expression a function returns, with its parameters bound to the arguments, if the call can be inlined */
+  private Expr inline(Expr callee, List<Expr> arguments) {
+    if (!(callee instanceof Expr.Variable variable) || isLocal(variable.name())) {
+      return null;
+    }
+    var function = inlinable.get(variable.name().lexeme());
+    if (function == null || function.params().size() != arguments.size() || inlining.contains(function)
+            || !arguments.stream().allMatch(this::isTrivial)
+            || globalsRead.get(variable.name().lexeme()).stream().anyMatch(shadowed::containsKey)) {
+      return null;
+    }
+    var outer = bindings;
+    bindings = new HashMap<>();
+    for (int i = 0; i < arguments.size(); i++) {
+      bindings.put(function.params().get(i).lexeme(), arguments.get(i));
+    }
+    inlining.add(function);
+    try {
+      inlined++;
+      // Binding constants may well leave more to fold
+      return optimize(((Stmt.Return) function.body().getFirst()).value());
+    } finally {
+      inlining.removeLast();
+      bindings = outer;
+    }
+  }
+
+  /** Whether a function can be inlined, collecting the globals it reads */
+  private boolean isInlinable(Stmt.Function function, Set<String> globals) {
+    return function.body().size() == 1
+            && function.body().getFirst() instanceof Stmt.Return returnStmt
+            && returnStmt.value() != null
+            && returnStmt.value().accept(new Census()) <= inlineBudget
+            && isInlinable(returnStmt.value(), function.name(), globals);
+  }
+
+  /** Whether an expression means the same wherever it is inlined: it only reads parameters and globals */
+  private boolean isInlinable(Expr expression, Token function, Set<String> globals) {
+    return switch (expression) {
+      case Expr.Literal literal -> true;
+      case Expr.Variable variable -> {
+        if (isLocal(variable.name())) {
+          yield true;
+        }
+        globals.add(variable.name().lexeme());
+        yield !variable.name().lexeme().equals(function.lexeme());
+      }
+      case Expr.Binary binary -> isInlinable(binary.left(), function, globals)
+              && isInlinable(binary.right(), function, globals);
+      case Expr.Logical logical -> isInlinable(logical.left(), function, globals)
+              && isInlinable(logical.right(), function, globals);
+      case Expr.Unary unary -> isInlinable(unary.right(), function, globals);
+      case Expr.Trinary trinary -> isInlinable(trinary.head(), function, globals)
+              && isInlinable(trinary.left(), function, globals) && isInlinable(trinary.right(), function, globals);
+      case Expr.Select select -> isInlinable(select.target(), function, globals);
+      case Expr.Call call -> isInlinable(call.callee(), function, globals)
+              && call.arguments().stream().allMatch(argument -> isInlinable(argument, function, globals));
+      default -> false;
+    };
+  }
+
+  /** Arguments which can be evaluated any number of times, in any order, without it showing */
+  private boolean isTrivial(Expr argument) {
+    return argument instanceof Expr.Literal || argument instanceof Expr.Variable variable && isLocal(variable.name());
+  }
+
+  private boolean isLocal(Token name) {
+    var coordinates = report.locals().get(name);
+    return coordinates != null && !coordinates.isGlobal();
+  }
+
+  // Loops
+
+  /** A variable introduced into the local scope being optimized, taking the scope's next free slot */
+  private final class Introduced {
+    private final String name;
+    private final int id = slots.next++;
+    private final int base = depth;
+
+    /** A variable for a loop */
+    Introduced() {
+      this("loop");
+    }
+
+    Introduced(String purpose) {
+      this.name = purpose + "#" + ++introductions;
+    }
+
+    /** A token naming it from this many blocks into the function, resolved to its slot */
+    Token at(int blocks) {
+      var distance = blocks - base;
+      var token = new Token(TokenType.IDENTIFIER, name, null, 0, distance);
+      report.locals().put(token, new Resolver.Coordinates(distance, id));
+      return token;
+    }
+  }
+
+  /**
+   * A loop, preceded by the variables introduced for it. When its condition is pure and its body cannot leave it
+   * early, the first iteration is peeled off and assigns each invariant to a variable where it is evaluated, so that
+   * it fails exactly where it would have. The loop then reads the variables instead.
+   */
+  private List<Stmt> loop(Stmt.While aWhile, List<Stmt> enclosing) {
+    var text = new Census();
+    aWhile.accept(text);
+    var before = new ArrayList<Stmt>();
+    var replaced = new ArrayList<Expr>();
+    var followed = new ArrayList<Stmt>();
+    try {
+      reduce(aWhile, enclosing, text, before, replaced, followed);
+      var invariants = new ArrayList<Expr>();
+      if (isPure(aWhile.condition()) && !isConstant(aWhile.condition()) && !exits(aWhile.body())) {
+        invariantsInExpression(aWhile.condition(), 0, text, invariants);
+        invariantsInStatement(aWhile.body(), 0, text, invariants);
+      }
+      if (invariants.isEmpty()) {
+        var kept = visit(aWhile);
+        if (kept != null) {
+          before.add(kept);
+        }
+        return before;
+      }
+      var variables = new ArrayList<Introduced>();
+      for (var invariant : invariants) {
+        var variable = new Introduced();
+        variables.add(variable);
+        before.add(new Stmt.Var(variable.at(depth), null));
+        replaced.add(invariant);
+        replacements.put(invariant, (optimized, blocks) -> new Expr.Assignment(variable.at(blocks), optimized));
+      }
+      before.add(new Stmt.If(optimize(aWhile.condition()), body(aWhile.body()), null));
+      for (int i = 0; i < invariants.size(); i++) {
+        var variable = variables.get(i);
+        replacements.put(invariants.get(i), (optimized, blocks) -> new Expr.Variable(variable.at(blocks)));
+      }
+      before.add(new Stmt.While(optimize(aWhile.condition()), body(aWhile.body())));
+      hoisted.addAll(invariants);
+      return before;
+    } finally {
+      replaced.forEach(replacements::remove);
+      followed.forEach(followers::remove);
+    }
+  }
+
+  /**
+   * Replaces the multiplications of a {@code for} loop's counter by constants with variables of their own, which
+   * are stepped along with it. Only whole numbers are, whose sums are as exact as their products (up to 2^53).
+   */
+  private void reduce(Stmt.While aWhile, List<Stmt> enclosing, Census text,
+                      List<Stmt> before, List<Expr> replaced, List<Stmt> followed) {
+    // A counter declared for the loop alone, which only the increment at the end of its body assigns
+    if (enclosing.size() != 2 || enclosing.getLast() != aWhile
+            || !(enclosing.getFirst() instanceof Stmt.Var(var counter, Expr.Literal(Double start)))
+            || !(aWhile.body() instanceof Stmt.Block block) || block.statements().isEmpty()
+            || !(block.statements().getLast() instanceof Stmt.Expression increment)
+            || !(increment.expression() instanceof Expr.Assignment(
+                    var assigned, Expr.Binary(Expr.Variable(var read), var plus, Expr.Literal(Double step))))
+            || plus.type() != TokenType.PLUS || !isWhole(start) || !isWhole(step)
+            || text.assigned.getOrDefault(counter.lexeme(), 0) != 1) {
+      return;
+    }
+    var slot = report.locals().get(counter);
+    if (slot == null || slot.isGlobal()
+            || !isSlot(assigned, 1, slot.id()) || !isSlot(read, 1, slot.id())) {
+      return;
+    }
+    var multiplications = new LinkedHashMap<Double, List<Expr>>();
+    BiConsumer<Expr, Integer> find = (expression, blocks) -> {
+      if (expression instanceof Expr.Binary(var left, var operator, var right) && operator.type() == TokenType.STAR
+              && !replacements.containsKey(expression)) {
+        var factor = left instanceof Expr.Variable variable && isSlot(variable.name(), blocks, slot.id()) ? right
+                : right instanceof Expr.Variable variable && isSlot(variable.name(), blocks, slot.id()) ? left
+                : null;
+        if (factor instanceof Expr.Literal(Double constant) && isWhole(constant)) {
+          multiplications.computeIfAbsent(constant, key -> new ArrayList<>()).add(expression);
+        }
+      }
+    };
+    scanExpression(aWhile.condition(), 0, find);
+    scanStatement(aWhile.body(), 0, find);
+    multiplications.forEach((factor, found) -> {
+      var variable = new Introduced();
+      before.add(new Stmt.Var(variable.at(depth), new Expr.Literal(start * factor)));
+      for (var multiplication : found) {
+        replaced.add(multiplication);
+        replacements.put(multiplication, (optimized, blocks) -> new Expr.Variable(variable.at(blocks)));
+      }
+      followed.add(increment);
+      followers.computeIfAbsent(increment, key -> new ArrayList<>()).add(blocks -> {
+        var name = variable.at(blocks);
+        return new Stmt.Expression(
+                new Expr.Assignment(name, new Expr.Binary(new Expr.Variable(name), plus, new Expr.Literal(step * factor))));
+      });
+      reduced.addAll(found);
+    });
+  }
+
+  /** Whether a name, this many blocks into the scope being optimized, is resolved to one of its slots */
+  private boolean isSlot(Token name, int blocks, int slot) {
+    return new Resolver.Coordinates(blocks, slot).equals(report.locals().get(name));
+  }
+
+  private static boolean isWhole(double value) {
+    return !Double.isInfinite(value) && value == Math.rint(value);
+  }
+
+  /** Whether a statement can break out of the loop it is in, or go on to its next iteration */
+  private static boolean exits(Stmt statement) {
+    return switch (statement) {
+      case Stmt.LoopControl loopControl -> true;
+      case Stmt.Block block -> block.statements().stream().anyMatch(Optimizer::exits);
+      case Stmt.If anIf -> exits(anIf.whenTrue()) || anIf.whenFalse() != null && exits(anIf.whenFalse());
+      default -> false;
+    };
+  }
+
+  /** Whether an expression evaluated again, with nothing done since, has the same value and does nothing else */
+  private boolean isPure(Expr expression) {
+    return switch (expression) {
+      case Expr.Literal literal -> true;
+      case Expr.Variable variable -> true;
+      case Expr.This the -> true;
+      case Expr.Grouping grouping -> isPure(grouping.expression());
+      case Expr.Unary unary -> isPure(unary.right());
+      case Expr.Binary binary -> isPure(binary.left()) && isPure(binary.right());
+      case Expr.Logical logical -> isPure(logical.left()) && isPure(logical.right());
+      case Expr.Trinary trinary -> isPure(trinary.head()) && isPure(trinary.left()) && isPure(trinary.right());
+      // Unless it could be a getter
+      case Expr.Select select -> isPure(select.target()) && !census.methods.contains(select.field().lexeme());
+      default -> false;
+    };
+  }
+
+  /** Whether a pure expression this many blocks into a loop has the same value in each of its iterations */
+  private boolean isInvariant(Expr expression, int blocks, Census loop) {
+    return switch (expression) {
+      case Expr.Literal literal -> true;
+      case Expr.Variable variable -> isUnchanging(variable.name(), blocks, loop);
+      case Expr.This the -> true;
+      case Expr.Grouping grouping -> isInvariant(grouping.expression(), blocks, loop);
+      case Expr.Unary unary -> isInvariant(unary.right(), blocks, loop);
+      case Expr.Binary binary -> isInvariant(binary.left(), blocks, loop) && isInvariant(binary.right(), blocks, loop);
+      case Expr.Logical logical -> isInvariant(logical.left(), blocks, loop) && isInvariant(logical.right(), blocks, loop);
+      case Expr.Trinary trinary -> isInvariant(trinary.head(), blocks, loop)
+              && isInvariant(trinary.left(), blocks, loop) && isInvariant(trinary.right(), blocks, loop);
+      // A field nothing in the loop could update, which is not a getter
+      case Expr.Select select -> isInvariant(select.target(), blocks, loop)
+              && !census.methods.contains(select.field().lexeme())
+              && !loop.calls && !loop.updated.contains(select.field().lexeme());
+      default -> false;
+    };
+  }
+
+  /**
+   * Whether a variable is declared outside a loop and nothing assigns it while the loop runs: neither the loop itself
+   * nor, when the loop calls anything, any other part of the program
+   */
+  private boolean isUnchanging(Token name, int blocks, Census loop) {
+    var coordinates = report.locals().get(name);
+    return coordinates != null
+            && (coordinates.isGlobal() || coordinates.scope() >= blocks)
+            && !loop.assigned.containsKey(name.lexeme())
+            && !(loop.calls && census.assigned.containsKey(name.lexeme()));
+  }
+
+  /** Whether an expression reads nothing, so that it folds instead */
+  private static boolean isConstant(Expr expression) {
+    var reads = new boolean[1];
+    scanExpression(expression, 0, (part, blocks) -> reads[0] |= part instanceof Expr.Variable || part instanceof Expr.This);
+    return !reads[0];
+  }
+
+  /** The invariants worth hoisting among the parts of a statement which are evaluated whenever it is run */
+  private void invariantsInStatement(Stmt statement, int blocks, Census loop, List<Expr> found) {
+    switch (statement) {
+      case Stmt.Expression expression -> invariantsInExpression(expression.expression(), blocks, loop, found);
+      case Stmt.Print print -> invariantsInExpression(print.expression(), blocks, loop, found);
+      case Stmt.Var declaration when declaration.initializer() != null ->
+              invariantsInExpression(declaration.initializer(), blocks, loop, found);
+      case Stmt.Return returnStmt when returnStmt.value() != null -> invariantsInExpression(returnStmt.value(), blocks, loop, found);
+      case Stmt.If anIf -> invariantsInExpression(anIf.condition(), blocks, loop, found);
+      case Stmt.While aWhile -> invariantsInExpression(aWhile.condition(), blocks, loop, found);
+      case Stmt.Block block -> block.statements().forEach(inner -> invariantsInStatement(inner, blocks + 1, loop, found));
+      default -> { }
+    }
+  }
+
+  /** The largest invariants worth hoisting among the parts of an expression which are evaluated whenever it is */
+  private void invariantsInExpression(Expr expression, int blocks, Census loop, List<Expr> found) {
+    if (replacements.containsKey(expression)) {
+      return;
+    }
+    var worthHoisting = !(expression instanceof Expr.Literal || expression instanceof Expr.Variable
+            || expression instanceof Expr.This || expression instanceof Expr.Grouping || isConstant(expression));
+    if (worthHoisting && isInvariant(expression, blocks, loop)) {
+      found.add(expression);
+      return;
+    }
+    switch (expression) {
+      // Only the operands which are always evaluated
+      case Expr.Binary binary when binary.operator().type() == TokenType.ELVIS ->
+              invariantsInExpression(binary.left(), blocks, loop, found);
+      case Expr.Binary binary -> {
+        invariantsInExpression(binary.left(), blocks, loop, found);
+        invariantsInExpression(binary.right(), blocks, loop, found);
+      }
+      case Expr.Logical logical -> invariantsInExpression(logical.left(), blocks, loop, found);
+      case Expr.Trinary trinary -> invariantsInExpression(trinary.head(), blocks, loop, found);
+      case Expr.Unary unary -> invariantsInExpression(unary.right(), blocks, loop, found);
+      case Expr.Grouping grouping -> invariantsInExpression(grouping.expression(), blocks, loop, found);
+      case Expr.Assignment assignment -> invariantsInExpression(assignment.value(), blocks, loop, found);
+      case Expr.Call call -> {
+        invariantsInExpression(call.callee(), blocks, loop, found);
+        call.arguments().forEach(argument -> invariantsInExpression(argument, blocks, loop, found));
+      }
+      case Expr.Select select -> invariantsInExpression(select.target(), blocks, loop, found);
+      case Expr.Update update -> {
+        invariantsInExpression(update.target(), blocks, loop, found);
+        invariantsInExpression(update.value(), blocks, loop, found);
+      }
+      default -> { }
+    }
+  }
+
+  // Scalar replacement
+
+  /**
+   * The initializer of a class whose instances can be replaced by their fields: one with no superclass, whose
+   * initializer only sets distinct fields of {@code this} to what constants and its parameters make,
+   * so that running it is no different from evaluating those in turn
+   */
+  private Stmt.Function initializer(Stmt.ClassDeclaration classDeclaration) {
+    var initializers = classDeclaration.methods().stream()
+            .filter(method -> method.name().lexeme().equals(LoxClass.INIT))
+            .toList();
+    if (classDeclaration.superclass() != null || initializers.size() != 1 || initializers.getFirst().isGetter()) {
+      return null;
+    }
+    var initializer = initializers.getFirst();
+    var params = new HashSet<String>();
+    for (var param : initializer.params()) {
+      if (!params.add(param.lexeme())) {
+        return null;
+      }
+    }
+    var fields = new HashSet<String>();
+    for (var statement : initializer.body()) {
+      if (!(statement instanceof Stmt.Expression(Expr.Update(Expr.This the, var field, var value)))
+              || !fields.add(field.lexeme()) || !isParametric(value, params)) {
+        return null;
+      }
+    }
+    return initializer;
+  }
+
+  /** Whether an expression only operates on constants and the parameters of the function it is in */
+  private boolean isParametric(Expr expression, Set<String> params) {
+    return switch (expression) {
+      case Expr.Literal literal -> true;
+      case Expr.Variable variable -> isLocal(variable.name()) && params.contains(variable.name().lexeme());
+      case Expr.Grouping grouping -> isParametric(grouping.expression(), params);
+      case Expr.Unary unary -> isParametric(unary.right(), params);
+      case Expr.Binary binary -> isParametric(binary.left(), params) && isParametric(binary.right(), params);
+      case Expr.Logical logical -> isParametric(logical.left(), params) && isParametric(logical.right(), params);
+      case Expr.Trinary trinary -> isParametric(trinary.head(), params)
+              && isParametric(trinary.left(), params) && isParametric(trinary.right(), params);
+      default -> false;
+    };
+  }
+
+  /**
+   * The declarations replacing one of a local variable initialized to a new instance, if the instance cannot escape
+   * the scope creating it: the statements after the declaration never assign the variable, and only ever use it
+   * (outside of any function they declare) to read or update the fields its initializer sets. Each argument of the
+   * initializer is declared as a variable, then each field, unless it is set to an argument which can be shared:
+   * the field is never updated, or nothing else reads the argument. The reads and updates of the fields become reads
+   * and assignments of their variables.
+   */
+  private List<Stmt> scalars(Stmt.Var declaration, List<Stmt> rest, List<Expr> replaced) {
+    if (!(declaration.initializer() instanceof Expr.Call(Expr.Variable(var klass), var paren, var arguments))
+            || isLocal(klass)) {
+      return null;
+    }
+    var initializer = scalarizable.get(klass.lexeme());
+    var slot = report.locals().get(declaration.name());
+    if (initializer == null || initializer.params().size() != arguments.size() || slot == null || slot.isGlobal()) {
+      return null;
+    }
+    var values = new LinkedHashMap<String, Expr>();
+    for (var statement : initializer.body()) {
+      var update = (Expr.Update) ((Stmt.Expression) statement).expression();
+      values.put(update.field().lexeme(), update.value());
+    }
+    var uses = new ArrayList<Expr>();
+    BiConsumer<Expr, Integer> find = (expression, blocks) -> {
+      var target = switch (expression) {
+        case Expr.Select select when values.containsKey(select.field().lexeme()) -> select.target();
+        case Expr.Update update when values.containsKey(update.field().lexeme()) -> update.target();
+        default -> null;
+      };
+      if (target instanceof Expr.Variable variable && isSlot(variable.name(), blocks, slot.id())) {
+        uses.add(expression);
+      }
+    };
+    var text = new Census();
+    for (var statement : rest) {
+      scanStatement(statement, 0, find);
+      statement.accept(text);
+    }
+    var name = declaration.name().lexeme();
+    // Any other read, even of something else by the same name, could let the instance escape
+    if (text.read.getOrDefault(name, 0) != uses.size() || text.assigned.containsKey(name)) {
+      return null;
+    }
+
+    var params = initializer.params();
+    var reads = new HashMap<String, Integer>();
+    values.values().forEach(value -> scanExpression(value, 0, (part, blocks) -> {
+      if (part instanceof Expr.Variable variable) {
+        reads.merge(variable.name().lexeme(), 1, Integer::sum);
+      }
+    }));
+    var updated = new HashSet<String>();
+    uses.forEach(use -> {
+      if (use instanceof Expr.Update update) {
+        updated.add(update.field().lexeme());
+      }
+    });
+    // The fields sharing each argument's variable
+    var shared = new HashMap<String, List<String>>();
+    values.forEach((field, value) -> {
+      if (value instanceof Expr.Variable variable
+              && (!updated.contains(field) || reads.get(variable.name().lexeme()) == 1)) {
+        shared.computeIfAbsent(variable.name().lexeme(), param -> new ArrayList<>()).add(field);
+      }
+    });
+    var declarations = new ArrayList<Stmt>();
+    var fields = new HashMap<String, Introduced>();
+    var bound = new HashMap<String, Expr>();
+    for (int i = 0; i < params.size(); i++) {
+      var param = params.get(i).lexeme();
+      var sharing = shared.getOrDefault(param, List.of());
+      var variable = new Introduced(name + "." + (sharing.isEmpty() ? param : sharing.getFirst()));
+      sharing.forEach(field -> fields.put(field, variable));
+      var token = variable.at(depth);
+      declarations.add(new Stmt.Var(token, optimize(arguments.get(i))));
+      bound.put(param, new Expr.Variable(token));
+    }
+    var outer = bindings;
+    bindings = bound;
+    try {
+      values.forEach((field, value) -> {
+        if (!fields.containsKey(field)) {
+          var variable = new Introduced(name + "." + field);
+          fields.put(field, variable);
+          declarations.add(new Stmt.Var(variable.at(depth), optimize(value)));
+        }
+      });
+    } finally {
+      bindings = outer;
+    }
+    for (var use : uses) {
+      replaced.add(use);
+      switch (use) {
+        case Expr.Select select -> {
+          var variable = fields.get(select.field().lexeme());
+          replacements.put(use, (optimized, blocks) -> new Expr.Variable(variable.at(blocks)));
+        }
+        case Expr.Update update -> {
+          var variable = fields.get(update.field().lexeme());
+          replacements.put(use, (optimized, blocks) ->
+                  new Expr.Assignment(variable.at(blocks), ((Expr.Update) optimized).value()));
+        }
+        default -> { }
+      }
+    }
+    scalarized++;
+    return declarations;
+  }
+
+  /** Applies an action to each expression of a statement, outside the functions it declares, with its depth in blocks */
+  private static void scanStatement(Stmt statement, int blocks, BiConsumer<Expr, Integer> action) {
+    switch (statement) {
+      case Stmt.Expression expression -> scanExpression(expression.expression(), blocks, action);
+      case Stmt.Print print -> scanExpression(print.expression(), blocks, action);
+      case Stmt.Var declaration when declaration.initializer() != null -> scanExpression(declaration.initializer(), blocks, action);
+      case Stmt.Return returnStmt when returnStmt.value() != null -> scanExpression(returnStmt.value(), blocks, action);
+      case Stmt.Block block -> block.statements().forEach(inner -> scanStatement(inner, blocks + 1, action));
+      case Stmt.If anIf -> {
+        scanExpression(anIf.condition(), blocks, action);
+        scanStatement(anIf.whenTrue(), blocks, action);
+        if (anIf.whenFalse() != null) {
+          scanStatement(anIf.whenFalse(), blocks, action);
+        }
+      }
+      case Stmt.While aWhile -> {
+        scanExpression(aWhile.condition(), blocks, action);
+        scanStatement(aWhile.body(), blocks, action);
+      }
+      default -> { }
+    }
+  }
+
+  private static void scanExpression(Expr expression, int blocks, BiConsumer<Expr, Integer> action) {
+    action.accept(expression, blocks);
+    switch (expression) {
+      case Expr.Trinary trinary -> {
+        scanExpression(trinary.head(), blocks, action);
+        scanExpression(trinary.left(), blocks, action);
+        scanExpression(trinary.right(), blocks, action);
+      }
+      case Expr.Binary binary -> {
+        scanExpression(binary.left(), blocks, action);
+        scanExpression(binary.right(), blocks, action);
+      }
+      case Expr.Logical logical -> {
+        scanExpression(logical.left(), blocks, action);
+        scanExpression(logical.right(), blocks, action);
+      }
+      case Expr.Unary unary -> scanExpression(unary.right(), blocks, action);
+      case Expr.Grouping grouping -> scanExpression(grouping.expression(), blocks, action);
+      case Expr.Assignment assignment -> scanExpression(assignment.value(), blocks, action);
+      case Expr.Call call -> {
+        scanExpression(call.callee(), blocks, action);
+        call.arguments().forEach(argument -> scanExpression(argument, blocks, action));
+      }
+      case Expr.Select select -> scanExpression(select.target(), blocks, action);
+      case Expr.Update update -> {
+        scanExpression(update.target(), blocks, action);
+        scanExpression(update.value(), blocks, action);
+      }
+      default -> { }
+    }
+  }
+
+  /** How many nodes, expressions and statements alike, there are in some statements */
+  static int size(List<Stmt> statements) {
+    var census = new Census();
+    return statements.stream().mapToInt(statement -> statement.accept(census)).sum();
+  }
+
+  /**
+   * Counts the nodes of a tree, noting along the way how often it reads and assigns each name, the fields it updates,
+   * the names of the methods (getters included) it declares and whether it calls anything
+   */
+  private static final class Census implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+    private final Map<String, Integer> read = new HashMap<>();
+    private final Map<String, Integer> assigned = new HashMap<>();
+    private final Set<String> updated = new HashSet<>();
+    private final Set<String> methods = new HashSet<>();
+    private boolean calls;
+
+    private int ofExpression(Expr expression) {
+      return expression == null ? 0 : expression.accept(this);
+    }
+
+    private int ofStatement(Stmt statement) {
+      return statement == null ? 0 : statement.accept(this);
+    }
+
+    private int ofStatements(List<? extends Stmt> statements) {
+      return statements.stream().mapToInt(this::ofStatement).sum();
+    }
+
+    @Override
+    public Integer visit(Stmt.Expression expression) {
+      return 1 + ofExpression(expression.expression());
+    }
+
+    @Override
+    public Integer visit(Stmt.Print print) {
+      return 1 + ofExpression(print.expression());
+    }
+
+    @Override
+    public Integer visit(Stmt.Var declaration) {
+      return 1 + ofExpression(declaration.initializer());
+    }
+
+    @Override
+    public Integer visit(Stmt.Block block) {
+      return 1 + ofStatements(block.statements());
+    }
+
+    @Override
+    public Integer visit(Stmt.If anIf) {
+      return 1 + ofExpression(anIf.condition()) + ofStatement(anIf.whenTrue()) + ofStatement(anIf.whenFalse());
+    }
+
+    @Override
+    public Integer visit(Stmt.While aWhile) {
+      return 1 + ofExpression(aWhile.condition()) + ofStatement(aWhile.body());
+    }
+
+    @Override
+    public Integer visit(Stmt.LoopControl loopControl) {
+      return 1;
+    }
+
+    @Override
+    public Integer visit(Stmt.Function function) {
+      return 1 + ofStatements(function.body());
+    }
+
+    @Override
+    public Integer visit(Stmt.Return returnStmt) {
+      return 1 + ofExpression(returnStmt.value());
+    }
+
+    @Override
+    public Integer visit(Stmt.ClassDeclaration classDeclaration) {
+      classDeclaration.methods().forEach(method -> methods.add(method.name().lexeme()));
+      classDeclaration.classMethods().forEach(method -> methods.add(method.name().lexeme()));
+      return 1 + ofExpression(classDeclaration.superclass())
+          + ofStatements(classDeclaration.methods()) + ofStatements(classDeclaration.classMethods());
+    }
+
+    @Override
+    public Integer visit(Expr.Trinary trinary) {
+      return 1 + ofExpression(trinary.head()) + ofExpression(trinary.left()) + ofExpression(trinary.right());
+    }
+
+    @Override
+    public Integer visit(Expr.Binary binary) {
+      return 1 + ofExpression(binary.left()) + ofExpression(binary.right());
+    }
+
+    @Override
+    public Integer visit(Expr.Logical logical) {
+      return 1 + ofExpression(logical.left()) + ofExpression(logical.right());
+    }
+
+    @Override
+    public Integer visit(Expr.Unary unary) {
+      return 1 + ofExpression(unary.right());
+    }
+
+    @Override
+    public Integer visit(Expr.Grouping grouping) {
+      return 1 + ofExpression(grouping.expression());
+    }
+
+    @Override
+    public Integer visit(Expr.Literal literal) {
+      return 1;
+    }
+
+    @Override
+    public Integer visit(Expr.Variable variable) {
+      read.merge(variable.name().lexeme(), 1, Integer::sum);
+      return 1;
+    }
+
+    @Override
+    public Integer visit(Expr.Assignment assignment) {
+      assigned.merge(assignment.name().lexeme(), 1, Integer::sum);
+      return 1 + ofExpression(assignment.value());
+    }
+
+    @Override
+    public Integer visit(Expr.Call call) {
+      calls = true;
+      return 1 + ofExpression(call.callee()) + call.arguments().stream().mapToInt(this::ofExpression).sum();
+    }
+
+    @Override
+    public Integer visit(Expr.Function function) {
+      return 1 + ofStatements(function.body());
+    }
+
+    @Override
+    public Integer visit(Expr.Select select) {
+      return 1 + ofExpression(select.target());
+    }
+
+    @Override
+    public Integer visit(Expr.Update update) {
+      updated.add(update.field().lexeme());
+      return 1 + ofExpression(update.target()) + ofExpression(update.value());
+    }
+
+    @Override
+    public Integer visit(Expr.This the) {
+      return 1;
+    }
+
+    @Override
+    public Integer visit(Expr.Super superCall) {
+      return 1;
+    }
+  }
+}
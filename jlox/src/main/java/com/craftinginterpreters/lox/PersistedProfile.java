@@ -0,0 +1,185 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the {@link Tiering} of a run learnt about a program, kept in a file from one run to the next: how often each
+ * function was called and went round its loops, and which were compiled, and what the recorded iterations of hot loops
+ * saw (the way each branch went, the types of each operator's operands and the function each call reached).
+ * A run which loads it starts from there, so that what was compiled before is compiled on first use, specialized
+ * the same way, instead of once the run has seen it all again.
+ * <p>
+ * The file starts with its version and a hash of the program it was made for. A profile of any other program,
+ * or from any other version, is ignored (and replaced by the profile of the run).
+ */
+final class PersistedProfile {
+  static final int VERSION = 1;
+  private static final int MAGIC = 0x4C4F5850;
+
+  /** The nodes a profile refers to, numbered in the order a walk of the program meets them */
+  static final class Nodes {
+    private final List<Object> nodes = new ArrayList<>();
+    private final Map<Object, Integer> numbers = new IdentityHashMap<>();
+    /** The declaration of each function, by its body (which all of its copies share) */
+    private final Map<List<Stmt>, Stmt.Function> declarations = new IdentityHashMap<>();
+
+    private Nodes(List<Stmt> program) {
+      program.forEach(this::walkStatement);
+    }
+
+    /** The number of a node, or -1 if the program does not have it */
+    int number(Object node) {
+      return numbers.getOrDefault(node, -1);
+    }
+
+    /** The node numbered {@code number}, which has to be of the given type */
+    <T> T node(int number, Class<T> type) throws IOException {
+      if (number < 0 || number >= nodes.size() || !type.isInstance(nodes.get(number))) {
+        throw new IOException("Not a profile of this program");
+      }
+      return type.cast(nodes.get(number));
+    }
+
+    /** The declaration of the function whose body is numbered {@code number} */
+    Stmt.Function function(int number) throws IOException {
+      return declarations.get(node(number, List.class));
+    }
+
+    private void add(Object node) {
+      numbers.put(node, nodes.size());
+      nodes.add(node);
+    }
+
+    private void function(Stmt.Function declaration) {
+      add(declaration.body());
+      declarations.put(declaration.body(), declaration);
+      declaration.body().forEach(this::walkStatement);
+    }
+
+    private void walkStatement(Stmt statement) {
+      switch (statement) {
+        case Stmt.Expression expression -> walkExpression(expression.expression());
+        case Stmt.Print print -> walkExpression(print.expression());
+        case Stmt.Var declaration when declaration.initializer() != null -> walkExpression(declaration.initializer());
+        case Stmt.Return returnStmt when returnStmt.value() != null -> walkExpression(returnStmt.value());
+        case Stmt.Block block -> block.statements().forEach(this::walkStatement);
+        case Stmt.If anIf -> {
+          add(anIf);
+          walkExpression(anIf.condition());
+          walkStatement(anIf.whenTrue());
+          if (anIf.whenFalse() != null) {
+            walkStatement(anIf.whenFalse());
+          }
+        }
+        case Stmt.While aWhile -> {
+          add(aWhile);
+          walkExpression(aWhile.condition());
+          walkStatement(aWhile.body());
+        }
+        case Stmt.Function function -> function(function);
+        case Stmt.ClassDeclaration classDeclaration -> {
+          classDeclaration.methods().forEach(this::function);
+          classDeclaration.classMethods().forEach(this::function);
+        }
+        default -> { }
+      }
+    }
+
+    private void walkExpression(Expr expression) {
+      switch (expression) {
+        case Expr.Trinary trinary -> {
+          walkExpression(trinary.head());
+          walkExpression(trinary.left());
+          walkExpression(trinary.right());
+        }
+        case Expr.Binary binary -> {
+          add(binary);
+          walkExpression(binary.left());
+          walkExpression(binary.right());
+        }
+        case Expr.Logical logical -> {
+          walkExpression(logical.left());
+          walkExpression(logical.right());
+        }
+        case Expr.Unary unary -> walkExpression(unary.right());
+        case Expr.Grouping grouping -> walkExpression(grouping.expression());
+        case Expr.Assignment assignment -> walkExpression(assignment.value());
+        case Expr.Call call -> {
+          add(call);
+          walkExpression(call.callee());
+          call.arguments().forEach(this::walkExpression);
+        }
+        case Expr.Function function -> function(new Stmt.Function(
+                function.isAnonymous() ? function.keyword() : function.name(), function.arguments(), function.body()));
+        case Expr.Select select -> walkExpression(select.target());
+        case Expr.Update update -> {
+          walkExpression(update.target());
+          walkExpression(update.value());
+        }
+        default -> { }
+      }
+    }
+  }
+
+  private final Path file;
+  private final byte[] hash;
+  private final Nodes nodes;
+
+  private PersistedProfile(Path file, byte[] hash, Nodes nodes) {
+    this.file = file;
+    this.hash = hash;
+    this.nodes = nodes;
+  }
+
+  /** The profile of a program, kept in the given file */
+  static PersistedProfile of(Path file, List<Stmt> program) {
+    try {
+      var hash = MessageDigest.getInstance("SHA-256").digest(CompiledScript.bytes(program));
+      return new PersistedProfile(file, hash, new Nodes(program));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Start the tiering of a run from the profile in the file, returning whether there was one of this program */
+  boolean load(Tiering tiering) {
+    try (var data = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (data.readInt() != MAGIC || data.readInt() != VERSION || !Arrays.equals(data.readNBytes(hash.length), hash)) {
+        return false;
+      }
+      tiering.load(data, nodes);
+      return true;
+    } catch (IOException e) {
+      // Profiles only make runs faster, so one which is missing or cannot be read is as good as none
+      return false;
+    }
+  }
+
+  /**
+   * Write what the tiering of a run has learnt to the file, in place of what it held. A file which cannot be written
+   * is only warned about, leaving the run to end the way it would have
+   */
+  void save(Tiering tiering) {
+    try (var data = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      data.writeInt(MAGIC);
+      data.writeInt(VERSION);
+      data.write(hash);
+      tiering.save(data, nodes);
+    } catch (IOException e) {
+      System.err.println("Could not save the profile to " + file + ": " + e);
+    }
+  }
+}
@@ -1,14 +1,25 @@
 package com.craftinginterpreters.lox;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static com.craftinginterpreters.lox.TokenType.SUPER;
 import static com.craftinginterpreters.lox.TokenType.THIS;
 
 class Resolver implements Expr.Visitor<Resolver.ResolutionReport>, Stmt.Visitor<Resolver.ResolutionReport> {
-  record ResolutionReport(List<ResolutionError> errors, StatsCountingLocals locals) {
+  /**
+   * What resolving found: the errors, where each variable lives, and which returns are of a call which may be made in
+   * place of the returning function (see {@link #isTailCall})
+   */
+  record ResolutionReport(List<ResolutionError> errors, StatsCountingLocals locals, GlobalSlots globals,
+                          Set<Stmt.Return> tailCalls) {
     public ResolutionReport() {
-      this(new ArrayList<>(), new StatsCountingLocals());
+      this(new ArrayList<>(), new StatsCountingLocals(), new GlobalSlots(), tailCallSet());
+    }
+
+    static Set<Stmt.Return> tailCallSet() {
+      return Collections.newSetFromMap(new IdentityHashMap<>());
     }
 
     public boolean hasErrors() {
@@ -18,10 +29,36 @@ class Resolver implements Expr.Visitor<Resolver.ResolutionReport>, Stmt.Visitor<
     public void add(ResolutionError resolutionError) {
       errors.add(resolutionError);
     }
+
+    /**
+     * A report of its own to add to, starting from what this one holds, for a pass which rewrites the program it was
+     * made for. The numbering of the globals is shared
+     */
+    ResolutionReport copy() {
+      var copied = tailCallSet();
+      copied.addAll(tailCalls);
+      return new ResolutionReport(new ArrayList<>(errors), locals.copy(), globals, copied);
+    }
+
+    /** Whether a return's value is a call which may be made in place of the function returning it */
+    boolean isTailCall(Stmt.Return returnStmt) {
+      return tailCalls.contains(returnStmt);
+    }
   }
   record ResolutionError(Token token, String message) {}
 
-  record Coordinates(int scope, int id) {}
+  /** Where a variable lives: {@code id} within the scope {@code scope} hops out, or a {@link GlobalSlots} slot */
+  record Coordinates(int scope, int id) {
+    private static final int GLOBAL = -1;
+
+    static Coordinates global(int slot) {
+      return new Coordinates(GLOBAL, slot);
+    }
+
+    boolean isGlobal() {
+      return scope == GLOBAL;
+    }
+  }
   private static final class VarState {
     boolean defined;
     final int id;
@@ -50,13 +87,161 @@ class Resolver implements Expr.Visitor<Resolver.ResolutionReport>, Stmt.Visitor<
     State(TokenType token) {
       this.token = token;
     }
+
+    /** The scope as it stands right now, unaffected by any names declared in it later on */
+    State snapshot() {
+      var copy = new State();
+      copy.expr = expr;
+      copy.stmt = stmt;
+      copy.token = token;
+      copy.id = id;
+      copy.variables = new HashMap<>(variables);
+      return copy;
+    }
   }
 
-  private final Stack<State> scopes = new Stack<>();
-  private final ResolutionReport report = new ResolutionReport();
+  /** A function body whose resolution was put off, with the scopes it was declared in */
+  private record Deferred(Stmt.Function function, Stack<State> enclosing, int errorsBefore) {}
+
+  private enum Kind { EAGER, INCREMENTAL, LAZY }
+
+  private Stack<State> scopes = new Stack<>();
+  private final Kind kind;
+  private ResolutionReport report = new ResolutionReport();
+  private final Map<Stmt.Function, Deferred> deferred = new IdentityHashMap<>();
+  private final List<Deferred> deferredInOrder = new ArrayList<>();
+  private boolean deferBodies;
+  /** Whether a call being returned may replace the function returning it, which it may not in an initializer */
+  private boolean inTailCallingFunction;
 
   Resolver() {
+    this(Kind.EAGER);
+  }
+
+  private Resolver(Kind kind) {
+    this.kind = kind;
+    this.deferBodies = kind == Kind.LAZY;
     this.scopes.push(new State()); // The top-level scope
+    if (kind == Kind.INCREMENTAL) {
+      // Every fragment is scanned from line 1, so equal tokens of different fragments must not share an entry
+      this.report = new ResolutionReport(new ArrayList<>(), StatsCountingLocals.byIdentity(), report.globals(),
+              report.tailCalls());
+    }
+  }
+
+  /** A resolver for a single function body, declared within {@code enclosing}, reporting into {@code report} */
+  private Resolver(Stack<State> enclosing, ResolutionReport report) {
+    this.kind = Kind.EAGER;
+    this.scopes = enclosing;
+    this.report = report;
+  }
+
+  /**
+   * A resolver whose top-level scope (and the slots assigned in it) outlives any one call,
+   * so that each line of a REPL session is resolved against the definitions of the lines before it.
+   */
+  static Resolver incremental() {
+    return new Resolver(Kind.INCREMENTAL);
+  }
+
+  /**
+   * A resolver that only resolves the top level of a program up front.
+   * Each function body is put off, along with a snapshot of the scopes it was declared in,
+   * until {@link #resolveDeferred} is asked for it (i.e. the first time the function is called).
+   */
+  static Resolver lazy() {
+    return new Resolver(Kind.LAZY);
+  }
+
+  /**
+   * Resolve a function body that was put off, against the scopes it was declared in.
+   * Any resolution errors are added to the report <em>and</em> returned.
+   * Functions that were never put off (or have already been resolved) have nothing left to do.
+   */
+  List<ResolutionError> resolveDeferred(Stmt.Function function) {
+    var body = deferred.remove(function);
+    if (body == null) {
+      return List.of();
+    }
+    var current = scopes;
+    var errorCount = report.errors().size();
+    scopes = body.enclosing();
+    deferBodies = false;
+    try {
+      resolveFunction(function);
+    } finally {
+      scopes = current;
+      deferBodies = kind == Kind.LAZY;
+    }
+    return report.errors().subList(errorCount, report.errors().size());
+  }
+
+  /**
+   * Resolve a whole program in two phases. First the top level is resolved, collecting every function body
+   * (whose bodies only depend on the global names, not on each other). Then those bodies are all resolved
+   * at once on the pool, each into its own resolution table, and merged back in at the end.
+   * Errors are reported in the same order as resolving the program sequentially would report them.
+   */
+  static ResolutionReport resolveInParallel(List<Stmt> statements, ForkJoinPool pool) {
+    var topLevel = Resolver.lazy();
+    var report = topLevel.resolve(statements);
+
+    var bodies = new ArrayList<ForkJoinTask<ResolutionReport>>(topLevel.deferredInOrder.size());
+    for (var body : topLevel.deferredInOrder) {
+      bodies.add(pool.submit(() -> {
+        var bodyReport = new ResolutionReport(new ArrayList<>(), new StatsCountingLocals(), report.globals(),
+                ResolutionReport.tailCallSet());
+        new Resolver(body.enclosing(), bodyReport).resolveFunction(body.function());
+        return bodyReport;
+      }));
+    }
+
+    var errors = new ArrayList<ResolutionError>(report.errors().size());
+    var topLevelErrors = 0;
+    for (int i = 0; i < bodies.size(); i++) {
+      var bodyReport = bodies.get(i).join();
+      var errorsBefore = topLevel.deferredInOrder.get(i).errorsBefore();
+      errors.addAll(report.errors().subList(topLevelErrors, errorsBefore));
+      topLevelErrors = errorsBefore;
+      errors.addAll(bodyReport.errors());
+      bodyReport.locals().forEach(report.locals()::put);
+      report.tailCalls().addAll(bodyReport.tailCalls());
+    }
+    errors.addAll(report.errors().subList(topLevelErrors, report.errors().size()));
+    return new ResolutionReport(errors, report.locals(), report.globals(), report.tailCalls());
+  }
+
+  /** The resolution table shared by every report this resolver produces */
+  StatsCountingLocals locals() {
+    return report.locals();
+  }
+
+  /** The global slot table shared by every report this resolver produces */
+  GlobalSlots globals() {
+    return report.globals();
+  }
+
+  /** The tail calls found by every report this resolver produces */
+  Set<Stmt.Return> tailCalls() {
+    return report.tailCalls();
+  }
+
+  /**
+   * Resolve one more fragment of a session. Top-level names may be redeclared (reusing their slot)
+   * and a fragment that fails to resolve leaves no trace in the top-level scope.
+   */
+  ResolutionReport resolveIncrementally(ParseResult.Success fragment) {
+    var top = scopes.firstElement();
+    var checkpoint = new HashMap<>(top.variables);
+    report = new ResolutionReport(new ArrayList<>(), report.locals(), report.globals(), report.tailCalls());
+    switch (fragment) {
+      case Program program -> resolve(program);
+      case Expr expression -> resolve(expression);
+    }
+    if (report.hasErrors()) {
+      top.variables = checkpoint;
+    }
+    return report;
   }
 
   ResolutionReport resolve(List<Stmt> statements) {
@@ -129,18 +314,14 @@ class Resolver implements Expr.Visitor<Resolver.ResolutionReport>, Stmt.Visitor<
       define(Token.artificial(SUPER));
     }
 
-    try (var s = scope(classDeclaration)) {
-      //define(Token.artificial(THIS));
-      for (var f : classDeclaration.classMethods()) {
-        f.accept(this);
-      }
+    // Methods close over the scope holding `super` (if any) and each gets its own scope binding `this`,
+    // mirroring the environments built by Interpreter#visit(Stmt.ClassDeclaration) and LoxFunction#bind,
+    // so both always sit at fixed slots relative to the method body.
+    for (var f : classDeclaration.classMethods()) {
+      resolveFunction(f);
     }
-
-    try(var s = scope(classDeclaration)) {
-      //define(Token.artificial(THIS));
-      for (var f : classDeclaration.methods()) {
-        f.accept(this);
-      }
+    for (var f : classDeclaration.methods()) {
+      resolveFunction(f);
     }
     if (superclassScope != null) {
       superclassScope.close();
@@ -190,6 +371,9 @@ class Resolver implements Expr.Visitor<Resolver.ResolutionReport>, Stmt.Visitor<
   @Override
   public ResolutionReport visit(Stmt.Return returnStmt) {
     if (returnStmt.value() != null) resolve(returnStmt.value());
+    if (inTailCallingFunction && returnStmt.value() instanceof Expr.Call) {
+      report.tailCalls().add(returnStmt);
+    }
     return report;
   }
 
@@ -265,14 +449,23 @@ class Resolver implements Expr.Visitor<Resolver.ResolutionReport>, Stmt.Visitor<
     return report;
   }
 
-  /** A (hopefully taken and assigned name) is looked up */
+  /**
+   * A (hopefully taken and assigned name) is looked up.
+   * Anything not found in a local scope is a global, late-bound to a slot if it has not been declared (yet).
+   */
   private void resolveLocal(Token name) {
-    for (int i = scopes.size() - 1; i >= 0; i--) {
+    for (int i = scopes.size() - 1; i > 0; i--) {
       if (scopes.get(i).variables.containsKey(name.lexeme())) {
         report.locals.put(name, new Coordinates(scopes.size() - 1 - i, scopes.get(i).variables.get(name.lexeme()).id));
         return;
       }
     }
+    report.locals.put(name, Coordinates.global(report.globals.slotFor(name.lexeme())));
+  }
+
+  /** Top-level names live in the global slot table, everything else is numbered within its own scope */
+  private int nextId(State scope, String name) {
+    return scope == scopes.firstElement() ? report.globals.slotFor(name) : scope.id++;
   }
 
   private void declare(String name, Token token) {
@@ -280,9 +473,13 @@ class Resolver implements Expr.Visitor<Resolver.ResolutionReport>, Stmt.Visitor<
 
     var scope = scopes.peek();
     if (scope.variables.containsKey(name)) {
+      if (kind == Kind.INCREMENTAL && scopes.size() == 1) {
+        // Redefining a global in a later line simply reuses its slot
+        return;
+      }
       report.add(new ResolutionError(token, "Already a variable with this name in this scope."));
     }
-    scope.variables.put(name, new VarState(scope.id++));
+    scope.variables.put(name, new VarState(nextId(scope, name)));
   }
 
   /** A name is taken */
@@ -294,7 +491,7 @@ class Resolver implements Expr.Visitor<Resolver.ResolutionReport>, Stmt.Visitor<
     if (scopes.isEmpty()) return;
     scopes.peek().variables.compute(name, (key,value) -> {
       if (value == null) {
-        return new VarState(scopes.peek().id++, true);
+        return new VarState(nextId(scopes.peek(), name), true);
       }
       value.defined = true;
       return value;
@@ -316,17 +513,31 @@ class Resolver implements Expr.Visitor<Resolver.ResolutionReport>, Stmt.Visitor<
   }
 
   private void resolveFunction(Stmt.Function function) {
+    if (deferBodies) {
+      var enclosing = new Stack<State>();
+      enclosing.push(scopes.firstElement()); // Globals are late-bound by name anyway
+      for (int i = 1; i < scopes.size(); i++) {
+        enclosing.push(scopes.get(i).snapshot());
+      }
+      var body = new Deferred(function, enclosing, report.errors().size());
+      deferred.put(function, body);
+      deferredInOrder.add(body);
+      return;
+    }
+
     ScopeManager methodScope = null;
     if (function.isMethod()) {
       methodScope = scope(THIS);
       define(Token.artificial(THIS));
     }
 
+    var enclosingFunction = inTailCallingFunction;
+    inTailCallingFunction = !function.isInitializer();
     try(var s = scope(function)) {
-      for (Token param : function.params()) {
-        define(param);
-      }
+      defineParameters(function.params());
       resolve(function.body());
+    } finally {
+      inTailCallingFunction = enclosingFunction;
     }
     if (methodScope != null) {
       methodScope.close();
@@ -338,15 +549,25 @@ class Resolver implements Expr.Visitor<Resolver.ResolutionReport>, Stmt.Visitor<
       if (!function.isAnonymous()) {
         define(function.name());
       }
+      var enclosingFunction = inTailCallingFunction;
+      inTailCallingFunction = true;
       try(var p = scope(function)) {
-        for (Token param : function.arguments()) {
-          define(param);
-        }
+        defineParameters(function.arguments());
         resolve(function.body());
+      } finally {
+        inTailCallingFunction = enclosingFunction;
       }
     }
   }
 
+  /** Parameters take the first slots of the scope of a call, in order, so no two may share a name */
+  private void defineParameters(List<Token> params) {
+    for (Token param : params) {
+      declare(param);
+      define(param);
+    }
+  }
+
   private ScopeManager scope(TokenType tokenType) {
     scopes.push(new State(tokenType));
     return scopes::pop;
@@ -0,0 +1,108 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Compiles like the {@link ClosureCompiler}, except that arithmetic, comparisons and negation become self-specializing
+ * {@link Node}s, so that they stop checking (and switching on) the types of their operands once they have seen them.
+ * Nested operators form a single tree of nodes, held by a {@link Node.Root} wherever a closure uses them.
+ * <p>
+ * Local variables read in such a tree are nodes too, and a tree which declares or assigns a local as a statement
+ * stores its number unboxed: numbers only get boxed where they escape into code which is not a node.
+ */
+final class SpecializingCompiler extends ClosureCompiler {
+  private SpecializingCompiler(Resolver.ResolutionReport report, PrintStream printTarget, Interpreter runtime) {
+    super(report, printTarget, runtime);
+  }
+
+  private SpecializingCompiler(Resolver.ResolutionReport report, PrintStream printTarget, Memoizer memoizer) {
+    super(report, printTarget, null, TypeInference.Types.NONE, memoizer);
+  }
+
+  /** Compile a program which has been fully resolved (function bodies included) */
+  static Action compile(List<Stmt> program, Resolver.ResolutionReport report, PrintStream printTarget) {
+    return compile(program, report, (Memoizer) null, printTarget);
+  }
+
+  /** Compile a fully resolved program, memoizing calls to its pure functions (if given a memoizer) */
+  static Action compile(List<Stmt> program, Resolver.ResolutionReport report, Memoizer memoizer, PrintStream printTarget) {
+    return new SpecializingCompiler(report, printTarget, memoizer).sequence(program);
+  }
+
+  /** Compile one function of a program the interpreter is running, calling back into it for interpreted functions */
+  static Body compileFunction(Stmt.Function declaration, Resolver.ResolutionReport report, PrintStream printTarget, Interpreter runtime) {
+    return new SpecializingCompiler(report, printTarget, runtime).compile(declaration);
+  }
+
+  @Override
+  public Action visit(Stmt.Expression expression) {
+    if (expression.expression() instanceof Expr.Assignment assignment) {
+      var coordinates = local(assignment.name());
+      var node = node(assignment.value());
+      if (coordinates != null && node != null) {
+        return storeDouble(coordinates.scope(), coordinates.id(), new Node.Root(node));
+      }
+    }
+    return super.visit(expression);
+  }
+
+  @Override
+  public Action visit(Stmt.Var declaration) {
+    var coordinates = local(declaration.name());
+    var node = declaration.initializer() == null ? null : node(declaration.initializer());
+    if (coordinates != null && node != null) {
+      return storeDouble(0, coordinates.id(), new Node.Root(node));
+    }
+    return super.visit(declaration);
+  }
+
+  /** Store what a tree of nodes evaluates to in a local slot, unboxed if it is a number */
+  private static Action storeDouble(int distance, int id, Node.Root value) {
+    return environment -> {
+      var scope = environment.ancestor(distance);
+      try {
+        scope.defineDoubleAt(id, value.evaluateDouble(environment));
+      } catch (Node.UnexpectedResult e) {
+        scope.defineAt(id, e.value);
+      }
+      return NORMAL;
+    };
+  }
+
+  @Override
+  public Code visit(Expr.Binary binary) {
+    var node = node(binary);
+    return node != null ? new Node.Root(node) : super.visit(binary);
+  }
+
+  @Override
+  public Code visit(Expr.Unary unary) {
+    var node = node(unary);
+    return node != null ? new Node.Root(node) : super.visit(unary);
+  }
+
+  /** The tree of nodes for an expression, or null if it does not specialize */
+  private Node node(Expr expression) {
+    return switch (expression) {
+      case Expr.Binary binary when BinaryNode.isSpecializable(binary.operator().type()) ->
+              BinaryNode.create(binary.operator(), operand(binary.left()), operand(binary.right()));
+      case Expr.Unary unary when unary.operator().type() == TokenType.MINUS ->
+              NegateNode.create(unary.operator(), operand(unary.right()));
+      case Expr.Grouping grouping -> node(grouping.expression());
+      default -> null;
+    };
+  }
+
+  /** Operands are nodes if they specialize, or read a local variable */
+  private Code operand(Expr expression) {
+    var node = node(expression);
+    if (node != null) {
+      return node;
+    }
+    if (expression instanceof Expr.Variable variable && local(variable.name()) instanceof Resolver.Coordinates local) {
+      return new LocalNode(local);
+    }
+    return compile(expression);
+  }
+}
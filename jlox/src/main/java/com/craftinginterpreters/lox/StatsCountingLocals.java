@@ -1,24 +1,44 @@
 package com.craftinginterpreters.lox;
 
+import java.util.AbstractMap;
 import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
 
-final class StatsCountingLocals extends HashMap<Token, Resolver.Coordinates> {
+final class StatsCountingLocals extends AbstractMap<Token, Resolver.Coordinates> {
+  private final Map<Token, Resolver.Coordinates> table;
   private int lookups;
   private int misses;
   private int hits;
   private int writes;
 
-//  StatsCountingLocals() {
-//    super((x, y) -> {
-//      var delta = x.line() - y.line();
-//      return delta == 0 ? x.column() - y.column() : delta;
-//    });
-//  }
+  StatsCountingLocals() {
+    this(new HashMap<>());
+  }
+
+  private StatsCountingLocals(Map<Token, Resolver.Coordinates> table) {
+    this.table = table;
+  }
+
+  /**
+   * A table told apart by the tokens themselves rather than by where they are, for sources that are scanned a piece
+   * at a time (e.g. REPL lines, each of which starts again at line 1) and so may have equal tokens in different places
+   */
+  static StatsCountingLocals byIdentity() {
+    return new StatsCountingLocals(new IdentityHashMap<>());
+  }
+
+  /** A table of its own with the same entries, told apart the same way, and no lookups or writes counted yet */
+  StatsCountingLocals copy() {
+    return new StatsCountingLocals(table instanceof IdentityHashMap<Token, Resolver.Coordinates> identities
+            ? new IdentityHashMap<>(identities)
+            : new HashMap<>(table));
+  }
 
   @Override
   public Resolver.Coordinates get(Object key) {
-    var result = super.get(key);
+    var result = table.get(key);
     lookups++;
     if (result == null) {
       misses++;
@@ -31,13 +51,28 @@ final class StatsCountingLocals extends HashMap<Token, Resolver.Coordinates> {
   @Override
   public Resolver.Coordinates put(Token key, Resolver.Coordinates value) {
     writes++;
-    if (containsKey(key) && !get(key).equals(value)) {
+    if (table.containsKey(key) && !table.get(key).equals(value)) {
       throw new IllegalArgumentException(
                   "Duplicate key: " + key +
-                  " existing value: " + get(key) +
+                  " existing value: " + table.get(key) +
                   " new value: " + value);
     }
-    return super.put(key, value);
+    return table.put(key, value);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return table.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return table.size();
+  }
+
+  @Override
+  public Set<Entry<Token, Resolver.Coordinates>> entrySet() {
+    return table.entrySet();
   }
 
   String asString() {
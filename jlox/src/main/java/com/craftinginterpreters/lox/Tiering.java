@@ -0,0 +1,340 @@
+package com.craftinginterpreters.lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Moves the functions the tree-walking {@link Interpreter} runs most up a tier, compiling them with the
+ * {@link SpecializingCompiler}. A function is hot once it has been called often enough, or has gone round its loops
+ * (taken a back edge) often enough. Its compiled body is then run by every later call, in place of the interpreter.
+ * <p>
+ * Loops get a tier of their own, for the loops that are not in a function (or not in a hot one): once a loop has gone
+ * round often enough, the interpreter records an iteration of it and the {@link TraceCompiler} compiles the trace that
+ * runs every later iteration. A trace that keeps exiting is compiled again, from what its exits have recorded.
+ * A loop that keeps going even so is replaced on the stack: the rest of it (condition included) is compiled, and
+ * runs from its next iteration on. Both tiers run in the same scopes, so no variable has to move for the switch.
+ */
+final class Tiering {
+  static final int CALL_THRESHOLD = 1_000;
+  static final int BACK_EDGE_THRESHOLD = 10_000;
+  static final int TRACE_THRESHOLD = 1_000;
+  static final int EXIT_THRESHOLD = 100;
+  static final int MAX_RECOMPILATIONS = 4;
+  static final int REPLACEMENT_THRESHOLD = 10_000;
+
+  /** What has been observed of one function declaration, shared by all of its closures and bound methods */
+  static final class Profile {
+    private int calls;
+    private int backEdges;
+    private ClosureCompiler.Body compiled;
+    private boolean failed;
+  }
+
+  /** What has been observed of one loop, and the trace of its body once it is hot */
+  final class Loop {
+    private final TraceCompiler.Recording recording = new TraceCompiler.Recording();
+    private int iterations;
+    private int backEdges;
+    private ClosureCompiler.Action trace;
+    /** Whether a profile says an iteration was recorded (and traced) before, so the trace is compiled on first use */
+    private boolean traced;
+    /** The whole loop, compiled to replace the interpreter's once it has been going for long enough */
+    private ClosureCompiler.Action replacement;
+    private boolean replacementFailed;
+    private boolean stale;
+    private int exits;
+    private int recompilations;
+
+    TraceCompiler.Recording recording() {
+      return recording;
+    }
+
+    /** Count a guard failing, giving up on the compiled code (to compile it again) if that keeps happening */
+    void sideExit() {
+      stats.traceExits++;
+      if (++exits >= EXIT_THRESHOLD && recompilations < MAX_RECOMPILATIONS) {
+        stale = true;
+      }
+    }
+  }
+
+  private final Resolver.ResolutionReport report;
+  private final PrintStream printTarget;
+  private final int callThreshold;
+  private final int backEdgeThreshold;
+  /** Keyed by the body, which every copy of a declaration (such as those of a function expression) shares */
+  private final Map<List<Stmt>, Profile> profiles = new IdentityHashMap<>();
+  /** The function being interpreted, whose loops are counting back edges */
+  private Profile running;
+  private final Map<Stmt.While, Loop> loops = new IdentityHashMap<>();
+  /** The recording being made of an iteration, if any */
+  private TraceCompiler.Recording recording;
+  private final Stats stats = new Stats();
+
+  Tiering(Resolver.ResolutionReport report, PrintStream printTarget) {
+    this(report, printTarget, CALL_THRESHOLD, BACK_EDGE_THRESHOLD);
+  }
+
+  Tiering(Resolver.ResolutionReport report, PrintStream printTarget, int callThreshold, int backEdgeThreshold) {
+    this.report = report;
+    this.printTarget = printTarget;
+    this.callThreshold = callThreshold;
+    this.backEdgeThreshold = backEdgeThreshold;
+  }
+
+  Profile profile(Stmt.Function declaration) {
+    return profiles.computeIfAbsent(declaration.body(), body -> new Profile());
+  }
+
+  /**
+   * Count a call of a function whose body has been resolved, returning its compiled body if it is (or just became) hot.
+   * Otherwise the function is to be interpreted, between {@link #enter} and {@link #exit}.
+   */
+  ClosureCompiler.Body call(Profile profile, Stmt.Function declaration, Interpreter interpreter) {
+    if (profile.compiled != null) {
+      stats.compiledCalls++;
+      return profile.compiled;
+    }
+    stats.interpretedCalls++;
+    if (++profile.calls >= callThreshold || profile.backEdges >= backEdgeThreshold) {
+      compile(profile, declaration, interpreter);
+    }
+    return profile.compiled;
+  }
+
+  private void compile(Profile profile, Stmt.Function declaration, Interpreter interpreter) {
+    if (profile.failed) {
+      return;
+    }
+    try {
+      profile.compiled = SpecializingCompiler.compileFunction(declaration, report, printTarget, interpreter);
+      stats.compiledFunctions++;
+    } catch (ClosureCompiler.CannotCompile e) {
+      // Staying in the interpreter is always correct, so a function that cannot be compiled simply is not
+      profile.failed = true;
+      stats.failed(e);
+    }
+  }
+
+  /** Start interpreting a function, returning the profile of its caller to {@link #exit} with */
+  Profile enter(Profile profile) {
+    var caller = running;
+    running = profile;
+    return caller;
+  }
+
+  void exit(Profile caller) {
+    running = caller;
+  }
+
+  /** Count one more iteration of a loop being interpreted */
+  void backEdge(Loop loop) {
+    loop.backEdges++;
+    stats.backEdges++;
+    if (running != null) {
+      running.backEdges++;
+    }
+  }
+
+  Loop loop(Stmt.While aWhile) {
+    return loops.computeIfAbsent(aWhile, key -> new Loop());
+  }
+
+  /** The trace to run the next iteration of a loop with, if it has one (and nothing is being recorded) */
+  ClosureCompiler.Action trace(Loop loop, Stmt.While aWhile, Interpreter interpreter) {
+    if (loop.traced && recording == null) {
+      loop.traced = false;
+      compile(loop, aWhile, interpreter);
+    }
+    if (loop.trace == null || recording != null) {
+      return null;
+    }
+    recompileIfStale(loop, aWhile, interpreter);
+    if (loop.trace != null) {
+      stats.traceRuns++;
+    }
+    return loop.trace;
+  }
+
+  /**
+   * The compiled loop to replace the interpreter's with, from the start of its next iteration,
+   * if it has been going for long enough (or was replaced before) and nothing is being recorded.
+   */
+  ClosureCompiler.Action replacement(Loop loop, Stmt.While aWhile, Interpreter interpreter) {
+    if (recording != null || loop.replacementFailed || loop.replacement == null && loop.backEdges < REPLACEMENT_THRESHOLD) {
+      return null;
+    }
+    if (loop.replacement == null) {
+      try {
+        loop.replacement = TraceCompiler.compileLoop(aWhile, report, printTarget, interpreter, loop);
+        stats.compiledReplacements++;
+      } catch (ClosureCompiler.CannotCompile e) {
+        loop.replacementFailed = true;
+        stats.failed(e);
+        return null;
+      }
+    }
+    recompileIfStale(loop, aWhile, interpreter);
+    stats.replacements++;
+    return loop.replacement;
+  }
+
+  private void recompileIfStale(Loop loop, Stmt.While aWhile, Interpreter interpreter) {
+    if (!loop.stale) {
+      return;
+    }
+    loop.stale = false;
+    loop.exits = 0;
+    loop.recompilations++;
+    if (loop.trace != null) {
+      compile(loop, aWhile, interpreter);
+    }
+    if (loop.replacement != null) {
+      try {
+        loop.replacement = TraceCompiler.compileLoop(aWhile, report, printTarget, interpreter, loop);
+        stats.compiledReplacements++;
+      } catch (ClosureCompiler.CannotCompile e) {
+        // Keep running the replacement compiled before, whose guards still hold it to the interpreter's semantics
+        stats.failed(e);
+      }
+    }
+  }
+
+  /** Start recording the next iteration of a loop, if it has just become hot, returning whether it has */
+  boolean startRecording(Loop loop) {
+    if (recording != null || loop.trace != null || loop.iterations > TRACE_THRESHOLD || ++loop.iterations <= TRACE_THRESHOLD) {
+      return false;
+    }
+    recording = loop.recording;
+    return true;
+  }
+
+  /** Compile the trace of the iteration just recorded */
+  void stopRecording(Loop loop, Stmt.While aWhile, Interpreter interpreter) {
+    recording = null;
+    compile(loop, aWhile, interpreter);
+  }
+
+  TraceCompiler.Recording recording() {
+    return recording;
+  }
+
+  private void compile(Loop loop, Stmt.While aWhile, Interpreter interpreter) {
+    try {
+      loop.trace = TraceCompiler.compile(aWhile, report, printTarget, interpreter, loop);
+      stats.compiledTraces++;
+    } catch (ClosureCompiler.CannotCompile e) {
+      loop.trace = null;
+      stats.failed(e);
+    }
+  }
+
+  /**
+   * Write what has been observed of each function and loop, referring to them by their number in the program:
+   * how often they have run, whether they failed to compile, and for loops what their recorded iterations saw
+   */
+  void save(DataOutputStream data, PersistedProfile.Nodes nodes) throws IOException {
+    var profiled = profiles.entrySet().stream().filter(entry -> nodes.number(entry.getKey()) >= 0).toList();
+    data.writeInt(profiled.size());
+    for (var entry : profiled) {
+      var profile = entry.getValue();
+      data.writeInt(nodes.number(entry.getKey()));
+      data.writeInt(profile.calls);
+      data.writeInt(profile.backEdges);
+      data.writeBoolean(profile.failed);
+    }
+    var observed = loops.entrySet().stream().filter(entry -> nodes.number(entry.getKey()) >= 0).toList();
+    data.writeInt(observed.size());
+    for (var entry : observed) {
+      var loop = entry.getValue();
+      data.writeInt(nodes.number(entry.getKey()));
+      data.writeInt(loop.iterations);
+      data.writeInt(loop.backEdges);
+      data.writeBoolean(loop.trace != null || loop.traced);
+      data.writeBoolean(loop.replacementFailed);
+      loop.recording.save(data, nodes);
+    }
+  }
+
+  /**
+   * Start from what {@link #save} wrote: functions which were hot are compiled on their next call, loops which were
+   * traced compile their trace on their next iteration and loops which were replaced are replaced then
+   */
+  void load(DataInputStream data, PersistedProfile.Nodes nodes) throws IOException {
+    for (int i = data.readInt(); i > 0; i--) {
+      var profile = profile(nodes.function(data.readInt()));
+      profile.calls = data.readInt();
+      profile.backEdges = data.readInt();
+      profile.failed = data.readBoolean();
+    }
+    for (int i = data.readInt(); i > 0; i--) {
+      var loop = loop(nodes.node(data.readInt(), Stmt.While.class));
+      loop.iterations = data.readInt();
+      loop.backEdges = data.readInt();
+      loop.traced = data.readBoolean();
+      loop.replacementFailed = data.readBoolean();
+      loop.recording.load(data, nodes);
+    }
+  }
+
+  int compiledFunctions() {
+    return stats.compiledFunctions;
+  }
+
+  int compiledTraces() {
+    return stats.compiledTraces;
+  }
+
+  int replacements() {
+    return stats.replacements;
+  }
+
+  void printStats() {
+    printTarget.println(stats.asString());
+  }
+
+  private final static class Stats {
+    private int interpretedCalls = 0;
+    private int compiledCalls = 0;
+    private int backEdges = 0;
+    private int compiledFunctions = 0;
+    private int failedCompilations = 0;
+    private int compiledTraces = 0;
+    private int traceRuns = 0;
+    private int traceExits = 0;
+    private int compiledReplacements = 0;
+    private int replacements = 0;
+    /** Why each compilation failed, in the order they did */
+    private final List<String> failures = new ArrayList<>();
+
+    private void failed(ClosureCompiler.CannotCompile e) {
+      failedCompilations++;
+      failures.add(e.getMessage());
+    }
+
+    private String asString() {
+      return String.format("""
+      Tiering:
+        Interpreted calls: %d
+        Compiled calls: %d
+        Back edges: %d
+        Functions compiled: %d
+        Failed compilations: %d
+        Traces compiled: %d
+        Trace runs: %d
+        Trace exits: %d
+        Loops compiled for replacement: %d
+        Loops replaced on the stack: %d
+      """, interpretedCalls, compiledCalls, backEdges, compiledFunctions, failedCompilations,
+              compiledTraces, traceRuns, traceExits, compiledReplacements, replacements)
+              + failures.stream().map(failure -> "  Failed: " + failure + "\n").collect(Collectors.joining());
+    }
+  }
+}
@@ -0,0 +1,263 @@
+package com.craftinginterpreters.lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles the body of a hot loop along the path the interpreter {@link Recording recorded} it taking:
+ * branches only go the way they went, operators expect the types they saw and calls to the one function they reached
+ * run that function's body inlined. A guard checks each assumption, and when one fails the trace exits:
+ * the interpreter runs the branch that was not recorded, or the operator or call is applied generically.
+ * Every exit is recorded too, so that a trace which keeps exiting can be compiled again, along both paths.
+ */
+final class TraceCompiler extends ClosureCompiler {
+  static final int MAX_INLINING_DEPTH = 3;
+
+  /** What the iterations of a loop have done so far, as observed by the interpreter and by the loop's trace */
+  static final class Recording {
+    private final Map<Stmt.If, Branches> branches = new IdentityHashMap<>();
+    private final Map<Expr.Binary, Operands> operands = new IdentityHashMap<>();
+    /** The function each call has reached, or {@link #MEGAMORPHIC} if it has reached several (or something else) */
+    private final Map<Expr.Call, Stmt.Function> targets = new IdentityHashMap<>();
+
+    void branch(Stmt.If anIf, boolean taken) {
+      var seen = branches.getOrDefault(anIf, Branches.NEITHER);
+      branches.put(anIf, seen.and(taken));
+    }
+
+    void operands(Expr.Binary binary, Object left, Object right) {
+      var seen = Operands.of(left, right);
+      operands.merge(binary, seen, (before, now) -> before == now ? now : Operands.MIXED);
+    }
+
+    void call(Expr.Call call, Object callee) {
+      var target = callee instanceof LoxFunction function && !function.isInitializer() ? function.declaration() : MEGAMORPHIC;
+      targets.merge(call, target, (before, now) -> before.body() == now.body() ? before : MEGAMORPHIC);
+    }
+
+    /** Write what has been recorded, referring to the nodes of the program by number */
+    void save(DataOutputStream data, PersistedProfile.Nodes nodes) throws IOException {
+      data.writeInt(branches.size());
+      for (var branch : branches.entrySet()) {
+        data.writeInt(nodes.number(branch.getKey()));
+        data.writeByte(branch.getValue().ordinal());
+      }
+      data.writeInt(operands.size());
+      for (var seen : operands.entrySet()) {
+        data.writeInt(nodes.number(seen.getKey()));
+        data.writeByte(seen.getValue().ordinal());
+      }
+      data.writeInt(targets.size());
+      for (var target : targets.entrySet()) {
+        data.writeInt(nodes.number(target.getKey()));
+        data.writeInt(target.getValue() == MEGAMORPHIC ? -1 : nodes.number(target.getValue().body()));
+      }
+    }
+
+    /** Read back what {@link #save} wrote, as if it had just been recorded */
+    void load(DataInputStream data, PersistedProfile.Nodes nodes) throws IOException {
+      for (int i = data.readInt(); i > 0; i--) {
+        branches.put(nodes.node(data.readInt(), Stmt.If.class), value(Branches.values(), data.readByte()));
+      }
+      for (int i = data.readInt(); i > 0; i--) {
+        operands.put(nodes.node(data.readInt(), Expr.Binary.class), value(Operands.values(), data.readByte()));
+      }
+      for (int i = data.readInt(); i > 0; i--) {
+        var call = nodes.node(data.readInt(), Expr.Call.class);
+        var target = data.readInt();
+        targets.put(call, target == -1 ? MEGAMORPHIC : nodes.function(target));
+      }
+    }
+
+    private static <T> T value(T[] values, int ordinal) throws IOException {
+      if (ordinal < 0 || ordinal >= values.length) {
+        throw new IOException("Unknown recorded value " + ordinal);
+      }
+      return values[ordinal];
+    }
+  }
+
+  private static final Stmt.Function MEGAMORPHIC = new Stmt.Function(Token.artificial("megamorphic"), List.of(), List.of());
+
+  private enum Branches {
+    NEITHER, TRUE, FALSE, BOTH;
+
+    Branches and(boolean taken) {
+      var now = taken ? TRUE : FALSE;
+      return this == NEITHER || this == now ? now : BOTH;
+    }
+  }
+
+  private enum Operands {
+    NUMBERS, STRINGS, MIXED;
+
+    static Operands of(Object left, Object right) {
+      if (left instanceof Double && right instanceof Double) {
+        return NUMBERS;
+      }
+      return left instanceof String && right instanceof String ? STRINGS : MIXED;
+    }
+  }
+
+  private final Recording recording;
+  private final Tiering.Loop loop;
+  private final Interpreter runtime;
+  /** The bodies of the functions being inlined, innermost last */
+  private final List<List<Stmt>> inlining = new ArrayList<>();
+
+  private TraceCompiler(Resolver.ResolutionReport report, PrintStream printTarget, Interpreter runtime, Tiering.Loop loop) {
+    super(report, printTarget, runtime);
+    this.recording = loop.recording();
+    this.loop = loop;
+    this.runtime = runtime;
+  }
+
+  /** Compile the trace of one iteration of a loop, from what has been recorded of it */
+  static Action compile(Stmt.While aWhile, Resolver.ResolutionReport report, PrintStream printTarget, Interpreter runtime, Tiering.Loop loop) {
+    return aWhile.body().accept(new TraceCompiler(report, printTarget, runtime, loop));
+  }
+
+  /** Compile a whole loop, condition included, with its body traced from what has been recorded of it */
+  static Action compileLoop(Stmt.While aWhile, Resolver.ResolutionReport report, PrintStream printTarget, Interpreter runtime, Tiering.Loop loop) {
+    return aWhile.accept(new TraceCompiler(report, printTarget, runtime, loop));
+  }
+
+  @Override
+  public Action visit(Stmt.If anIf) {
+    var seen = recording.branches.get(anIf);
+    var traced = seen == Branches.TRUE || seen == Branches.FALSE;
+    if (!traced) {
+      return super.visit(anIf);
+    }
+    var expected = seen == Branches.TRUE;
+    var condition = compile(anIf.condition());
+    var onTrace = expected ? anIf.whenTrue() : anIf.whenFalse();
+    var offTrace = expected ? anIf.whenFalse() : anIf.whenTrue();
+    var branch = onTrace == null ? (Action) environment -> NORMAL : onTrace.accept(this);
+    return environment -> {
+      if (Interpreter.isTruthy(condition.evaluate(environment)) == expected) {
+        return branch.execute(environment);
+      }
+      recording.branch(anIf, !expected);
+      loop.sideExit();
+      return offTrace == null ? NORMAL : runtime.complete(offTrace, environment);
+    };
+  }
+
+  @Override
+  public Code visit(Expr.Binary binary) {
+    var seen = recording.operands.get(binary);
+    var operator = binary.operator();
+    if (seen == Operands.STRINGS && operator.type() == TokenType.PLUS) {
+      var left = compile(binary.left());
+      var right = compile(binary.right());
+      return environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        if (l instanceof String a && r instanceof String b) {
+          return a.concat(b);
+        }
+        return offTrace(binary, l, r);
+      };
+    }
+    if (seen != Operands.NUMBERS) {
+      return super.visit(binary);
+    }
+    var left = compile(binary.left());
+    var right = compile(binary.right());
+    return switch (operator.type()) {
+      case PLUS -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a + b) : offTrace(binary, l, r);
+      };
+      case MINUS -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a - b) : offTrace(binary, l, r);
+      };
+      case STAR -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a * b) : offTrace(binary, l, r);
+      };
+      case GREATER -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a > b) : offTrace(binary, l, r);
+      };
+      case GREATER_EQUAL -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a >= b) : offTrace(binary, l, r);
+      };
+      case LESS -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a < b) : offTrace(binary, l, r);
+      };
+      case LESS_EQUAL -> environment -> {
+        var l = left.evaluate(environment);
+        var r = right.evaluate(environment);
+        return l instanceof Double a && r instanceof Double b ? (Object) (a <= b) : offTrace(binary, l, r);
+      };
+      // Division has its own check, and equality and the short-circuiting operators do not care about types
+      default -> super.visit(binary);
+    };
+  }
+
+  /** Apply an operator whose operands failed the guard of its trace, as the interpreter would */
+  private Object offTrace(Expr.Binary binary, Object left, Object right) {
+    recording.operands(binary, left, right);
+    loop.sideExit();
+    if (left instanceof Double l && right instanceof Double r) {
+      // Only concatenation is traced for anything but numbers
+      return l + r;
+    }
+    return Interpreter.applyToNonNumbers(left, right, binary.operator());
+  }
+
+  @Override
+  public Code visit(Expr.Call call) {
+    var target = recording.targets.get(call);
+    if (target == null || target == MEGAMORPHIC || inlining.size() == MAX_INLINING_DEPTH || isInlining(target.body())) {
+      return super.visit(call);
+    }
+    var callee = compile(call.callee());
+    var paren = call.paren();
+    var arguments = call.arguments().stream().map(this::compile).toArray(Code[]::new);
+    inlining.add(target.body());
+    var inlined = compile(target);
+    inlining.removeLast();
+    var expected = target.body();
+    var parameterSlots = inlined.parameterSlots();
+    var body = inlined.action();
+    return environment -> {
+      var function = callee.evaluate(environment);
+      var values = new Object[arguments.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = arguments[i].evaluate(environment);
+      }
+      if (function instanceof LoxFunction loxFunction && loxFunction.declaration().body() == expected) {
+        var scope = new EnvironmentOptimized((EnvironmentOptimized) loxFunction.closure(), loxFunction.declaration());
+        for (int i = 0; i < parameterSlots.length; i++) {
+          scope.defineAt(parameterSlots[i], values[i]);
+        }
+        return calledValue(body.execute(scope));
+      }
+      recording.call(call, function);
+      loop.sideExit();
+      return invoke(function, paren, values);
+    };
+  }
+
+  private boolean isInlining(List<Stmt> body) {
+    return inlining.stream().anyMatch(inlined -> inlined == body);
+  }
+}
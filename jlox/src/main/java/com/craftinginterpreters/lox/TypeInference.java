@@ -0,0 +1,631 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Infers, statement by statement, what the expressions of a resolved program always evaluate to when they complete:
+ * numbers, strings, booleans, nil or instances of a class. The {@link Types} it finds let the {@link ClosureCompiler}
+ * apply operators and read fields without checking what it was given.
+ * <p>
+ * Only the local variables of the function being analyzed are followed. Globals, the variables of enclosing
+ * functions, and locals which any closure assigns could change whenever anything is called, so they are unknown.
+ * So are parameters, until an operator which only succeeds on numbers has been applied to them.
+ * <p>
+ * The program is analyzed twice. The first pass learns which names are assigned from where, and which are the names
+ * of methods, and the second pass relies on what the first learnt.
+ */
+final class TypeInference implements Expr.Visitor<TypeInference.Type>, Stmt.Visitor<Void> {
+  /** What the values of an expression are known to be: of one kind, instances (of a class and its subclasses) */
+  record Type(String name, boolean isInstance) {
+    /** What an expression never completes with, or a variable which has not been given a value */
+    static final Type NOTHING = new Type("nothing", false);
+    static final Type NUMBER = new Type("number", false);
+    static final Type STRING = new Type("string", false);
+    static final Type BOOLEAN = new Type("boolean", false);
+    static final Type NIL = new Type("nil", false);
+    static final Type INSTANCE = new Type("instance", true);
+    static final Type UNKNOWN = new Type("unknown", false);
+
+    static Type instanceOf(String className) {
+      return new Type(className, true);
+    }
+
+    static Type of(Object value) {
+      return switch (value) {
+        case null -> NIL;
+        case Double number -> NUMBER;
+        case String string -> STRING;
+        case Boolean bool -> BOOLEAN;
+        default -> UNKNOWN;
+      };
+    }
+
+    /** What the values are known to be when they are either these or those */
+    Type join(Type other) {
+      if (equals(other) || other.equals(NOTHING)) {
+        return this;
+      }
+      if (equals(NOTHING)) {
+        return other;
+      }
+      return isInstance && other.isInstance ? INSTANCE : UNKNOWN;
+    }
+
+    @Override
+    public String toString() {
+      return isInstance && !equals(INSTANCE) ? name + " instance" : name;
+    }
+  }
+
+  /** The types inferred for a program, its expressions' and (for auditing) its functions' */
+  static final class Types {
+    /** What nothing was inferred of, for the compilers which do not ask */
+    static final Types NONE = new Types();
+
+    private final Map<Expr, Type> expressions = new IdentityHashMap<>();
+    private final Set<Expr.Select> fieldReads = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final List<Summary> functions = new ArrayList<>();
+
+    Type of(Expr expression) {
+      return expressions.getOrDefault(expression, Type.UNKNOWN);
+    }
+
+    /** Whether an operator is always applied to numbers */
+    boolean isNumeric(Expr.Binary binary) {
+      return of(binary.left()).equals(Type.NUMBER) && of(binary.right()).equals(Type.NUMBER);
+    }
+
+    /** Whether an addition always concatenates, having a string on one side at least */
+    boolean isConcatenation(Expr.Binary binary) {
+      return binary.operator().type() == TokenType.PLUS
+              && (of(binary.left()).equals(Type.STRING) || of(binary.right()).equals(Type.STRING));
+    }
+
+    /** Whether a property is always read from an instance, whose class has no method (or getter) by its name */
+    boolean isFieldRead(Expr.Select select) {
+      return fieldReads.contains(select);
+    }
+
+    void print(PrintStream printTarget) {
+      functions.forEach(function -> function.print(printTarget, this));
+    }
+  }
+
+  /** What was inferred of a function: the types its variables are given, what it returns and of its operators */
+  private record Summary(String name, int line, Map<String, Type> variables, Type returns, Set<Expr> operators) {
+    void print(PrintStream printTarget, Types types) {
+      printTarget.println(line < 0 ? name : "fun " + name + " (line " + line + ")");
+      variables.forEach((variable, type) -> printTarget.println("  " + variable + ": " + type));
+      if (line >= 0) {
+        printTarget.println("  returns: " + returns);
+      }
+      var typed = operators.stream().filter(operator -> switch (operator) {
+        case Expr.Binary binary -> types.isNumeric(binary) || types.isConcatenation(binary);
+        case Expr.Unary unary -> types.of(unary.right()).equals(Type.NUMBER);
+        default -> false;
+      }).count();
+      printTarget.println("  operators on known types: " + typed + " of " + operators.size());
+    }
+  }
+
+  /** Where names are assigned from, and which are methods' */
+  private record Facts(Set<String> captured, Set<String> assignedGlobals, Set<String> methods) {
+    Facts() {
+      this(new HashSet<>(), new HashSet<>(), new HashSet<>());
+    }
+  }
+
+  /** What the analyses of the functions of one pass over a program share */
+  private record Pass(Resolver.ResolutionReport report, Types types, Facts known, Facts learnt,
+                      Map<String, Long> declarations, Set<String> classes, Set<List<Stmt>> analyzed) {}
+
+  /** The types of a function's local variables at one point of it, by scope (innermost last) and slot */
+  private static final class State {
+    private final List<Map<Integer, Type>> scopes;
+    private boolean reachable = true;
+
+    State() {
+      this.scopes = new ArrayList<>();
+    }
+
+    private State(List<Map<Integer, Type>> scopes, boolean reachable) {
+      this.scopes = scopes;
+      this.reachable = reachable;
+    }
+
+    State copy() {
+      return upTo(scopes.size());
+    }
+
+    /** A copy of the outermost scopes, as of a statement leaving the inner ones */
+    State upTo(int depth) {
+      var copied = new ArrayList<Map<Integer, Type>>(depth);
+      for (int i = 0; i < depth; i++) {
+        copied.add(new HashMap<>(scopes.get(i)));
+      }
+      return new State(copied, reachable);
+    }
+
+    State join(State other) {
+      if (!other.reachable) {
+        return copy();
+      }
+      if (!reachable) {
+        return other.copy();
+      }
+      var joined = new ArrayList<Map<Integer, Type>>();
+      for (int i = 0; i < Math.min(scopes.size(), other.scopes.size()); i++) {
+        var scope = new HashMap<>(scopes.get(i));
+        other.scopes.get(i).forEach((slot, type) -> scope.merge(slot, type, Type::join));
+        joined.add(scope);
+      }
+      return new State(joined, true);
+    }
+
+    int depth() {
+      return scopes.size();
+    }
+
+    /** The type of a variable, when it is in one of the function's own scopes (and has been given a value there) */
+    Type get(int distance, int id) {
+      var index = scopes.size() - 1 - distance;
+      return index < 0 ? Type.UNKNOWN : scopes.get(index).getOrDefault(id, Type.UNKNOWN);
+    }
+
+    void set(int distance, int id, Type type) {
+      scopes.get(scopes.size() - 1 - distance).put(id, type);
+    }
+
+    void push() {
+      scopes.add(new HashMap<>());
+    }
+
+    void pop() {
+      scopes.removeLast();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof State other && reachable == other.reachable && scopes.equals(other.scopes);
+    }
+
+    @Override
+    public int hashCode() {
+      return scopes.hashCode();
+    }
+  }
+
+  /** The states a loop is left or continued in by {@code break} and {@code continue} */
+  private record Exits(int depth, List<State> breaks, List<State> continues) {}
+
+  private final Pass pass;
+  private final Resolver.ResolutionReport report;
+  /** What {@code this} is in the function, and what it returns without saying (which initializers say is this) */
+  private final Type self;
+  private final Type implicitReturn;
+  private final Map<String, Type> variables = new LinkedHashMap<>();
+  private final Set<Expr> operators = Collections.newSetFromMap(new IdentityHashMap<>());
+  private final Deque<Exits> loops = new ArrayDeque<>();
+  private State state = new State();
+  private Type returns = Type.NOTHING;
+
+  private TypeInference(Pass pass, Type self, Type implicitReturn) {
+    this.pass = pass;
+    this.report = pass.report();
+    this.self = self;
+    this.implicitReturn = implicitReturn;
+  }
+
+  static Types infer(List<Stmt> program, Resolver.ResolutionReport report) {
+    var declarations = program.stream()
+            .map(TypeInference::declared)
+            .filter(name -> name != null)
+            .collect(Collectors.groupingBy(Token::lexeme, Collectors.counting()));
+    var classes = program.stream()
+            .filter(statement -> statement instanceof Stmt.ClassDeclaration)
+            .map(statement -> ((Stmt.ClassDeclaration) statement).name().lexeme())
+            .collect(Collectors.toSet());
+    var first = new Facts();
+    analyze(new Pass(report, new Types(), new Facts(), first, declarations, classes, identitySet()), program);
+    var types = new Types();
+    analyze(new Pass(report, types, first, new Facts(), declarations, classes, identitySet()), program);
+    return types;
+  }
+
+  private static void analyze(Pass pass, List<Stmt> program) {
+    new TypeInference(pass, Type.UNKNOWN, Type.NIL).function("<script>", -1, null, program);
+  }
+
+  private static <T> Set<T> identitySet() {
+    return Collections.newSetFromMap(new IdentityHashMap<>());
+  }
+
+  private static Token declared(Stmt statement) {
+    return switch (statement) {
+      case Stmt.Function function -> function.name();
+      case Stmt.Var declaration -> declaration.name();
+      case Stmt.ClassDeclaration classDeclaration -> classDeclaration.name();
+      default -> null;
+    };
+  }
+
+  /** Analyze a function body (or the program, without parameters) in this analysis, once */
+  private void function(String name, int line, List<Token> params, List<Stmt> body) {
+    if (!pass.analyzed().add(body)) {
+      return;
+    }
+    var functions = pass.types().functions;
+    var index = functions.size();
+    functions.add(null);
+    if (params != null) {
+      state.push();
+      for (int i = 0; i < params.size(); i++) {
+        state.set(0, i, Type.UNKNOWN);
+        variables.put(params.get(i).lexeme(), Type.UNKNOWN);
+      }
+    }
+    body.forEach(this::execute);
+    if (state.reachable) {
+      returns = returns.join(implicitReturn);
+    }
+    functions.set(index, new Summary(name, line, variables, returns, operators));
+  }
+
+  private void nested(String name, int line, List<Token> params, List<Stmt> body, Type self, Type implicitReturn) {
+    new TypeInference(pass, self, implicitReturn).function(name, line, params, body);
+  }
+
+  // Statements
+
+  @Override
+  public Void visit(Stmt.Expression expression) {
+    evaluate(expression.expression());
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.Print print) {
+    evaluate(print.expression());
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.Var declaration) {
+    var type = declaration.initializer() == null ? Type.NIL : evaluate(declaration.initializer());
+    define(declaration.name(), type);
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.Block block) {
+    state.push();
+    block.statements().forEach(this::execute);
+    state.pop();
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.If anIf) {
+    evaluate(anIf.condition());
+    var otherwise = state.copy();
+    execute(anIf.whenTrue());
+    var whenTrue = state;
+    state = otherwise;
+    if (anIf.whenFalse() != null) {
+      execute(anIf.whenFalse());
+    }
+    state = whenTrue.join(state);
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.While aWhile) {
+    // Until what the variables can be at the head of the loop stops growing
+    var entry = state.copy();
+    var head = entry;
+    while (true) {
+      state = head.copy();
+      evaluate(aWhile.condition());
+      var exit = state.copy();
+      var exits = new Exits(state.depth(), new ArrayList<>(), new ArrayList<>());
+      loops.push(exits);
+      execute(aWhile.body());
+      loops.pop();
+      var next = entry.join(state);
+      for (var continued : exits.continues()) {
+        next = next.join(continued);
+      }
+      if (next.equals(head)) {
+        state = exit;
+        for (var broken : exits.breaks()) {
+          state = state.join(broken);
+        }
+        return null;
+      }
+      head = next;
+    }
+  }
+
+  @Override
+  public Void visit(Stmt.LoopControl loopControl) {
+    var exits = loops.peek();
+    if (exits != null) {
+      (loopControl.type() == Stmt.LoopControl.Type.BREAK ? exits.breaks() : exits.continues())
+              .add(state.upTo(exits.depth()));
+    }
+    state.reachable = false;
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.Function function) {
+    define(function.name(), Type.UNKNOWN);
+    // Functions declared in methods see the same `this`
+    nested(function.name().lexeme(), function.name().line(), function.params(), function.body(), self, Type.NIL);
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.Return returnStmt) {
+    var type = returnStmt.value() == null ? implicitReturn : evaluate(returnStmt.value());
+    returns = returns.join(type);
+    state.reachable = false;
+    return null;
+  }
+
+  @Override
+  public Void visit(Stmt.ClassDeclaration classDeclaration) {
+    define(classDeclaration.name(), Type.UNKNOWN);
+    if (classDeclaration.superclass() != null) {
+      evaluate(classDeclaration.superclass());
+    }
+    var instance = Type.instanceOf(classDeclaration.name().lexeme());
+    for (var method : classDeclaration.methods()) {
+      pass.learnt().methods().add(method.name().lexeme());
+      var returned = method.isInitializer() ? instance : Type.NIL;
+      nested(method.name().lexeme(), method.name().line(), method.params(), method.body(), instance, returned);
+    }
+    for (var method : classDeclaration.classMethods()) {
+      pass.learnt().methods().add(method.name().lexeme());
+      nested(method.name().lexeme(), method.name().line(), method.params(), method.body(), Type.UNKNOWN, Type.NIL);
+    }
+    return null;
+  }
+
+  // Expressions
+
+  @Override
+  public Type visit(Expr.Trinary trinary) {
+    evaluate(trinary.head());
+    var otherwise = state.copy();
+    var left = evaluate(trinary.left());
+    var whenTrue = state;
+    state = otherwise;
+    var right = evaluate(trinary.right());
+    state = whenTrue.join(state);
+    return left.join(right);
+  }
+
+  @Override
+  public Type visit(Expr.Binary binary) {
+    var left = evaluate(binary.left());
+    if (binary.operator().type() == TokenType.ELVIS) {
+      return left.join(maybe(binary.right()));
+    }
+    var right = evaluate(binary.right());
+    return switch (binary.operator().type()) {
+      case EQUAL_EQUAL, BANG_EQUAL -> Type.BOOLEAN;
+      case PLUS -> {
+        operators.add(binary);
+        if (left.equals(Type.NUMBER) && right.equals(Type.NUMBER)) {
+          yield Type.NUMBER;
+        }
+        yield left.equals(Type.STRING) || right.equals(Type.STRING) ? Type.STRING : Type.UNKNOWN;
+      }
+      case MINUS, STAR, SLASH -> {
+        operators.add(binary);
+        numbers(binary);
+        yield Type.NUMBER;
+      }
+      case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+        operators.add(binary);
+        numbers(binary);
+        yield Type.BOOLEAN;
+      }
+      default -> Type.UNKNOWN;
+    };
+  }
+
+  @Override
+  public Type visit(Expr.Logical logical) {
+    var left = evaluate(logical.left());
+    return left.join(maybe(logical.right()));
+  }
+
+  @Override
+  public Type visit(Expr.Unary unary) {
+    evaluate(unary.right());
+    if (unary.operator().type() == TokenType.MINUS) {
+      operators.add(unary);
+      number(unary.right());
+      return Type.NUMBER;
+    }
+    return Type.BOOLEAN;
+  }
+
+  @Override
+  public Type visit(Expr.Grouping grouping) {
+    return evaluate(grouping.expression());
+  }
+
+  @Override
+  public Type visit(Expr.Literal literal) {
+    return Type.of(literal.value());
+  }
+
+  @Override
+  public Type visit(Expr.Variable variable) {
+    var coordinates = local(variable.name());
+    return coordinates == null ? Type.UNKNOWN : state.get(coordinates.scope(), coordinates.id());
+  }
+
+  @Override
+  public Type visit(Expr.Assignment assignment) {
+    var type = evaluate(assignment.value());
+    assign(assignment.name(), type);
+    return type;
+  }
+
+  @Override
+  public Type visit(Expr.Call call) {
+    evaluate(call.callee());
+    call.arguments().forEach(this::evaluate);
+    // Calling a class makes an instance of it, when the name is sure to be the class's
+    if (call.callee() instanceof Expr.Variable variable && isKnownClass(variable.name())) {
+      return Type.instanceOf(variable.name().lexeme());
+    }
+    return Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visit(Expr.Function function) {
+    var name = function.isAnonymous() ? "<anonymous>" : function.name().lexeme();
+    nested(name, function.keyword().line(), function.arguments(), function.body(), self, Type.NIL);
+    return Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visit(Expr.Select select) {
+    var target = evaluate(select.target());
+    if (target.isInstance() && !pass.known().methods().contains(select.field().lexeme())) {
+      pass.types().fieldReads.add(select);
+    }
+    return Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visit(Expr.Update update) {
+    evaluate(update.target());
+    return evaluate(update.value());
+  }
+
+  @Override
+  public Type visit(Expr.This the) {
+    return self;
+  }
+
+  @Override
+  public Type visit(Expr.Super superCall) {
+    return Type.UNKNOWN;
+  }
+
+  // Helpers
+
+  private void execute(Stmt statement) {
+    statement.accept(this);
+  }
+
+  private Type evaluate(Expr expression) {
+    var type = expression.accept(this);
+    pass.types().expressions.put(expression, type);
+    return type;
+  }
+
+  /** The type of an expression which is only evaluated sometimes, joining the states with and without it */
+  private Type maybe(Expr expression) {
+    var without = state.copy();
+    var type = evaluate(expression);
+    state = state.join(without);
+    return type;
+  }
+
+  /** The variables an operator which only succeeds on numbers has read are numbers, once it has succeeded */
+  private void numbers(Expr.Binary binary) {
+    // Unless the right operand assigned the left one, after it was read
+    if (!assigns(binary.right())) {
+      number(binary.left());
+    }
+    number(binary.right());
+  }
+
+  private void number(Expr operand) {
+    while (operand instanceof Expr.Grouping grouping) {
+      operand = grouping.expression();
+    }
+    if (operand instanceof Expr.Variable variable) {
+      var coordinates = local(variable.name());
+      if (coordinates != null && !pass.known().captured().contains(variable.name().lexeme())) {
+        state.set(coordinates.scope(), coordinates.id(), Type.NUMBER);
+      }
+    }
+  }
+
+  private static boolean assigns(Expr expression) {
+    return switch (expression) {
+      case Expr.Assignment assignment -> true;
+      case Expr.Update update -> assigns(update.target()) || assigns(update.value());
+      case Expr.Binary binary -> assigns(binary.left()) || assigns(binary.right());
+      case Expr.Logical logical -> assigns(logical.left()) || assigns(logical.right());
+      case Expr.Trinary trinary -> assigns(trinary.head()) || assigns(trinary.left()) || assigns(trinary.right());
+      case Expr.Unary unary -> assigns(unary.right());
+      case Expr.Grouping grouping -> assigns(grouping.expression());
+      case Expr.Call call -> assigns(call.callee()) || call.arguments().stream().anyMatch(TypeInference::assigns);
+      case Expr.Select select -> assigns(select.target());
+      default -> false;
+    };
+  }
+
+  /** Assign a variable, noting where from when it is not one of the function's own */
+  private void assign(Token name, Type type) {
+    var coordinates = report.locals().get(name);
+    if (coordinates == null || coordinates.isGlobal()) {
+      pass.learnt().assignedGlobals().add(name.lexeme());
+    } else if (coordinates.scope() >= state.depth()) {
+      pass.learnt().captured().add(name.lexeme());
+    } else {
+      define(name, type);
+    }
+  }
+
+  /** Give a variable of the function's own a value, which is unknown when closures could be assigning it */
+  private void define(Token name, Type type) {
+    var coordinates = report.locals().get(name);
+    if (coordinates == null || coordinates.isGlobal()) {
+      return;
+    }
+    var known = pass.known().captured().contains(name.lexeme()) ? Type.UNKNOWN : type;
+    state.set(coordinates.scope(), coordinates.id(), known);
+    variables.merge(name.lexeme(), known, Type::join);
+  }
+
+  /** Where a variable of the function's own is, unless closures could be assigning it */
+  private Resolver.Coordinates local(Token name) {
+    var coordinates = report.locals().get(name);
+    if (coordinates == null || coordinates.isGlobal() || coordinates.scope() >= state.depth()
+            || pass.known().captured().contains(name.lexeme())) {
+      return null;
+    }
+    return coordinates;
+  }
+
+  /** A global class declared once at the top level, which nothing assigns */
+  private boolean isKnownClass(Token name) {
+    var coordinates = report.locals().get(name);
+    return coordinates != null && coordinates.isGlobal()
+            && pass.classes().contains(name.lexeme())
+            && pass.declarations().getOrDefault(name.lexeme(), 0L) == 1
+            && !pass.known().assignedGlobals().contains(name.lexeme());
+  }
+}
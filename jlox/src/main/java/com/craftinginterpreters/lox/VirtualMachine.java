@@ -0,0 +1,554 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Runs the bytecode produced by {@link BytecodeCompiler} with a single dispatch loop.
+ * All values live on one contiguous stack, each call's frame being a window onto it:
+ * slot 0 holds the callee (or receiver), followed by the arguments and then the locals.
+ * Calls between Lox functions never recurse on the Java stack: frames live on the heap, and how deep calls may go
+ * is a limit of its own (growing the frames as needed), not the size of the thread's stack.
+ */
+final class VirtualMachine {
+  static final int MAX_FRAMES = 65_536;
+  private static final Object[] NO_ARGUMENTS = new Object[0];
+
+  private final GlobalValues globals;
+  private final PrintStream printTarget;
+  private final int maxFrames;
+  private Object[] stack = new Object[1024];
+  private int sp = 0;
+  private CallFrame[] frames = new CallFrame[64];
+  private int frameCount = 0;
+  /** Upvalues still pointing at the stack, ordered by descending slot */
+  private Upvalue openUpvalues;
+
+  VirtualMachine(GlobalSlots slots, PrintStream printTarget) {
+    this(slots, printTarget, MAX_FRAMES);
+  }
+
+  VirtualMachine(GlobalSlots slots, PrintStream printTarget, int maxFrames) {
+    this.globals = new GlobalValues(slots);
+    this.printTarget = printTarget;
+    this.maxFrames = maxFrames;
+  }
+
+  void interpret(Prototype script) {
+    var closure = new Closure(script, new Upvalue[0]);
+    push(closure);
+    pushFrame(closure, 0);
+    run();
+  }
+
+  // Runtime representation of Lox values (besides nil, booleans, numbers, strings and natives)
+
+  /** A compiled function, before it has captured anything */
+  static final class Prototype {
+    enum Kind { SCRIPT, FUNCTION, METHOD, GETTER, INITIALIZER }
+
+    final String name;
+    final int arity;
+    final Kind kind;
+    final Chunk chunk = new Chunk();
+    int upvalueCount;
+
+    Prototype(String name, int arity, Kind kind) {
+      this.name = name;
+      this.arity = arity;
+      this.kind = kind;
+    }
+
+    @Override
+    public String toString() {
+      return kind == Kind.SCRIPT ? "<script>" : "<fn " + name + ">";
+    }
+  }
+
+  static final class Closure {
+    final Prototype prototype;
+    final Upvalue[] upvalues;
+
+    Closure(Prototype prototype, Upvalue[] upvalues) {
+      this.prototype = prototype;
+      this.upvalues = upvalues;
+    }
+
+    @Override
+    public String toString() {
+      return prototype.toString();
+    }
+  }
+
+  /** A captured variable: a stack slot while its frame is live, then a value of its own */
+  static final class Upvalue {
+    int slot;
+    Object closed;
+    Upvalue next;
+
+    Upvalue(int slot) {
+      this.slot = slot;
+    }
+  }
+
+  static class Instance {
+    Klass klass;
+    final Map<String, Object> fields = new HashMap<>();
+
+    Instance(Klass klass) {
+      this.klass = klass;
+    }
+
+    @Override
+    public String toString() {
+      return "<" + klass.name + " instance>";
+    }
+  }
+
+  /** Classes are instances of their metaclass, which exists only once it has class methods */
+  static final class Klass extends Instance {
+    final String name;
+    final Klass superclass;
+    final Map<String, Closure> methods = new HashMap<>();
+
+    Klass(String name, Klass superclass) {
+      super(null);
+      this.name = name;
+      this.superclass = superclass;
+    }
+
+    Closure findMethod(String methodName) {
+      for (var c = this; c != null; c = c.superclass) {
+        var method = c.methods.get(methodName);
+        if (method != null) {
+          return method;
+        }
+      }
+      return null;
+    }
+
+    Klass metaclass() {
+      if (klass == null) {
+        klass = new Klass(name + "::metaclass", null);
+      }
+      return klass;
+    }
+
+    @Override
+    public String toString() {
+      return "<class " + name + (superclass != null ? " extends " + superclass.name : "") + ">";
+    }
+  }
+
+  static final class BoundMethod {
+    final Object receiver;
+    final Closure method;
+
+    BoundMethod(Object receiver, Closure method) {
+      this.receiver = receiver;
+      this.method = method;
+    }
+
+    @Override
+    public String toString() {
+      return method.toString();
+    }
+  }
+
+  private static final class CallFrame {
+    Closure closure;
+    int ip;
+    int base;
+  }
+
+  // The interpreter loop
+
+  private void run() {
+    var frame = frames[frameCount - 1];
+    var code = frame.closure.prototype.chunk.code();
+    var constants = frame.closure.prototype.chunk.constants();
+    var ip = frame.ip;
+    var base = frame.base;
+
+    while (true) {
+      switch (code[ip++]) {
+        case OpCode.CONSTANT -> {
+          push(constants[readShort(code, ip)]);
+          ip += 2;
+        }
+        case OpCode.NIL -> push(null);
+        case OpCode.TRUE -> push(true);
+        case OpCode.FALSE -> push(false);
+        case OpCode.POP -> stack[--sp] = null;
+        case OpCode.GET_LOCAL -> push(stack[base + (code[ip++] & 0xff)]);
+        case OpCode.SET_LOCAL -> stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+        case OpCode.GET_GLOBAL -> {
+          var slot = readShort(code, ip);
+          ip += 2;
+          var value = globals.valueAt(slot);
+          // Only look for the token to blame when there is something to blame it for
+          push(value != GlobalValues.UNDEFINED ? value : globals.get(slot, tokenAt(frame, ip)));
+        }
+        case OpCode.DEFINE_GLOBAL -> {
+          globals.define(readShort(code, ip), pop());
+          ip += 2;
+        }
+        case OpCode.SET_GLOBAL -> {
+          var slot = readShort(code, ip);
+          ip += 2;
+          globals.assign(slot, tokenAt(frame, ip), stack[sp - 1]);
+        }
+        case OpCode.GET_UPVALUE -> {
+          var upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+          push(upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed);
+        }
+        case OpCode.SET_UPVALUE -> {
+          var upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+          if (upvalue.slot >= 0) {
+            stack[upvalue.slot] = stack[sp - 1];
+          } else {
+            upvalue.closed = stack[sp - 1];
+          }
+        }
+        case OpCode.GET_PROPERTY -> {
+          var name = (String) constants[readShort(code, ip)];
+          ip += 2;
+          if (!(stack[sp - 1] instanceof Instance instance)) {
+            throw new EvaluationError(tokenAt(frame, ip), "Only instances have properties");
+          }
+          if (instance.fields.containsKey(name)) {
+            stack[sp - 1] = instance.fields.get(name);
+            continue;
+          }
+          var method = instance.klass == null ? null : instance.klass.findMethod(name);
+          if (method == null) {
+            throw new EvaluationError(tokenAt(frame, ip), "Undefined property " + name + ".");
+          }
+          if (method.prototype.kind != Prototype.Kind.GETTER) {
+            stack[sp - 1] = new BoundMethod(instance, method);
+            continue;
+          }
+          // The instance is already where the getter expects its receiver
+          frame.ip = ip;
+          frame = pushFrame(method, sp - 1);
+          code = method.prototype.chunk.code();
+          constants = method.prototype.chunk.constants();
+          ip = 0;
+          base = frame.base;
+        }
+        case OpCode.SET_PROPERTY -> {
+          var name = (String) constants[readShort(code, ip)];
+          ip += 2;
+          var value = pop();
+          if (!(stack[sp - 1] instanceof Instance instance)) {
+            var field = tokenAt(frame, ip);
+            throw new EvaluationError(field, "Only instances have fields. Attempting to set " + field + " on " + stack[sp - 1]);
+          }
+          instance.fields.put(name, value);
+          stack[sp - 1] = value;
+        }
+        case OpCode.GET_SUPER -> {
+          var name = (String) constants[readShort(code, ip)];
+          ip += 2;
+          var superclass = (Klass) pop();
+          var method = superclass.findMethod(name);
+          if (method == null) {
+            throw new EvaluationError(tokenAt(frame, ip), "Undefined method " + name);
+          }
+          stack[sp - 1] = new BoundMethod(stack[sp - 1], method);
+        }
+        case OpCode.EQUAL -> {
+          var right = pop();
+          stack[sp - 1] = Objects.equals(stack[sp - 1], right);
+        }
+        case OpCode.NOT_EQUAL -> {
+          var right = pop();
+          stack[sp - 1] = !Objects.equals(stack[sp - 1], right);
+        }
+        case OpCode.GREATER -> {
+          var right = pop();
+          var left = stack[sp - 1];
+          stack[sp - 1] = left instanceof Double l && right instanceof Double r ? l > r : Interpreter.applyToNonNumbers(left, right, tokenAt(frame, ip));
+        }
+        case OpCode.GREATER_EQUAL -> {
+          var right = pop();
+          var left = stack[sp - 1];
+          stack[sp - 1] = left instanceof Double l && right instanceof Double r ? l >= r : Interpreter.applyToNonNumbers(left, right, tokenAt(frame, ip));
+        }
+        case OpCode.LESS -> {
+          var right = pop();
+          var left = stack[sp - 1];
+          stack[sp - 1] = left instanceof Double l && right instanceof Double r ? l < r : Interpreter.applyToNonNumbers(left, right, tokenAt(frame, ip));
+        }
+        case OpCode.LESS_EQUAL -> {
+          var right = pop();
+          var left = stack[sp - 1];
+          stack[sp - 1] = left instanceof Double l && right instanceof Double r ? l <= r : Interpreter.applyToNonNumbers(left, right, tokenAt(frame, ip));
+        }
+        case OpCode.ADD -> {
+          var right = pop();
+          var left = stack[sp - 1];
+          stack[sp - 1] = left instanceof Double l && right instanceof Double r ? l + r : Interpreter.applyToNonNumbers(left, right, tokenAt(frame, ip));
+        }
+        case OpCode.SUBTRACT -> {
+          var right = pop();
+          var left = stack[sp - 1];
+          stack[sp - 1] = left instanceof Double l && right instanceof Double r ? l - r : Interpreter.applyToNonNumbers(left, right, tokenAt(frame, ip));
+        }
+        case OpCode.MULTIPLY -> {
+          var right = pop();
+          var left = stack[sp - 1];
+          stack[sp - 1] = left instanceof Double l && right instanceof Double r ? l * r : Interpreter.applyToNonNumbers(left, right, tokenAt(frame, ip));
+        }
+        case OpCode.DIVIDE -> {
+          var right = pop();
+          var left = stack[sp - 1];
+          if (left instanceof Double l && right instanceof Double r) {
+            if (r == 0) {
+              throw new EvaluationError(tokenAt(frame, ip), "Division by zero");
+            }
+            stack[sp - 1] = l / r;
+          } else {
+            stack[sp - 1] = Interpreter.applyToNonNumbers(left, right, tokenAt(frame, ip));
+          }
+        }
+        case OpCode.UNSUPPORTED_BINARY -> {
+          var right = pop();
+          var left = stack[sp - 1];
+          var operator = tokenAt(frame, ip);
+          if (left instanceof Double && right instanceof Double) {
+            throw new EvaluationError(operator, "Do not know how to apply " + operator.type() + " to numbers");
+          }
+          stack[sp - 1] = Interpreter.applyToNonNumbers(left, right, operator);
+        }
+        case OpCode.NOT -> stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+        case OpCode.NEGATE -> {
+          if (!(stack[sp - 1] instanceof Double value)) {
+            throw new EvaluationError(tokenAt(frame, ip), "Operand must be a number");
+          }
+          stack[sp - 1] = -value;
+        }
+        case OpCode.PRINT -> printTarget.println(Interpreter.stringify(pop()));
+        case OpCode.JUMP -> ip += readShort(code, ip) + 2;
+        case OpCode.JUMP_IF_FALSE -> ip += Interpreter.isTruthy(stack[sp - 1]) ? 2 : readShort(code, ip) + 2;
+        case OpCode.LOOP -> ip -= readShort(code, ip) - 2;
+        case OpCode.CALL -> {
+          var argCount = code[ip++] & 0xff;
+          frame.ip = ip;
+          var callee = call(stack[sp - argCount - 1], argCount, tokenAt(frame, ip));
+          if (callee != frame) {
+            frame = callee;
+            code = frame.closure.prototype.chunk.code();
+            constants = frame.closure.prototype.chunk.constants();
+            ip = frame.ip;
+            base = frame.base;
+          }
+        }
+        case OpCode.TAIL_CALL -> {
+          var argCount = code[ip++] & 0xff;
+          var paren = tokenAt(frame, ip);
+          // The callee and its arguments take the place of the current frame, which is done with
+          var calleeSlot = sp - argCount - 1;
+          closeUpvalues(base);
+          System.arraycopy(stack, calleeSlot, stack, base, argCount + 1);
+          Arrays.fill(stack, base + argCount + 1, sp, null);
+          sp = base + argCount + 1;
+          frameCount--;
+          // Either the callee's frame, or (once anything else has been called) the caller's, to return to
+          frame = call(stack[base], argCount, paren);
+          code = frame.closure.prototype.chunk.code();
+          constants = frame.closure.prototype.chunk.constants();
+          ip = frame.ip;
+          base = frame.base;
+        }
+        case OpCode.CLOSURE -> {
+          var prototype = (Prototype) constants[readShort(code, ip)];
+          ip += 2;
+          var upvalues = new Upvalue[prototype.upvalueCount];
+          for (int i = 0; i < upvalues.length; i++) {
+            var isLocal = code[ip++] == 1;
+            var index = code[ip++] & 0xff;
+            upvalues[i] = isLocal ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+          }
+          push(new Closure(prototype, upvalues));
+        }
+        case OpCode.CLOSE_UPVALUE -> {
+          closeUpvalues(sp - 1);
+          pop();
+        }
+        case OpCode.RETURN -> {
+          var result = pop();
+          closeUpvalues(base);
+          frameCount--;
+          if (frameCount == 0) {
+            sp = 0;
+            return;
+          }
+          Arrays.fill(stack, base, sp, null);
+          sp = base;
+          push(result);
+          frame = frames[frameCount - 1];
+          code = frame.closure.prototype.chunk.code();
+          constants = frame.closure.prototype.chunk.constants();
+          ip = frame.ip;
+          base = frame.base;
+        }
+        case OpCode.CLASS -> {
+          var name = (String) constants[readShort(code, ip)];
+          ip += 2;
+          var superclass = stack[sp - 1];
+          if (superclass != null && !(superclass instanceof Klass)) {
+            throw new EvaluationError(tokenAt(frame, ip), "Superclass must be a class");
+          }
+          stack[sp - 1] = new Klass(name, (Klass) superclass);
+        }
+        case OpCode.METHOD -> {
+          var name = (String) constants[readShort(code, ip)];
+          ip += 2;
+          var method = (Closure) pop();
+          ((Klass) stack[sp - 1]).methods.put(name, method);
+        }
+        case OpCode.CLASS_METHOD -> {
+          var name = (String) constants[readShort(code, ip)];
+          ip += 2;
+          var method = (Closure) pop();
+          ((Klass) stack[sp - 1]).metaclass().methods.put(name, method);
+        }
+        case OpCode.INIT_CLASS -> {
+          var klass = (Klass) stack[sp - 1];
+          push(klass);
+          var initializer = klass.klass == null ? null : klass.klass.findMethod(LoxClass.INIT);
+          if (initializer != null) {
+            frame.ip = ip;
+            frame = pushFrame(initializer, sp - 1);
+            code = initializer.prototype.chunk.code();
+            constants = initializer.prototype.chunk.constants();
+            ip = 0;
+            base = frame.base;
+          }
+        }
+        default -> throw new EvaluationError(tokenAt(frame, ip - 1), "Unknown instruction " + code[ip - 1]);
+      }
+    }
+  }
+
+  /**
+   * Call whatever is in the callee slot with the arguments above it.
+   * Lox functions get a new frame, which is returned for the loop to continue with;
+   * anything else completes immediately, leaving its result in the callee slot.
+   */
+  private CallFrame call(Object callee, int argCount, Token paren) {
+    var calleeSlot = sp - argCount - 1;
+    switch (callee) {
+      case Closure closure -> {
+        checkArity(closure.prototype.arity, argCount, paren);
+        return pushFrame(closure, calleeSlot);
+      }
+      case BoundMethod bound -> {
+        checkArity(bound.method.prototype.arity, argCount, paren);
+        stack[calleeSlot] = bound.receiver;
+        return pushFrame(bound.method, calleeSlot);
+      }
+      case Klass klass -> {
+        stack[calleeSlot] = new Instance(klass);
+        var initializer = klass.findMethod(LoxClass.INIT);
+        if (initializer != null) {
+          checkArity(initializer.prototype.arity, argCount, paren);
+          return pushFrame(initializer, calleeSlot);
+        }
+        checkArity(0, argCount, paren);
+        return frames[frameCount - 1];
+      }
+      case LoxCallable function -> {
+        checkArity(function.arity(), argCount, paren);
+        var arguments = argCount == 0 ? NO_ARGUMENTS : Arrays.copyOfRange(stack, calleeSlot + 1, sp);
+        var result = function.call(null, arguments);
+        Arrays.fill(stack, calleeSlot, sp, null);
+        sp = calleeSlot;
+        push(result);
+        return frames[frameCount - 1];
+      }
+      case null, default -> throw new EvaluationError(paren, "Can only call functions and classes");
+    }
+  }
+
+  private static void checkArity(int arity, int argCount, Token paren) {
+    if (arity != argCount) {
+      throw new EvaluationError(paren, "Expected " + arity + " arguments but got " + argCount + ".");
+    }
+  }
+
+  private CallFrame pushFrame(Closure closure, int base) {
+    if (frameCount == frames.length) {
+      if (frameCount >= maxFrames) {
+        throw new EvaluationError(tokenAt(frames[frameCount - 1], frames[frameCount - 1].ip), "Stack overflow.");
+      }
+      frames = Arrays.copyOf(frames, (int) Math.min(frameCount * 2L, maxFrames));
+    }
+    var frame = frames[frameCount];
+    if (frame == null) {
+      frame = frames[frameCount] = new CallFrame();
+    }
+    frameCount++;
+    frame.closure = closure;
+    frame.ip = 0;
+    frame.base = base;
+    return frame;
+  }
+
+  private Upvalue captureUpvalue(int slot) {
+    Upvalue previous = null;
+    var upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+    if (upvalue != null && upvalue.slot == slot) {
+      return upvalue;
+    }
+
+    var created = new Upvalue(slot);
+    created.next = upvalue;
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+    return created;
+  }
+
+  /** Move every upvalue pointing at or above the slot off the stack */
+  private void closeUpvalues(int slot) {
+    while (openUpvalues != null && openUpvalues.slot >= slot) {
+      var upvalue = openUpvalues;
+      upvalue.closed = stack[upvalue.slot];
+      upvalue.slot = -1;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  private void push(Object value) {
+    if (sp == stack.length) {
+      stack = Arrays.copyOf(stack, sp * 2);
+    }
+    stack[sp++] = value;
+  }
+
+  private Object pop() {
+    var value = stack[--sp];
+    stack[sp] = null;
+    return value;
+  }
+
+  private static int readShort(byte[] code, int ip) {
+    return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+  }
+
+  /** The token of the instruction whose operands end just before the given offset */
+  private static Token tokenAt(CallFrame frame, int ip) {
+    return frame.closure.prototype.chunk.tokenAt(ip - 1);
+  }
+}
@@ -3,10 +3,16 @@ package com.craftinginterpreters.lox;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -347,6 +353,1007 @@ thrice(fun (a) {
     """, "Fry until golden brown.\nPipe full of custard and coat with chocolate.\n");
   }
 
+  @Test
+  void testSuperResolvesThroughNestedScopesAndClasses() {
+    assertPrints("""
+    class A {
+      method() {
+        return "A method";
+      }
+    }
+
+    class B < A {
+      init() {
+        this.name = "b";
+      }
+      method() {
+        var prefix = "B then ";
+        {
+          fun call() { return prefix + super.method(); }
+          return call();
+        }
+      }
+    }
+
+    class C < B {
+      method() {
+        return "C then " + super.method();
+      }
+    }
+
+    var c = C();
+    print c.method();
+    print c.method();
+    print c.init().name;
+    """, "C then B then A method\nC then B then A method\nb\n");
+  }
+
+  @Test
+  void testControlFlowLeavesNestedBlocksAndLoops() {
+    assertPrints("""
+    fun find(limit) {
+      var i = -1;
+      while (i < limit - 1) {
+        i = i + 1;
+        var j = 0;
+        while (true) {
+          j = j + 1;
+          if (j > i) break;
+          { if (i * j == 30) return i + "x" + j; }
+        }
+        if (i < 5) continue;
+        print i;
+      }
+      return "none";
+    }
+    print find(5);
+    print find(7);
+    """, "none\n5\n6x5\n");
+  }
+
+  @Test
+  void testCallsOfEveryArityPassTheirArguments() {
+    assertPrints("""
+    fun zero() { return "0"; }
+    fun one(a) { return a; }
+    fun two(a, b) { return a + b; }
+    fun three(a, b, c) { return a + b + c; }
+    fun four(a, b, c, d) { return a + b + c + d; }
+    fun five(a, b, c, d, e) { return a + b + c + d + e; }
+    class Triple {
+      init(a, b, c) { this.sum = three(a, b, c); }
+    }
+    class Quad {
+      init(a, b, c, d) { this.sum = four(a, b, c, d); }
+    }
+    print zero() + one("1") + two("2", "3") + three("4", "5", "6") + four("7", "8", "9", "a") + five("b", "c", "d", "e", "f");
+    print Triple(1, 2, 3).sum;
+    print Quad(1, 2, 3, 4).sum;
+    print two(nil, "!");
+    """, "0123456789abcdef\n6\n10\nnil!\n");
+    var report = new Resolver().resolve(program("fun f(a, b, a) {}"));
+    assertEquals("Already a variable with this name in this scope.", report.errors().getFirst().message());
+  }
+
+  @Test
+  void testTailCallsRunInConstantStack() {
+    assertPrints("""
+    fun sum(n, total) {
+      if (n == 0) return total;
+      return sum(n - 1, total + 1);
+    }
+    fun isEven(n) { if (n == 0) return true; return isOdd(n - 1); }
+    fun isOdd(n) { if (n == 0) return false; return isEven(n - 1); }
+    class Counter {
+      init(limit) { this.limit = limit; }
+      count(n) {
+        if (n == this.limit) return n;
+        return this.count(n + 1);
+      }
+      make() { return Counter(this.limit + 1); }
+    }
+    print sum(200000, 0);
+    print isEven(200001);
+    print Counter(200000).count(0);
+    print Counter(1).make().limit;
+    print sum(3, clock()) > 6;
+    """, "200000\nfalse\n200000\n2\ntrue\n");
+    var program = program("""
+    fun f() { return g(); }
+    fun g() { return 1 + f(); }
+    class A { init() { return; } m() { return this.init(); } }
+    """);
+    var report = new Resolver().resolve(program);
+    var f = (Stmt.Function) program.get(0);
+    var g = (Stmt.Function) program.get(1);
+    assertTrue(report.isTailCall((Stmt.Return) f.body().getFirst()));
+    assertFalse(report.isTailCall((Stmt.Return) g.body().getFirst()));
+    var a = (Stmt.ClassDeclaration) program.get(2);
+    assertTrue(report.isTailCall((Stmt.Return) a.methods().get(1).body().getFirst()));
+    // Each resolution keeps what it finds to itself, so resolving the tree again lazily starts from none
+    var lazy = Resolver.lazy();
+    var lazyReport = lazy.resolve(program);
+    assertTrue(lazyReport.tailCalls().isEmpty());
+    lazy.resolveDeferred(f);
+    assertEquals(Set.of(f.body().getFirst()), Set.copyOf(lazyReport.tailCalls()));
+  }
+
+  @Test
+  void testClosuresOutliveTheirScope() {
+    assertPrints("""
+    var getters = nil;
+    {
+      var shared = 1;
+      fun get() { return shared; }
+      fun set(value) { shared = value; }
+      getters = get;
+      set(2);
+    }
+    print getters();
+    var i = 0;
+    while (true) {
+      var captured = i;
+      { var inner = fun() { return captured; }; if (i == 3) { print inner(); break; } }
+      i = i + 1;
+    }
+    print -i;
+    """, "2\n3\n-3\n");
+  }
+
+  @Test
+  void testForwardReferenceToLaterGlobal() {
+    assertPrints("""
+    fun isEven(n) {
+      if (n == 0) return true;
+      return isOdd(n - 1);
+    }
+    fun isOdd(n) {
+      if (n == 0) return false;
+      return isEven(n - 1);
+    }
+    print isEven(10);
+    print clock() > 0;
+    """, "true\ntrue\n");
+  }
+
+  @Test
+  void testUndefinedGlobalIsAnError() {
+    var error = assertThrows(EvaluationError.class, () -> assertPrints("""
+    fun early() {
+      return late;
+    }
+    early();
+    var late = 1;
+    """, ""));
+    assertEquals("Undefined variable 'late'.", error.getMessage());
+    // Each run starts with none of the globals a run before it defined
+    var program = program("""
+    fun early() { return late; }
+    print early();
+    var late = 1;
+    """);
+    var report = new Resolver().resolve(program);
+    for (var engine : Engine.values()) {
+      for (var run = 0; run < 2; run++) {
+        var rerun = assertThrows(EvaluationError.class,
+                () -> engine.run(program, report, null, new PrintStream(new ByteArrayOutputStream(), true)));
+        assertEquals("Undefined variable 'late'.", rerun.getMessage(), "Run " + run + " of the " + engine + " engine");
+      }
+    }
+  }
+
+  @Test
+  void testLazyResolutionReportsErrorsOnFirstCall() {
+    var program = program("""
+    print "before";
+    fun broken() {
+      var a = 1;
+      var a = 2;
+    }
+    print "after";
+    broken();
+    """);
+    assertTrue(new Resolver().resolve(program).hasErrors());
+
+    var resolver = Resolver.lazy();
+    var report = resolver.resolve(program);
+    assertFalse(report.hasErrors());
+    var prints = new ByteArrayOutputStream();
+    var env = new EnvironmentOptimized(report.locals(), report.globals());
+    var interpreter = new Interpreter(env, new PrintStream(prints, true), resolver);
+    var error = assertThrows(EvaluationError.class, () -> interpreter.interpret(program));
+    assertEquals("Already a variable with this name in this scope.", error.getMessage());
+    assertEquals("before\nafter\n", prints.toString(StandardCharsets.UTF_8));
+
+    // Only when asked to: by default a function which is never called is still checked
+    var uncalled = "fun broken() { var a = 1; var a = 2; }";
+    var modes = EnumSet.of(Lox.Mode.EVALUATE);
+    assertInstanceOf(Lox.RunResults.ResolutionFailure.class, Lox.run(uncalled, modes, Lox.Options.DEFAULT));
+    var lazy = Lox.Options.parse(new String[]{"--lazy", "--jit=off"}, 0).orElseThrow();
+    assertInstanceOf(Lox.RunResults.ProgramSuccess.class, Lox.run(uncalled, modes, lazy));
+  }
+
+  @Test
+  void testParallelResolutionReportsErrorsInSourceOrder() {
+    var program = program("""
+    var a = 1;
+    var a = 2;
+    fun f() { var x; var x; }
+    class A < A {
+      m() { var y; var y; }
+      n() { fun inner() { var z = z; } }
+    }
+    { fun g() { var w; var w; } }
+    var a = 3;
+    """);
+    var sequential = new Resolver().resolve(program);
+    var parallel = Resolver.resolveInParallel(program, new ForkJoinPool(4));
+    assertEquals(7, sequential.errors().size());
+    assertEquals(sequential.errors(), parallel.errors());
+  }
+
+  @Test
+  void testParallelResolutionRuns() {
+    var program = program("""
+    fun square(n) { return n * n; }
+    class Counter {
+      init() { this.count = 0; }
+      add(n) { this.count = this.count + square(n); return this; }
+    }
+    {
+      var c = Counter();
+      fun addAll(n) { while (n > 0) { c.add(n); n = n - 1; } }
+      addAll(3);
+      print c.count;
+    }
+    """);
+    var report = Resolver.resolveInParallel(program, new ForkJoinPool(4));
+    assertFalse(report.hasErrors());
+    var prints = new ByteArrayOutputStream();
+    var env = new EnvironmentOptimized(report.locals(), report.globals());
+    new Interpreter(env, new PrintStream(prints, true)).interpret(program);
+    assertEquals("14\n", prints.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testReplSessionResolvesAgainstEarlierLines() {
+    var prints = new ByteArrayOutputStream();
+    var session = new Lox.Session(new PrintStream(prints, true));
+    var lines = List.of(
+      "var x = 1;",
+      "fun addX(y) { return x + y; }",
+      "print undefined;",
+      "var x = 2;",
+      "print addX(3);"
+    );
+    for (var line : lines) {
+      Lox.run(line, EnumSet.of(Lox.Mode.EVALUATE), session);
+    }
+    var result = Lox.run("addX(x)", EnumSet.of(Lox.Mode.EVALUATE), session);
+    assertInstanceOf(Lox.RunResults.ExpressionSuccess.class, result);
+    assertEquals(4.0, ((Lox.RunResults.ExpressionSuccess) result).result());
+    assertEquals("5\n", prints.toString(StandardCharsets.UTF_8));
+    // Lines are numbered within each input, however many came before it
+    var failure = Lox.run("print x;\nprint y;", EnumSet.of(Lox.Mode.EVALUATE), session);
+    assertEquals(2, assertInstanceOf(Lox.RunResults.EvalFailure.class, failure).evalError().getToken().line());
+  }
+
+  @Test
+  void testOperatorsKeepWorkingWhenTheirOperandsChangeType() {
+    assertPrints("""
+    fun add(a, b) { return a + b; }
+    fun less(a, b) { return a < b; }
+    print add(1, 2);
+    print add("a", "b");
+    print add(1, 2);
+    print add("n", 1);
+    print less(1, 2);
+    print less(2, 1);
+    """, "3\nab\n3\nn1\ntrue\nfalse\n");
+  }
+
+  @Test
+  void testBinaryNodesSpecializeThenGeneralize() {
+    var operands = new Object[2];
+    var plus = new Token(TokenType.PLUS, "+", null, 1, 1);
+    var root = new Node.Root(BinaryNode.create(plus, environment -> operands[0], environment -> operands[1]));
+    assertInstanceOf(BinaryNode.Uninitialized.class, root.child());
+
+    operands[0] = 1.0;
+    operands[1] = 2.0;
+    assertEquals(3.0, root.evaluate(null));
+    assertInstanceOf(BinaryNode.AddDoubles.class, root.child());
+    assertEquals(3.0, root.evaluate(null));
+    assertInstanceOf(BinaryNode.AddDoubles.class, root.child());
+
+    operands[0] = "a";
+    assertEquals("a2", root.evaluate(null));
+    assertInstanceOf(BinaryNode.Generic.class, root.child());
+    operands[0] = 1.0;
+    assertEquals(3.0, root.evaluate(null));
+  }
+
+  @Test
+  void testUnboxedLocalsKeepWorkingWhenTheyChangeType() {
+    // Called often enough for the function to be compiled partway through, by the engines which tier up
+    assertPrints("""
+    fun run(turn) {
+      var x = 0;
+      var i = 0;
+      while (i < 5) {
+        x = x + i;
+        if (i == turn) x = "s" + x;
+        i = i + 1;
+      }
+      var n = -i * 2;
+      fun get() { return n; }
+      return x + " " + get();
+    }
+    var last;
+    for (var k = 0; k < 1500; k = k + 1) last = run(k);
+    print run(3);
+    print last;
+    """, "s64 -10\n10 -10\n");
+  }
+
+  @Test
+  void testHotFunctionsTierUpTransparently() {
+    var program = program("""
+    class Counter {
+      init() { this.count = 0; }
+      add(n) { this.count = this.count + n; return this; }
+    }
+    fun makeAdder(n) {
+      fun add(x) { return x + n; }
+      return add;
+    }
+    fun label(n) { return "#" + n; }
+    var counter = Counter();
+    var total = 0;
+    for (var i = 0; i < 20; i = i + 1) {
+      counter.add(makeAdder(i)(1));
+      total = total + i;
+    }
+    fun spin() {
+      var i = 0;
+      while (i < 50) i = i + 1;
+      return i;
+    }
+    print counter.count;
+    print label(total);
+    print spin() + spin() + spin();
+    """);
+    var resolver = Resolver.lazy();
+    var tiering = assertTieredPrints(program, resolver.resolve(program), resolver, 3, 20, null, "210\n#190\n150\n");
+    // The add that makeAdder declares is compiled along with it
+    assertEquals(3, tiering.compiledFunctions(), "Counter.add, makeAdder and spin");
+    var stats = new ByteArrayOutputStream();
+    new Tiering(resolver.resolve(program), new PrintStream(stats, true)).printStats();
+    assertTrue(stats.toString(StandardCharsets.UTF_8).startsWith("Tiering:\n"));
+  }
+
+  @Test
+  void testHotLoopsRunTracesWhichExitWhenTheirGuardsFail() {
+    var program = program("""
+    class Box { init(v) { this.v = v; } get() { return this.v; } }
+    fun square(x) { return x * x; }
+    fun firstOver(limit) {
+      var i = 0;
+      while (true) {
+        if (square(i) > limit) return i;
+        i = i + 1;
+      }
+    }
+    var sum = 0;
+    var text = "";
+    var box = Box(2);
+    for (var i = 0; i < 5000; i = i + 1) {
+      if (i < 3000) {
+        sum = sum + square(box.get());
+      } else {
+        sum = sum - 1;
+      }
+      if (i == 4000) square = fun (x) { return x; };
+      if (i == 4500) text = text + "half";
+      if (i == 4900) break;
+    }
+    print sum;
+    print text;
+    print firstOver(4000000);
+    """);
+    var tiering = assertTieredPrints(program, new Resolver().resolve(program), null, Integer.MAX_VALUE, Integer.MAX_VALUE,
+            null, "10099\nhalf\n4000001\n");
+    assertTrue(tiering.compiledTraces() >= 2, "Both loops, with the first compiled again once it left its trace");
+  }
+
+  @Test
+  void testLongRunningLoopsAreReplacedOnTheStack() {
+    var program = program("""
+    fun count(limit) {
+      var total = 0;
+      var text = "";
+      var i = 0;
+      while (i < limit) {
+        var step = i < 15000 ? 1 : 2;
+        total = total + step;
+        if (i == 20000) text = "late ";
+        if (total > 40000) return text + total;
+        i = i + 1;
+      }
+      return total;
+    }
+    print count(30000);
+    print count(20);
+    """);
+    var tiering = assertTieredPrints(program, new Resolver().resolve(program), null, Integer.MAX_VALUE, Integer.MAX_VALUE,
+            null, "late 40002\n20\n");
+    assertEquals(2, tiering.replacements(), "Part way through the first call, and from the start of the second");
+  }
+
+  @Test
+  void testTieringStartsFromAPersistedProfile() throws Exception {
+    var program = program("""
+    fun square(x) { return x * x; }
+    var total = 0;
+    for (var i = 0; i < 6; i = i + 1) total = total + square(i);
+    print total;
+    """);
+    var file = Files.createTempFile("lox", ".prof");
+    try {
+      var compiled = new ArrayList<Integer>();
+      for (var run = 0; run < 3; run++) {
+        var report = new Resolver().resolve(program);
+        var profile = PersistedProfile.of(file, program);
+        assertEquals(run > 0, profile.load(new Tiering(report, System.out)), "Only runs after the first find a profile");
+        var tiering = assertTieredPrints(program, report, null, 10, Integer.MAX_VALUE, profile, "55\n");
+        compiled.add(tiering.compiledFunctions());
+      }
+      // Six calls a run: square gets hot on the second run, and is compiled before its first call on the third
+      assertEquals(List.of(0, 1, 1), compiled);
+      var other = program("print 1;");
+      var report = new Resolver().resolve(other);
+      assertFalse(PersistedProfile.of(file, other).load(new Tiering(report, System.out)));
+
+      var prints = new ByteArrayOutputStream();
+      var options = Lox.Options.parse(new String[]{"--profile=" + file}, 0).orElseThrow();
+      Engine.TREE.run(program, new Resolver().resolve(program), null, new PrintStream(prints, true), options);
+      assertEquals("55\n", prints.toString(StandardCharsets.UTF_8));
+      assertTrue(Lox.Options.parse(new String[]{"--profile="}, 0).isEmpty());
+
+      // A profile which cannot be saved leaves the run to succeed or fail as it would have
+      var unwritable = Lox.Options.parse(new String[]{"--profile=" + file.resolve("missing")}, 0).orElseThrow();
+      var unsaved = new ByteArrayOutputStream();
+      Engine.TREE.run(program, new Resolver().resolve(program), null, new PrintStream(unsaved, true), unwritable);
+      assertEquals("55\n", unsaved.toString(StandardCharsets.UTF_8));
+      var failing = program("print -\"x\";");
+      var error = assertThrows(EvaluationError.class, () -> Engine.TREE.run(failing, new Resolver().resolve(failing),
+              null, new PrintStream(new ByteArrayOutputStream(), true), unwritable));
+      assertEquals("Operand must be a number", error.getMessage());
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  void testCompiledScriptsRunAsResolved() throws Exception {
+    var program = program("""
+    class Base { greet() { return "hi " + this.name; } }
+    class Named < Base {
+      init(name) { this.name = name; }
+      greet() { return super.greet() + "!"; }
+    }
+    fun twice(f, x) { return f(f(x)); }
+    print Named("lox").greet();
+    print twice(fun (n) { return n * 3; }, 2);
+    var i = 0;
+    while (true) { i = i + 1; if (i > 2) break; }
+    print i == 3 ? "three" : nil ?? "four";
+    """);
+    var report = new Resolver().resolve(program);
+    var bytes = new ByteArrayOutputStream();
+    CompiledScript.of(program, report, Lox.Options.DEFAULT).writeTo(bytes);
+    var script = CompiledScript.read(new ByteArrayInputStream(bytes.toByteArray()));
+    var prints = new ByteArrayOutputStream();
+    script.run(new PrintStream(prints, true));
+    assertEquals("hi lox!\n18\nthree\n", prints.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testBytecodeEngineDoesNotRecurseOnTheJavaStack() {
+    var program = program("""
+    fun depth(n) {
+      if (n == 0) return 0;
+      return 1 + depth(n - 1);
+    }
+    print depth(50000);
+    """);
+    var report = new Resolver().resolve(program);
+    var prints = new ByteArrayOutputStream();
+    Engine.BYTECODE.run(program, report, null, new PrintStream(prints, true));
+    assertEquals("50000\n", prints.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testBytecodeEngineRecursesAsDeepAsConfigured() {
+    var program = program("""
+    fun depth(n) {
+      if (n == 0) return 0;
+      return 1 + depth(n - 1);
+    }
+    print depth(200000);
+    """);
+    var deep = Lox.Options.parse(new String[] { "--engine", "bytecode", "--max-depth=250000" }, 0).orElseThrow();
+    var prints = new ByteArrayOutputStream();
+    Engine.BYTECODE.run(program, new Resolver().resolve(program), null, new PrintStream(prints, true), deep);
+    assertEquals("200000\n", prints.toString(StandardCharsets.UTF_8));
+
+    var shallow = Lox.Options.parse(new String[] { "--max-depth=1000" }, 0).orElseThrow();
+    var error = assertThrows(EvaluationError.class,
+            () -> Engine.BYTECODE.run(program, new Resolver().resolve(program), null, new PrintStream(prints, true), shallow));
+    assertEquals("Stack overflow.", error.getMessage());
+    assertTrue(Lox.Options.parse(new String[] { "--max-depth=0" }, 0).isEmpty());
+  }
+
+  @Test
+  void testTypeInferenceLetsClosuresSkipTypeChecks() {
+    var program = program("""
+    class Point {
+      init(x, y) { this.x = x; this.y = y; }
+      area { return this.x * this.y; }
+    }
+    fun scaled(w, h) {
+      var scale = 2;
+      var label = "area ";
+      var p = Point(w, h);
+      if (w > 0) scale = scale * w;
+      label = label + p.area * scale;
+      return p.x + p.y * scale;
+    }
+    fun count(n) {
+      var total = 0;
+      for (var i = 0; i < n; i = i + 1) {
+        total = total + i;
+      }
+      var reset = fun () { total = "reset"; };
+      return total;
+    }
+    fun tricky(x) {
+      var a = 1;
+      var b = a - ((a = "s") == "s" ? 1 : 2);
+      print a + b;
+      var n = x;
+      while (n > 0) n = n - 1;
+      return 1 - n;
+    }
+    print scaled(3, 4);
+    print count(4);
+    print tricky(3);
+    """);
+    var report = new Resolver().resolve(program);
+    var types = TypeInference.infer(program, report);
+    var printed = new ByteArrayOutputStream();
+    types.print(new PrintStream(printed, true));
+    assertEquals("""
+    <script>
+      operators on known types: 0 of 0
+    fun init (line 2)
+      x: unknown
+      y: unknown
+      returns: Point instance
+      operators on known types: 0 of 0
+    fun area (line 3)
+      returns: number
+      operators on known types: 0 of 1
+    fun scaled (line 5)
+      w: unknown
+      h: unknown
+      scale: number
+      label: string
+      p: Point instance
+      returns: unknown
+      operators on known types: 2 of 6
+    fun count (line 13)
+      n: unknown
+      total: unknown
+      i: number
+      reset: unknown
+      returns: unknown
+      operators on known types: 1 of 3
+    fun <anonymous> (line 18)
+      returns: nil
+      operators on known types: 0 of 0
+    fun tricky (line 21)
+      x: unknown
+      a: unknown
+      b: number
+      n: unknown
+      returns: number
+      operators on known types: 4 of 5
+    """, printed.toString(StandardCharsets.UTF_8));
+    for (var engine : List.of(Engine.TREE, Engine.CLOSURE)) {
+      var prints = new ByteArrayOutputStream();
+      engine.run(program, report, null, new PrintStream(prints, true));
+      assertEquals("27\n6\ns0\n1\n", prints.toString(StandardCharsets.UTF_8), "Output of the " + engine + " engine");
+    }
+
+    // What is not known is still checked
+    var failing = program("""
+    fun negate(a) { var b = -a; return -b; }
+    print negate(2);
+    print negate("two");
+    """);
+    var failingReport = new Resolver().resolve(failing);
+    var prints = new ByteArrayOutputStream();
+    var error = assertThrows(EvaluationError.class,
+            () -> Engine.CLOSURE.run(failing, failingReport, null, new PrintStream(prints, true)));
+    assertEquals("2\n", prints.toString(StandardCharsets.UTF_8));
+    assertEquals("Operand must be a number", error.getMessage());
+    assertEquals(EnumSet.of(Lox.Mode.TYPES), Lox.Mode.parse(":types").orElseThrow());
+  }
+
+  @Test
+  void testOptimizerFoldsConstantsAndRemovesDeadBranches() {
+    var program = program("""
+    fun f(x) {
+      if (false) { print "never"; }
+      while (nil) print "never";
+      var y = (2 * 3) + -1;
+      return x + y + (true ? 10 : x) + ("a" == "a" and 1 or 2);
+    }
+    print f(1) + (1 < 2 ? 1 : 0);
+    """);
+    var report = new Resolver().resolve(program);
+    var optimized = Optimizer.optimize(program, report, Optimizer.MAX_LEVEL, Optimizer.INLINE_BUDGET);
+    // The dead branch and loop are gone, and the rest is folded as far as the operands are constants
+    assertEquals(tree(program("""
+    fun f(x) {
+      var y = 5;
+      return x + y + 10 + 1;
+    }
+    print f(1) + 1;
+    """)), tree(optimized.program()));
+    for (var engine : Engine.values()) {
+      var prints = new ByteArrayOutputStream();
+      engine.run(optimized.program(), optimized.report(), null, new PrintStream(prints, true));
+      assertEquals("18\n", prints.toString(StandardCharsets.UTF_8), "Output of the " + engine + " engine");
+    }
+
+    // Failing is left to the run
+    var division = program("print 1 / (2 - 2);");
+    var divisionReport = new Resolver().resolve(division);
+    var folded = Optimizer.optimize(division, divisionReport, Optimizer.MAX_LEVEL, Optimizer.INLINE_BUDGET);
+    assertEquals(tree(program("print 1 / 0;")), tree(folded.program()));
+    var error = assertThrows(EvaluationError.class,
+            () -> Engine.TREE.run(folded.program(), folded.report(), null,
+                    new PrintStream(new ByteArrayOutputStream(), true)));
+    assertEquals("Division by zero", error.getMessage());
+    assertEquals(Optimizer.MAX_LEVEL, Lox.Options.parse(new String[] { "-O" }, 0).orElseThrow().optimization());
+    assertEquals(0, Lox.Options.parse(new String[] { "-O0" }, 0).orElseThrow().optimization());
+    assertTrue(Lox.Options.parse(new String[] { "-Ofast" }, 0).isEmpty());
+  }
+
+  @Test
+  void testOptimizerInlinesSmallFunctions() {
+    var program = program("""
+    fun square(x) { return x * x; }
+    fun sumOfSquares(a, b) { return square(a) + square(b); }
+    fun fact(n) { return n < 2 ? 1 : n * fact(n - 1); }
+    fun ping(n) { return pong(n); }
+    fun pong(n) { return n < 1 ? n : ping(n - 1); }
+    fun later(x) { return x; }
+    var k = 10;
+    fun addK(x) { return x + k; }
+    fun caller() { var k = 1; return addK(2); }
+    fun main() {
+      var i = 3;
+      print sumOfSquares(i, 4);
+      print square(i + 1);
+      print fact(5);
+      print ping(3);
+      print later(i);
+    }
+    later = square;
+    main();
+    print caller();
+    """);
+    var report = new Resolver().resolve(program);
+    var optimized = Optimizer.optimize(program, report, Optimizer.MAX_LEVEL, Optimizer.INLINE_BUDGET);
+    // Both calls in sumOfSquares, then it and ping (with the pong it calls) in main. Not fact, which calls itself, nor
+    // later, which is assigned, nor addK, which would read caller's k
+    assertEquals(tree(program("""
+    fun sumOfSquares(a, b) { return a * a + b * b; }
+    fun caller() { var k = 1; return addK(2); }
+    fun main() {
+      var i = 3;
+      print i * i + 16;
+      print square(i + 1);
+      print fact(5);
+      print ping(2);
+      print later(i);
+    }
+    """)), tree(List.of(function(optimized.program(), "sumOfSquares"), function(optimized.program(), "caller"),
+            function(optimized.program(), "main"))));
+    for (var engine : Engine.values()) {
+      var prints = new ByteArrayOutputStream();
+      engine.run(optimized.program(), optimized.report(), null, new PrintStream(prints, true));
+      // Inlining addK into caller would have its k read caller's, walking the tree by name
+      assertEquals("25\n16\n120\n0\n9\n12\n", prints.toString(StandardCharsets.UTF_8), "Output of the " + engine + " engine");
+    }
+    // Nothing is inlined into main over a smaller budget, or below the level which inlines
+    var main = tree(List.of(function(program, "main")));
+    var overBudget = Optimizer.optimize(program, report, Optimizer.MAX_LEVEL, 2).program();
+    assertEquals(main, tree(List.of(function(overBudget, "main"))));
+    var uninlined = Optimizer.optimize(program, report, Optimizer.INLINING - 1, Optimizer.INLINE_BUDGET).program();
+    assertEquals(main, tree(List.of(function(uninlined, "main"))));
+    assertEquals(2, Lox.Options.parse(new String[] { "--inline-budget=2" }, 0).orElseThrow().inlineBudget());
+  }
+
+  @Test
+  void testOptimizerHoistsInvariantsAndReducesMultiplicationsInLoops() {
+    var program = program("""
+    class Box { init(size) { this.size = size; } }
+    fun work(n, box) {
+      var total = 0;
+      for (var i = 0; i < n * 2; i = i + 1) {
+        total = total + i * 3 + box.size * n + 3 * i;
+      }
+      return total;
+    }
+    fun firstOver(limit, step) {
+      var i = 0;
+      while (i < limit) {
+        if (i * step > limit / 2) break;
+        i = i + 1;
+      }
+      return i;
+    }
+    fun shifting(n) {
+      var m = n;
+      var out = 0;
+      for (var i = 0; i < 3; i = i + 1) {
+        out = out + m * 2;
+        m = m + 1;
+      }
+      return out;
+    }
+    fun grow(box) {
+      var i = 0;
+      while (i < 3) {
+        box.size = box.size + i;
+        i = i + 1;
+      }
+      return box.size;
+    }
+    fun grid(w, h) {
+      var cells = 0;
+      for (var y = 0; y < h; y = y + 1) {
+        for (var x = 0; x < w * 2; x = x + 1) {
+          cells = cells + y * w + x;
+        }
+      }
+      return cells;
+    }
+    print work(5, Box(7));
+    print work(0, Box(7));
+    print firstOver(10, 3);
+    print shifting(1);
+    print grow(Box(1));
+    print grid(2, 3);
+    """);
+    var report = new Resolver().resolve(program);
+    var resolved = report.locals().size();
+    var result = Optimizer.optimize(program, report, Optimizer.MAX_LEVEL, Optimizer.INLINE_BUDGET);
+    var optimized = result.program();
+    // Past its first iteration, work's loop reads n * 2 and box.size * n from before it, and adds to i * 3 as i grows
+    assertEquals("""
+    [while ((< i loop#2))
+      [$2
+        [$3
+          [void (total= (+ (+ (+ total loop#1) loop#3) loop#1))]]
+        [void (i= (+ i 1.0))]
+        [void (loop#1= (+ loop#1 3.0))]]]""", tree(List.of(loops(function(optimized, "work")).getLast())).strip());
+    // So does grid's inner loop with w * 2 and y * w, and nothing which changes in a loop is taken out of it
+    assertFalse(tree(List.of(loops(function(optimized, "grid")).getLast())).contains("*"));
+    for (var unchanged : List.of("firstOver", "shifting", "grow")) {
+      assertEquals(tree(List.of(function(program, unchanged))), tree(List.of(function(optimized, unchanged))),
+              unchanged);
+    }
+    // The variables are numbered by each optimization, so that optimizing the program again gives the same tree
+    var again = Optimizer.optimize(program, report, Optimizer.MAX_LEVEL, Optimizer.INLINE_BUDGET).program();
+    assertEquals(tree(optimized), tree(again));
+    for (var engine : Engine.values()) {
+      var prints = new ByteArrayOutputStream();
+      engine.run(optimized, result.report(), null, new PrintStream(prints, true));
+      assertEquals("620\n0\n2\n12\n4\n42\n", prints.toString(StandardCharsets.UTF_8), "Output of the " + engine + " engine");
+    }
+    var unhoisted = Optimizer.optimize(program, report, Optimizer.LOOPS - 1, Optimizer.INLINE_BUDGET).program();
+    assertEquals(tree(List.of(function(program, "work"))), tree(List.of(function(unhoisted, "work"))));
+    // The variables introduced are resolved in the report of each optimization, not the one it started from
+    assertEquals(resolved, report.locals().size());
+    assertTrue(result.report().locals().size() > resolved);
+
+    // An invariant which fails still fails in the first iteration, once that has done what it does before it
+    var failing = program("""
+    fun f(n) {
+      for (var i = 0; i < 3; i = i + 1) {
+        print i;
+        print n * 2;
+      }
+    }
+    f("two");
+    """);
+    var failingReport = new Resolver().resolve(failing);
+    var hoisted = Optimizer.optimize(failing, failingReport, Optimizer.MAX_LEVEL, Optimizer.INLINE_BUDGET);
+    assertFalse(tree(List.of(loops(function(hoisted.program(), "f")).getLast())).contains("*"));
+    var prints = new ByteArrayOutputStream();
+    assertThrows(EvaluationError.class,
+            () -> Engine.TREE.run(hoisted.program(), hoisted.report(), null, new PrintStream(prints, true)));
+    assertEquals("0\n", prints.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testOptimizerReplacesInstancesWhichDoNotEscapeWithLocals() {
+    var program = program("""
+    class Point {
+      init(x, y) { this.x = x; this.y = y; this.sum = x + y; }
+      norm { return this.x * this.x + this.y * this.y; }
+    }
+    class Named < Point {}
+    fun work(n) {
+      var total = 0;
+      for (var i = 0; i < n; i = i + 1) {
+        var p = Point(i, i * 2);
+        p.x = p.x + 1;
+        total = total + p.x + p.y + p.sum;
+      }
+      return total;
+    }
+    fun escapes(n) {
+      var p = Point(n, n);
+      var q = Point(1, 2);
+      print q.x;
+      return p;
+    }
+    fun usesMethod() { var p = Point(3, 4); return p.norm; }
+    fun captured() { var p = Point(5, 6); fun get() { return p.x; } return get(); }
+    fun shadowed() {
+      var p = Point(7, 8);
+      { var p = Point(9, 10); print p; }
+      return p.y;
+    }
+    fun inherited() { var p = Named(1, 1); return p.sum; }
+    print work(4);
+    print escapes(3).y;
+    print usesMethod();
+    print captured();
+    print shadowed();
+    print inherited();
+    """);
+    var report = new Resolver().resolve(program);
+    var result = Optimizer.optimize(program, report, Optimizer.MAX_LEVEL, Optimizer.INLINE_BUDGET);
+    var optimized = result.program();
+    // p in work and q in escapes are never made, their fields kept in locals instead
+    assertFalse(tree(List.of(function(optimized, "work"))).contains("(Point "));
+    var escapes = tree(List.of(function(optimized, "escapes")));
+    assertTrue(escapes.contains("[var p (Point n n)]"));
+    assertFalse(escapes.contains("(Point 1.0 2.0)"));
+    for (var unchanged : List.of("usesMethod", "captured", "shadowed", "inherited")) {
+      assertEquals(tree(List.of(function(program, unchanged))), tree(List.of(function(optimized, unchanged))),
+              unchanged);
+    }
+    for (var engine : Engine.values()) {
+      var prints = new ByteArrayOutputStream();
+      engine.run(optimized, result.report(), null, new PrintStream(prints, true));
+      assertEquals("40\n1\n3\n25\n5\n<Point instance>\n8\n2\n", prints.toString(StandardCharsets.UTF_8),
+              "Output of the " + engine + " engine");
+    }
+    var unreplaced = Optimizer.optimize(program, report, Optimizer.SCALARS - 1, Optimizer.INLINE_BUDGET).program();
+    assertTrue(tree(List.of(function(unreplaced, "work"))).contains("(Point "));
+
+    // What the initializer would have failed on still fails, once the arguments are evaluated
+    var failing = program("""
+    class Pair { init(a, b) { this.both = a - b; } }
+    fun f() {
+      var p = Pair(1, "one");
+      return p.both;
+    }
+    print f();
+    """);
+    var failingReport = new Resolver().resolve(failing);
+    var replaced = Optimizer.optimize(failing, failingReport, Optimizer.MAX_LEVEL, Optimizer.INLINE_BUDGET);
+    assertFalse(tree(List.of(function(replaced.program(), "f"))).contains("(Pair "));
+    var expected = assertThrows(EvaluationError.class,
+            () -> Engine.CLOSURE.run(failing, failingReport, null, new PrintStream(new ByteArrayOutputStream(), true)));
+    var error = assertThrows(EvaluationError.class,
+            () -> Engine.CLOSURE.run(replaced.program(), replaced.report(), null,
+                    new PrintStream(new ByteArrayOutputStream(), true)));
+    assertEquals(expected.getMessage(), error.getMessage());
+  }
+
+  @Test
+  void testMemoizationSkipsRepeatedCallsToPureFunctions() {
+    var program = program("""
+    var limit = 2;
+    fun fib(n) { if (n < limit) return n; return fib(n - 2) + fib(n - 1); }
+    fun greet(name) { return "hi " + name; }
+    fun loud(n) { print n; return n; }
+    var counter = 0;
+    fun bump(n) { counter = counter + n; return counter; }
+    fun viaLoud(n) { return loud(n); }
+    print fib(20);
+    print greet("a") + greet("a");
+    print loud(1) + loud(1);
+    print bump(1) + bump(1);
+    print viaLoud(2) + viaLoud(2);
+    """);
+    var report = new Resolver().resolve(program);
+    var expected = "6765\nhi ahi a\n1\n1\n2\n3\n2\n2\n4\n";
+    for (var memoize : List.of("--memoize", "--memoize=4")) {
+      var options = Lox.Options.parse(new String[] { memoize }, 0).orElseThrow();
+      for (var engine : Engine.values()) {
+        var prints = new ByteArrayOutputStream();
+        engine.run(program, report, null, new PrintStream(prints, true), options);
+        assertEquals(expected, prints.toString(StandardCharsets.UTF_8), "Output of the " + engine + " engine");
+      }
+    }
+    var options = Lox.Options.parse(new String[] { "--engine", "closure", "--memoize", "--stats" }, 0).orElseThrow();
+    var prints = new ByteArrayOutputStream();
+    options.engine().run(program, report, null, new PrintStream(prints, true), options);
+    assertEquals(expected + """
+    Memoization:
+      Pure functions: 2
+      Hits: 19
+      Misses: 22
+    """, prints.toString(StandardCharsets.UTF_8));
+    assertEquals(Memoizer.CAPACITY, options.memoize());
+    assertTrue(Lox.Options.parse(new String[] { "--memoize=0" }, 0).isEmpty());
+  }
+
+  Program program(String input) {
+    if (new Scanner(input).scanTokens() instanceof Scanner.TokenList tokens
+            && new Parser(tokens).parse() instanceof Program program) {
+      return program;
+    }
+    return fail("Expected " + input + " to parse as a program");
+  }
+
+  /** A function declared at the top level of a program */
+  Stmt.Function function(List<Stmt> program, String name) {
+    for (var statement : program) {
+      if (statement instanceof Stmt.Function function && function.name().lexeme().equals(name)) {
+        return function;
+      }
+    }
+    return fail("Expected a function " + name);
+  }
+
+  /** The loops in a statement, each before the loops in its body */
+  List<Stmt.While> loops(Stmt statement) {
+    var loops = new ArrayList<Stmt.While>();
+    switch (statement) {
+      case Stmt.While aWhile -> {
+        loops.add(aWhile);
+        loops.addAll(loops(aWhile.body()));
+      }
+      case Stmt.If anIf -> {
+        loops.addAll(loops(anIf.whenTrue()));
+        if (anIf.whenFalse() != null) {
+          loops.addAll(loops(anIf.whenFalse()));
+        }
+      }
+      case Stmt.Block block -> block.statements().forEach(inner -> loops.addAll(loops(inner)));
+      case Stmt.Function function -> function.body().forEach(inner -> loops.addAll(loops(inner)));
+      default -> {
+      }
+    }
+    return loops;
+  }
+
+  /** Statements as they are printed by --mode ast, to compare the shapes of trees */
+  String tree(List<? extends Stmt> statements) {
+    return statements.stream().map(statement -> statement.accept(new AstPrinter())).collect(Collectors.joining("\n"));
+  }
+
   void assertPrints(String input, String stdOut) {
     switch(new Scanner(input).scanTokens()) {
       case Scanner.LexError lexError -> {
@@ -367,24 +1374,41 @@ thrice(fun (a) {
             fail("Expected a program of statements, but received the expression " + expr + " which evaluated to " + Interpreter.stringify(result));
           }
           case Program program -> {
-            Environment env = new EnvironmentSimple();
-            var prints = new ByteArrayOutputStream();
-            var output = new PrintStream(prints, true);
-            var resolver = new Resolver();
-            var report = resolver.resolve(program);
+            // Every engine runs against the same resolution, which holds no values of its own
+            var report = new Resolver().resolve(program);
             if (report.hasErrors()) {
               fail(report.errors().stream().map(Resolver.ResolutionError::toString).collect(Collectors.joining("\n")));
-            } else {
-              env = new EnvironmentOptimized(report.locals());
             }
-            var interpreter = new Interpreter(env, output);
-            interpreter.interpret(program);
-            interpreter.printStats();
-            assertEquals(stdOut, prints.toString(StandardCharsets.UTF_8));
+            for (var engine : Engine.values()) {
+              var prints = new ByteArrayOutputStream();
+              engine.run(program, report, null, new PrintStream(prints, true));
+              assertEquals(stdOut, prints.toString(StandardCharsets.UTF_8), "Output of the " + engine + " engine");
+            }
           }
         }
       }
     }
   }
 
+  /**
+   * Runs a program on the tree interpreter, which tiers up after the given numbers of calls and back edges, starting
+   * from and saving to a profile if there is one. Returns the tiering, to check what it compiled
+   */
+  Tiering assertTieredPrints(Program program, Resolver.ResolutionReport report, Resolver lazyResolver,
+                             int callThreshold, int backEdgeThreshold, PersistedProfile profile, String stdOut) {
+    var prints = new ByteArrayOutputStream();
+    var printTarget = new PrintStream(prints, true);
+    var tiering = new Tiering(report, printTarget, callThreshold, backEdgeThreshold);
+    if (profile != null) {
+      profile.load(tiering);
+    }
+    var env = new EnvironmentOptimized(report.locals(), report.globals());
+    new Interpreter(env, printTarget, lazyResolver, tiering, null, report.tailCalls()).interpret(program);
+    if (profile != null) {
+      profile.save(tiering);
+    }
+    assertEquals(stdOut, prints.toString(StandardCharsets.UTF_8));
+    return tiering;
+  }
+
 }
\ No newline at end of file
@@ -1,7 +1,9 @@
 package com.craftinginterpreters.lox;
 
 import java.util.EnumSet;
+import java.util.Map;
 
+/** Usage: PerformanceSpike [engine [workload]], where the workload is one of fib (the default), loop or objects */
 public class PerformanceSpike {
   public static void main(String[] args) {
     var tough = """
@@ -9,7 +11,7 @@ public class PerformanceSpike {
       if (n < 2) return n;
       return fib(n - 1) + fib(n - 2);
     }
-    
+
     var before = clock();
     print "The answer to 40! is " + fib(40);
     var after = clock();
@@ -22,9 +24,43 @@ public class PerformanceSpike {
     }
     print "The value of this operation is " + odd(3);
     """;
+    var loop = """
+    var before = clock();
+    var sum = 0;
+    var i = 0;
+    while (i < 100000000) {
+      sum = sum + i * 2;
+      i = i + 1;
+    }
+    print sum;
+    print "This operation took " + (clock() - before) + " seconds to complete";
+    """;
+    var objects = """
+    class Point {
+      init(x, y) {
+        this.x = x;
+        this.y = y;
+      }
+      plus(other) {
+        return Point(this.x + other.x, this.y + other.y);
+      }
+    }
+    var before = clock();
+    var total = Point(0, 0);
+    for (var i = 0; i < 5000000; i = i + 1) {
+      total = total.plus(Point(i, 1));
+    }
+    print total.x + total.y;
+    print "This operation took " + (clock() - before) + " seconds to complete";
+    """;
+    var workloads = Map.of("fib", tough, "easy", easy, "loop", loop, "objects", objects);
+    var engine = args.length > 0 ? Engine.parse(args[0]).orElseThrow() : Engine.DEFAULT;
+    var workload = args.length > 1 ? args[1] : "fib";
+    var options = new Lox.Options("eval", Lox.Options.Resolution.STRICT, engine);
+    System.out.println("Running " + workload + " on the " + engine + " engine");
     try {
-      switch(Lox.run(tough, EnumSet.of(Lox.Mode.EVALUATE))) {
-        case Lox.RunResults.Success s -> System.out.println(s);
+      switch(Lox.run(workloads.get(workload), EnumSet.of(Lox.Mode.EVALUATE), options)) {
+        case Lox.RunResults.Success s -> System.out.println(s.getClass().getSimpleName());
         case Lox.RunResults.Failure s -> System.out.println(s);
       }
     } catch (Exception e) {